@@ -0,0 +1,99 @@
+package edu.gwu.seas.csci;
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures instruction dispatch by running a program to HLT over and over in
+ * a {@link HeadlessComputer}, in "continue" mode (one micro step per
+ * dispatch) and in "fast run" mode (one whole instruction per dispatch). OUT
+ * is discarded.
+ * <p>
+ * Each run is made with both ways the CPU can dispatch an opcode (see
+ * {@link CPU#DISPATCH_PROPERTY}): through its 64-entry handler table, and
+ * through the opcode switch the table replaced. The same programs are run
+ * either way, so the results compare the table with the switch as well as
+ * dispatching every micro step with dispatching whole instructions.
+ * <p>
+ * Build the benchmark module and run from the project root (the programs are
+ * read from resources/): java -jar benchmark/target/benchmarks.jar
+ * DispatchBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-headless.xml")
+public class DispatchBenchmark {
+
+	/**
+	 * The programs, each followed by the input it expects.
+	 */
+	private static final String[][] PROGRAMS = {
+			{ "program1", "resources/program1.txt", "5\n10\n15\n20\n25\n12\n" },
+			{ "program2", "resources/program2.txt", "pleasure\n" } };
+
+	@Param({ "program1", "program2" })
+	public String program;
+
+	@Param({ "continue", "fast run" })
+	public String step_type;
+
+	@Param({ "table", "switch" })
+	public String dispatch;
+
+	private HeadlessComputer computer;
+
+	private String file;
+
+	private String input;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		System.setProperty(CPU.DISPATCH_PROPERTY, dispatch);
+		computer = new HeadlessComputer(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		for (String[] candidate : PROGRAMS)
+			if (candidate[0].equals(program)) {
+				file = candidate[1];
+				input = candidate[2];
+			}
+		if (file == null)
+			throw new IllegalArgumentException("No program " + program);
+	}
+
+	/**
+	 * Loads and runs the program to HLT.
+	 *
+	 * @return The cycles the run took.
+	 */
+	@Benchmark
+	public long run() throws Exception {
+		long start = computer.getMachine().getCPU().getCycleCount();
+		if (!computer.run(file, new BufferedReader(new StringReader(input)),
+				step_type))
+			throw new IllegalStateException(file
+					+ " ran out of input before HLT");
+		return computer.getMachine().getCPU().getCycleCount() - start;
+	}
+}
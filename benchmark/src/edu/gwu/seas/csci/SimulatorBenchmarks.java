@@ -0,0 +1,347 @@
+package edu.gwu.seas.csci;
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gwu.seas.csci.CPU.CacheLine;
+
+/**
+ * Times the simulator's hot paths: the BitSet conversions in {@link Utils},
+ * instruction decoding, L1 data cache reads and writes, memory block reads,
+ * program and ROM loading from source, from object files and from the
+ * assembler cache, and whole programs run to HLT in "fast run" mode (in runs
+ * per second, and simulated instructions per second in the instructions
+ * counter).
+ * <p>
+ * Build the benchmark module and run from the project root (the programs are
+ * read from resources/), with an optional regex to pick benchmarks:
+ * java -jar benchmark/target/benchmarks.jar SimulatorBenchmarks. Compare with
+ * benchmark/baseline.txt, which holds the numbers for the current release and
+ * is written with -rf text -rff benchmark/baseline.txt.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-headless.xml")
+public class SimulatorBenchmarks {
+
+	private static final String PROGRAM1 = "resources/program1.txt";
+
+	private static final String PROGRAM2 = "resources/program2.txt";
+
+	private static final String PROGRAM1_INPUT = "5\n10\n15\n20\n25\n12\n";
+
+	private static final String PROGRAM2_INPUT = "pleasure\n";
+
+	/**
+	 * An address outside the programs and the ROM, used for cache writes.
+	 */
+	private static final int SCRATCH_ADDR = 1024;
+
+	/**
+	 * The values the {@link Utils} benchmarks work on. Each benchmark changes
+	 * its input every time, so the work is not hoisted out of the loop.
+	 */
+	@State(Scope.Thread)
+	public static class Words {
+
+		final BitSet set = Utils.intToBitSet(-12345, 18);
+
+		int bit;
+
+		int value;
+
+		final BitSet source = Utils.intToBitSet(0x2ABCD, 18);
+
+		final BitSet destination = new BitSet(18);
+
+		int word;
+	}
+
+	/**
+	 * A headless computer with the ROM loaded and OUT discarded.
+	 */
+	@State(Scope.Thread)
+	public static class Simulator {
+
+		final HeadlessComputer computer = new HeadlessComputer(new PrintStream(
+				new OutputStream() {
+					@Override
+					public void write(int b) {
+					}
+				}));
+
+		Machine machine() {
+			return computer.getMachine();
+		}
+
+		CPU cpu() {
+			return computer.getMachine().getCPU();
+		}
+
+		/**
+		 * Loads a program without running it.
+		 */
+		void load(String program) throws Exception {
+			new InstructionLoader(machine(), program, true).load();
+		}
+	}
+
+	/**
+	 * A decoder and the first words of program1, as loaded into memory.
+	 */
+	@State(Scope.Thread)
+	public static class Decoder extends Simulator {
+
+		IRDecoder decoder;
+
+		final int[] words = new int[64];
+
+		int next;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			load(PROGRAM1);
+			for (int i = 0; i < words.length; i++)
+				words[i] = cpu().getMemory().read(
+						InstructionLoader.GENERAL_PROGRAM_LOADING_ADDR + i);
+			decoder = new IRDecoder(cpu());
+		}
+	}
+
+	/**
+	 * SCRATCH_ADDR cached in the L1 data cache, and an address that misses.
+	 */
+	@State(Scope.Thread)
+	public static class Caches extends Simulator {
+
+		int miss_address;
+
+		int word;
+
+		int block_address;
+
+		final int[] block = new int[CacheLine.WORDS_PER_LINE];
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			word = cpu().readIntFromMemory(SCRATCH_ADDR);
+			miss_address = cpu().getMemory().size() - 1;
+			while (cpu().getL1Cache().read(miss_address) != -1)
+				miss_address -= cpu().getL1Cache().getLineSize();
+		}
+	}
+
+	/**
+	 * program2 assembled to an object file, and into an assembler cache.
+	 */
+	@State(Scope.Thread)
+	public static class Objects extends Simulator {
+
+		ObjectFile object;
+
+		AssemblyCache cache;
+
+		ROMImage rom;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			object = new Assembler().assemble(Paths.get(PROGRAM2),
+					InstructionLoader.GENERAL_PROGRAM_LOADING_ADDR);
+			cache = new AssemblyCache(
+					Files.createTempDirectory("assembler-cache"),
+					AssemblyCache.DEFAULT_SIZE);
+			cache.assemble(Paths.get(PROGRAM2),
+					InstructionLoader.GENERAL_PROGRAM_LOADING_ADDR);
+			rom = ROMImage.getDefault();
+		}
+	}
+
+	/**
+	 * The simulated instructions the program benchmarks run, reported per
+	 * second next to the time of a run.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Instructions {
+
+		public long instructions;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			instructions = 0;
+		}
+	}
+
+	@Benchmark
+	public int convertToInt(Words words) {
+		words.set.flip(words.bit);
+		words.bit = (words.bit + 1) % 18;
+		return Utils.convertToInt(words.set, 18);
+	}
+
+	@Benchmark
+	public int intToBitSet(Words words) {
+		words.value = (words.value + 7919) & Memory.WORD_MASK;
+		return Utils.intToBitSet(words.value, 18).length();
+	}
+
+	@Benchmark
+	public int bitsetDeepCopy(Words words) {
+		Utils.bitsetDeepCopy(words.source, 18, words.destination, 18);
+		return words.destination.length();
+	}
+
+	@Benchmark
+	public int signExtend(Words words) {
+		words.value = (words.value + 7919) & Memory.WORD_MASK;
+		return Utils.signExtend(words.value, 18);
+	}
+
+	@Benchmark
+	public int fieldInsertField(Words words) {
+		int address = Utils.field(words.word,
+				InstructionBitFormats.LD_STR_ADDR_START,
+				InstructionBitFormats.LD_STR_ADDR_END);
+		words.word = Utils.insertField(words.word,
+				InstructionBitFormats.LD_STR_ADDR_START,
+				InstructionBitFormats.LD_STR_ADDR_END, address + 1);
+		return words.word;
+	}
+
+	@Benchmark
+	public int parseIRCached(Decoder decoder) {
+		int i = decoder.next++ & (decoder.words.length - 1);
+		decoder.decoder.parseIR(decoder.words[i], i);
+		return i;
+	}
+
+	@Benchmark
+	public int parseIRUncached(Decoder decoder) {
+		int i = decoder.next++ & (decoder.words.length - 1);
+		// Addresses outside memory are never cached.
+		decoder.decoder.parseIR(decoder.words[i], -1);
+		return i;
+	}
+
+	@Benchmark
+	public int l1dReadHit(Caches caches) {
+		return caches.cpu().getL1Cache().read(SCRATCH_ADDR);
+	}
+
+	@Benchmark
+	public int l1dReadMiss(Caches caches) {
+		return caches.cpu().getL1Cache().read(caches.miss_address);
+	}
+
+	@Benchmark
+	public long l1dWriteHit(Caches caches) {
+		// Goes through the write buffer to the memory controller.
+		return caches.cpu().getL1Cache().write(caches.word, SCRATCH_ADDR);
+	}
+
+	@Benchmark
+	public int getMemoryBlock(Caches caches) {
+		Memory memory = caches.cpu().getMemory();
+		caches.block_address = (caches.block_address + CacheLine.WORDS_PER_LINE)
+				% (memory.size() - caches.block.length);
+		memory.getMemoryBlock(caches.block_address, caches.block);
+		return caches.block[0];
+	}
+
+	@Benchmark
+	public void loadProgram1(Simulator simulator) throws Exception {
+		simulator.load(PROGRAM1);
+	}
+
+	@Benchmark
+	public void loadProgram2(Simulator simulator) throws Exception {
+		simulator.load(PROGRAM2);
+	}
+
+	@Benchmark
+	public int loadObjectProgram2(Objects objects) {
+		return new ObjectLoader(objects.machine()).load(objects.object);
+	}
+
+	@Benchmark
+	public int assembleProgram2CacheHit(Objects objects) throws Exception {
+		return objects.cache.assemble(Paths.get(PROGRAM2),
+				InstructionLoader.GENERAL_PROGRAM_LOADING_ADDR).size();
+	}
+
+	@Benchmark
+	public void loadROMSource(Simulator simulator) {
+		simulator.cpu().loadROM(new InstructionLoader(simulator.machine()));
+	}
+
+	@Benchmark
+	public void loadROMImage(Objects objects) {
+		objects.cpu().loadROM(objects.rom);
+	}
+
+	/**
+	 * Loading is included in the time (and so in the instructions per second),
+	 * since the programs store into their own data and are only repeatable
+	 * from a fresh load; compare with loadProgram1 to see the cost of
+	 * execution alone. Whole runs take longer than the other benchmarks to
+	 * reach their JIT compiled speed, so they are warmed up longer.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Warmup(iterations = 10, time = 1)
+	public long fastRunProgram1(Simulator simulator, Instructions counter)
+			throws Exception {
+		return run(simulator, counter, PROGRAM1, PROGRAM1_INPUT);
+	}
+
+	/**
+	 * As {@link #fastRunProgram1}, for program2.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Warmup(iterations = 10, time = 1)
+	public long fastRunProgram2(Simulator simulator, Instructions counter)
+			throws Exception {
+		return run(simulator, counter, PROGRAM2, PROGRAM2_INPUT);
+	}
+
+	/**
+	 * Runs a program to HLT.
+	 *
+	 * @return The instructions the run took.
+	 */
+	private static long run(Simulator simulator, Instructions counter,
+			String program, String input) throws Exception {
+		long start = simulator.cpu().getInstructionCount();
+		if (!simulator.computer.run(program, new BufferedReader(
+				new StringReader(input)), "fast run"))
+			throw new IllegalStateException(program
+					+ " ran out of input before HLT");
+		long instructions = simulator.cpu().getInstructionCount() - start;
+		counter.instructions += instructions;
+		return instructions;
+	}
+}
@@ -1,7 +1,5 @@
 package edu.gwu.seas.csci;
 
-import java.util.BitSet;
-
 /**
  * The ALU class contains the implementation for the arithmetical and logical
  * instructions.
@@ -9,7 +7,7 @@ import java.util.BitSet;
 
 public class ALU implements CPUConstants {
 
-	private static CPU cpu = null;
+	private final CPU cpu;
 
 	/**
 	 * Constructor requires an instance of the CPU class.
@@ -28,25 +26,10 @@ public class ALU implements CPUConstants {
 	 * that only 1 condition code can be set at a time.
 	 */
 
-	private static void setCC(int code) {
-
-		// clear out any old CC values
-		cpu.getReg(CC).clear();
-
-		int numBits = cpu.getReg(CC).getNumBits();
-		BitSet ccValue = new BitSet(numBits);
+	private void setCC(int code) {
 
-		if (code == OVERFLOW) {
-			ccValue.set(0);
-		} else if (code == UNDERFLOW) {
-			ccValue.set(1);
-		} else if (code == DIVZERO) {
-			ccValue.set(2);
-		} else if (code == EQUALORNOT) {
-			ccValue.set(3);
-		}
-
-		cpu.setReg(CC, ccValue, numBits);
+		// clear out any old CC values and set the new one
+		cpu.setRegister(REG_CC, CPU.ccBit(code));
 
 	}
 
@@ -59,7 +42,7 @@ public class ALU implements CPUConstants {
 	 * @param int before
 	 * @param int after
 	 */
-	private static void checkOverflow(long before, long after) {
+	private void checkOverflow(long before, long after) {
 
 		if (before > after) {
 			setCC(OVERFLOW);
@@ -75,7 +58,7 @@ public class ALU implements CPUConstants {
 	 * @param int before
 	 * @param int after
 	 */
-	private static void checkUnderflow(int before, int after) {
+	private void checkUnderflow(int before, int after) {
 
 		if (after > before) {
 			setCC(UNDERFLOW);
@@ -84,55 +67,46 @@ public class ALU implements CPUConstants {
 
 	/* Arithmetic Unit */
 
-	private static void add(int valToBeAdded) {
+	private void add(int valToBeAdded) {
 		// As per pg. 9 of the Project document, if the immediate value is 0,
 		// then no arithmetic is computed.
 		if (valToBeAdded == 0) {
-			cpu.setReg(RESULT, cpu.getReg(OP1));
+			cpu.setRegister(REG_RESULT, cpu.getRegister(REG_OP1));
 			return;
 		}
 
-		Register op1 = cpu.getReg(OP1);
-		int regValue = Utils.convertToInt(op1, op1.getNumBits());
+		int regValue = cpu.getSignedRegister(REG_OP1);
 		int newRegValue = valToBeAdded + regValue;
 
 		checkOverflow(Integer.toUnsignedLong(regValue),
 				Integer.toUnsignedLong(newRegValue));
 
-		BitSet newVal = new BitSet();
-		newVal = Utils.intToBitSet(newRegValue, op1.getNumBits());
-
 		// Set RESULT register with sum
-		cpu.setReg(RESULT, newVal, 18);
+		cpu.setRegister(REG_RESULT, newRegValue);
 	}
 
-	private static void subtract(int valToBeSubtracted) {
+	private void subtract(int valToBeSubtracted) {
 		// As per pg. 9 of the Project document, if the immediate value is 0,
 		// then no arithmetic is computed.
 		if (valToBeSubtracted == 0) {
-			cpu.setReg(RESULT, cpu.getReg(OP1));
+			cpu.setRegister(REG_RESULT, cpu.getRegister(REG_OP1));
 			return;
 		}
 
-		Register dest = cpu.getReg(OP1);
-		int regValue = Utils.convertToInt(dest, dest.getNumBits());
+		int regValue = cpu.getSignedRegister(REG_OP1);
 		int newRegValue = regValue - valToBeSubtracted;
 
 		checkUnderflow(regValue, newRegValue);
 
-		BitSet newVal = new BitSet();
-		newVal = Utils.intToBitSet(newRegValue, dest.getNumBits());
-
 		// Set RESULT register with difference
-		cpu.setReg(RESULT, newVal, 18);
+		cpu.setRegister(REG_RESULT, newRegValue);
 	}
 
 	/**
 	 * Add immediate to register.
 	 */
 	public void AIR() {
-		Register i = cpu.getReg(OP2);
-		int immedVal = Utils.convertToInt(i, i.getNumBits());
+		int immedVal = cpu.getSignedRegister(REG_OP2);
 
 		add(immedVal);
 	}
@@ -148,8 +122,7 @@ public class ALU implements CPUConstants {
 	 * Subtract immediate from register.
 	 */
 	public void SIR() {
-		Register i = cpu.getReg(OP2);
-		int immedVal = Utils.convertToInt(i, i.getNumBits());
+		int immedVal = cpu.getSignedRegister(REG_OP2);
 
 		subtract(immedVal);
 	}
@@ -164,21 +137,15 @@ public class ALU implements CPUConstants {
 	 * contains the low order bits.
 	 */
 	public void MLT() {
-		Register op1 = cpu.getReg(OP1);
-		Register op2 = cpu.getReg(OP2);
-
-		int op1Val = Utils.convertToInt(op1, op1.getNumBits());
-		int op2Val = Utils.convertToInt(op2, op2.getNumBits());
+		int op1Val = cpu.getSignedRegister(REG_OP1);
+		int op2Val = cpu.getSignedRegister(REG_OP2);
 
 		long result = Integer.toUnsignedLong(op1Val)
 				* Integer.toUnsignedLong(op2Val);
 
 		if (result == 0) {
-			BitSet high = Utils.intToBitSet(0, DEFAULT_BIT_SIZE);
-			BitSet low = Utils.intToBitSet(0, DEFAULT_BIT_SIZE);
-
-			cpu.setReg(RESULT, high, DEFAULT_BIT_SIZE);
-			cpu.setReg(RESULT2, low, DEFAULT_BIT_SIZE);
+			cpu.setRegister(REG_RESULT, 0);
+			cpu.setRegister(REG_RESULT2, 0);
 			return;
 		}
 
@@ -218,11 +185,8 @@ public class ALU implements CPUConstants {
 			lowBits = (result << 64 - DEFAULT_BIT_SIZE);
 		}
 
-		BitSet high = Utils.intToBitSet((int) highBits, DEFAULT_BIT_SIZE);
-		BitSet low = Utils.intToBitSet((int) lowBits, DEFAULT_BIT_SIZE);
-
-		cpu.setReg(RESULT, high, DEFAULT_BIT_SIZE);
-		cpu.setReg(RESULT2, low, DEFAULT_BIT_SIZE);
+		cpu.setRegister(REG_RESULT, (int) highBits);
+		cpu.setRegister(REG_RESULT2, (int) lowBits);
 	}
 
 	/**
@@ -231,11 +195,8 @@ public class ALU implements CPUConstants {
 	 * RESULT2 the remainder.
 	 */
 	public void DVD() {
-		Register op1 = cpu.getReg(OP1);
-		Register op2 = cpu.getReg(OP2);
-
-		int op1Val = Utils.convertToInt(op1, op1.getNumBits());
-		int op2Val = Utils.convertToInt(op2, op2.getNumBits());
+		int op1Val = cpu.getSignedRegister(REG_OP1);
+		int op2Val = cpu.getSignedRegister(REG_OP2);
 
 		if (op2Val == 0) {
 			setCC(DIVZERO);
@@ -245,11 +206,8 @@ public class ALU implements CPUConstants {
 		int quotient = op1Val / op2Val;
 		int remainders = op1Val % op2Val;
 
-		BitSet quotSet = Utils.intToBitSet(quotient, DEFAULT_BIT_SIZE);
-		BitSet remainSet = Utils.intToBitSet(remainders, DEFAULT_BIT_SIZE);
-
-		cpu.setReg(RESULT, quotSet, DEFAULT_BIT_SIZE);
-		cpu.setReg(RESULT2, remainSet, DEFAULT_BIT_SIZE);
+		cpu.setRegister(REG_RESULT, quotient);
+		cpu.setRegister(REG_RESULT2, remainders);
 
 	}
 
@@ -259,16 +217,14 @@ public class ALU implements CPUConstants {
 	 * Equality test of registers
 	 */
 	public void TRR() {
-		Register op1 = cpu.getReg(OP1);
-		Register op2 = cpu.getReg(OP2);
-
-		int op1Val = Utils.convertToInt(op1, op1.getNumBits());
-		int op2Val = Utils.convertToInt(op2, op2.getNumBits());
+		int op1Val = cpu.getSignedRegister(REG_OP1);
+		int op2Val = cpu.getSignedRegister(REG_OP2);
 
 		if (op1Val == op2Val) {
 			setCC(EQUALORNOT);
 		} else
-			cpu.getReg(CC).set(EQUALORNOT, false);
+			cpu.setRegister(REG_CC,
+					cpu.getRegister(REG_CC) & ~CPU.ccBit(EQUALORNOT));
 
 	}
 
@@ -277,19 +233,20 @@ public class ALU implements CPUConstants {
 	 * 
 	 * @param op
 	 */
-	private static void bitwiseOp(String op) {
-		Register op1 = cpu.getReg(OP1);
-		Register op2 = cpu.getReg(OP2);
+	private void bitwiseOp(String op) {
+		int op1 = cpu.getRegister(REG_OP1);
+		int op2 = cpu.getRegister(REG_OP2);
 
-		if (op.matches(AND_OP)) {
+		if (op.equals(AND_OP)) {
 			// Performs logical AND and stores result in OP1
-			op1.and(op2);
-		} else if (op.matches(OR_OP)) {
+			op1 &= op2;
+		} else if (op.equals(OR_OP)) {
 			// Performs logical OR and stores result in OP1
-			op1.or(op2);
+			op1 |= op2;
 		}
 
-		cpu.setReg(RESULT, op1);
+		cpu.setRegister(REG_OP1, op1);
+		cpu.setRegister(REG_RESULT, op1);
 	}
 
 	/**
@@ -310,12 +267,12 @@ public class ALU implements CPUConstants {
 	 * Logical NOT of register OP1
 	 */
 	public void NOT() {
-		Register op1 = cpu.getReg(OP1);
-		int regSize = op1.getNumBits();
-
-		op1.flip(0, regSize - 1);
+		// Flips bits 0 through regSize - 2 (MSB first), as BitSet.flip(0,
+		// regSize - 1) did; the least significant bit is left unchanged.
+		int op1 = cpu.getRegister(REG_OP1) ^ ~1;
 
-		cpu.setReg(RESULT, op1);
+		cpu.setRegister(REG_OP1, op1);
+		cpu.setRegister(REG_RESULT, op1);
 	}
 
 	/* Shifter */
@@ -328,21 +285,15 @@ public class ALU implements CPUConstants {
 	 * arithmetic shifting, OP4 should be empty.
 	 */
 	public void SRC() {
-		Register op1 = cpu.getReg(OP1);
-		Register op2 = cpu.getReg(OP2);
-		Register op3 = cpu.getReg(OP3);
-		Register op4 = cpu.getReg(OP4);
-
 		Boolean left_shift = true;
 		Boolean logical_shift = true;
-		int regSize = op1.getNumBits();
-		int origVal = Utils.convertToInt(op1, regSize);
-		int count = Utils.convertToInt(op2, op2.getNumBits());
+		int origVal = cpu.getSignedRegister(REG_OP1);
+		int count = cpu.getSignedRegister(REG_OP2);
 
-		if (op3.isEmpty()) {
+		if (cpu.getRegister(REG_OP3) == 0) {
 			left_shift = false;
 		}
-		if (op4.isEmpty()) {
+		if (cpu.getRegister(REG_OP4) == 0) {
 			logical_shift = false;
 		}
 
@@ -358,9 +309,7 @@ public class ALU implements CPUConstants {
 			finalVal = origVal >> count;
 		}
 
-		BitSet resultVal = Utils.intToBitSet(finalVal, regSize);
-
-		cpu.setReg(RESULT, resultVal, regSize);
+		cpu.setRegister(REG_RESULT, finalVal);
 	}
 
 	/**
@@ -371,22 +320,16 @@ public class ALU implements CPUConstants {
 	 * arithmetic shifting, OP4 should be empty.
 	 */
 	public void RRC() {
-		Register op1 = cpu.getReg(OP1);
-		Register op2 = cpu.getReg(OP2);
-		Register op3 = cpu.getReg(OP3);
-		Register op4 = cpu.getReg(OP4);
-
 		Boolean left_shift = true;
 		Boolean logical_shift = true;
-		int regSize = op1.getNumBits();
-		int origVal = Utils.convertToInt(op1, regSize);
-		int count = Utils.convertToInt(op2, op2.getNumBits());
+		int origVal = cpu.getSignedRegister(REG_OP1);
+		int count = cpu.getSignedRegister(REG_OP2);
 		int result = 0;
 
-		if (op3.isEmpty()) { // right shift
+		if (cpu.getRegister(REG_OP3) == 0) { // right shift
 			left_shift = false;
 		}
-		if (op4.isEmpty()) {
+		if (cpu.getRegister(REG_OP4) == 0) {
 			logical_shift = false;
 		}
 
@@ -399,8 +342,7 @@ public class ALU implements CPUConstants {
 					| (origVal << (DEFAULT_BIT_SIZE - count));
 		}
 
-		BitSet resultVal = Utils.intToBitSet(result, regSize);
-		cpu.setReg(RESULT, resultVal, regSize);
+		cpu.setRegister(REG_RESULT, result);
 	}
 
 	/**
@@ -411,19 +353,10 @@ public class ALU implements CPUConstants {
 	 */
 
 	public void GTE() {
-		Register op1 = cpu.getReg(OP1);
-		Register op2 = cpu.getReg(OP2);
-
-		int op1Val = Utils.convertToInt(op1, op1.getNumBits());
-		int op2Val = Utils.convertToInt(op2, op2.getNumBits());
-
-		BitSet result = new BitSet(DEFAULT_BIT_SIZE);
-
-		if (op1Val >= op2Val) {
-			result.set(17);
-		}
+		int op1Val = cpu.getSignedRegister(REG_OP1);
+		int op2Val = cpu.getSignedRegister(REG_OP2);
 
-		cpu.setReg(RESULT, result, DEFAULT_BIT_SIZE);
+		cpu.setRegister(REG_RESULT, op1Val >= op2Val ? 1 : 0);
 	}
 
 }
@@ -0,0 +1,234 @@
+package edu.gwu.seas.csci;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Assembles program source into an {@link ObjectFile}, which an
+ * {@link ObjectLoader} copies into memory without parsing it again.
+ * <p>
+ * The source is the same as for {@link InstructionLoader}, and assembles to
+ * the same words. The first pass reads the source, records where each label
+ * is defined, and encodes every instruction with an address field of 0 where
+ * it refers to a label. The second pass turns the references into relocation
+ * entries, which the loader resolves for the address it loads at.
+ * <p>
+ * Usage: Assembler source [object]. The object file is written next to the
+ * source, with the extension ".obj", unless it is named. The program is
+ * assembled for the general program loading address unless another is set
+ * with -Dassembler.origin.
+ * <p>
+ * Exit status: 0 when the program is assembled, 1 otherwise.
+ */
+public class Assembler {
+
+	private static final Logger logger = LogManager.getLogger(Assembler.class
+			.getName());
+
+	public static final String ORIGIN_PROPERTY = "assembler.origin";
+
+	/**
+	 * Changes whenever the same source would assemble to a different object
+	 * file.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Assembles a program.
+	 *
+	 * @param source
+	 *            The program source. Not closed.
+	 * @param origin
+	 *            The address to assemble for, where the program is loaded
+	 *            unless it is relocated.
+	 * @return The object file.
+	 * @throws ParseException
+	 *             If a label is defined twice, or the source cannot be read.
+	 */
+	public ObjectFile assemble(BufferedReader source, int origin)
+			throws ParseException {
+		return assemble(source, origin, new int[0][], new int[0]);
+	}
+
+	/**
+	 * Assembles a program file, with the paragraph that
+	 * {@link InstructionLoader} loads alongside program 2 as a data segment.
+	 *
+	 * @param source
+	 *            The program source file.
+	 * @param origin
+	 *            The address to assemble for.
+	 * @return The object file.
+	 * @throws ParseException
+	 *             If a label is defined twice.
+	 * @throws IOException
+	 *             If the source cannot be read.
+	 */
+	public ObjectFile assemble(Path source, int origin) throws ParseException,
+			IOException {
+		return assemble(Files.readAllBytes(source), origin,
+				InstructionLoader.loadsParagraph(source.toString()));
+	}
+
+	/**
+	 * Assembles program source read into memory, for the
+	 * {@link AssemblyCache}, which hashes the same bytes.
+	 *
+	 * @param paragraph
+	 *            true to add the paragraph {@link InstructionLoader} loads
+	 *            alongside program 2 as a data segment.
+	 * @throws ParseException
+	 *             If a label is defined twice.
+	 * @throws IOException
+	 *             If the paragraph cannot be read.
+	 */
+	ObjectFile assemble(byte[] source, int origin, boolean paragraph)
+			throws ParseException, IOException {
+		int[][] segments = new int[0][];
+		int[] segment_addresses = new int[0];
+		if (paragraph) {
+			segments = new int[][] { InstructionLoader.readParagraph() };
+			segment_addresses = new int[] { InstructionLoader.PARAGRAPH_ADDR };
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(source), StandardCharsets.UTF_8));
+		return assemble(reader, origin, segments, segment_addresses);
+	}
+
+	private ObjectFile assemble(BufferedReader source, final int origin,
+			int[][] segments, int[] segment_addresses) throws ParseException {
+		final Map<String, Integer> indexes = new HashMap<String, Integer>();
+		final List<String> labels = new ArrayList<String>();
+		// The offset of each label, -1 until it is defined
+		final List<Integer> offsets = new ArrayList<Integer>();
+		final List<Integer> reference_offsets = new ArrayList<Integer>();
+		final List<Integer> reference_labels = new ArrayList<Integer>();
+		List<Integer> words = new ArrayList<Integer>();
+
+		// First pass: labels and instructions
+		InstructionLoader.LabelResolver references = new InstructionLoader.LabelResolver() {
+			@Override
+			public byte resolveLabel(String label, short location) {
+				Integer index = indexes.get(label);
+				if (index == null) {
+					index = labels.size();
+					indexes.put(label, index);
+					labels.add(label);
+					offsets.add(-1);
+				}
+				reference_offsets.add(location - origin);
+				reference_labels.add(index);
+				return 0;
+			}
+		};
+		try {
+			String line;
+			while ((line = source.readLine()) != null) {
+				if (line.equals("") || line.charAt(0) == '/')
+					continue;
+				if (line.indexOf('/') != -1)
+					line = line.substring(0, line.indexOf('/')).trim();
+				if (line.indexOf(':') != -1) {
+					String label = line.substring(0, line.indexOf(':')).trim();
+					Integer index = indexes.get(label);
+					if (index == null) {
+						indexes.put(label, labels.size());
+						labels.add(label);
+						offsets.add(words.size());
+					} else if (offsets.get(index) == -1)
+						offsets.set(index, words.size());
+					else
+						throw new ParseException("Error: Duplicate Label: "
+								+ label, 0);
+					continue;
+				}
+				Word word = InstructionLoader.instructionToWord(line,
+						(short) (origin + words.size()), references);
+				if (word != null)
+					words.add(word.toInt());
+			}
+		} catch (IOException e) {
+			throw new ParseException(e.getMessage(), 0);
+		}
+
+		// Second pass: references to relocations. A reference made by a line
+		// that did not assemble falls on the next instruction; one past the
+		// end of the program is dropped.
+		List<Integer> relocations = new ArrayList<Integer>();
+		for (int i = 0; i < reference_offsets.size(); i++)
+			if (reference_offsets.get(i) < words.size())
+				relocations.add(i);
+		int[] relocation_offsets = new int[relocations.size()];
+		int[] relocation_labels = new int[relocations.size()];
+		for (int i = 0; i < relocations.size(); i++) {
+			relocation_offsets[i] = reference_offsets.get(relocations.get(i));
+			relocation_labels[i] = reference_labels.get(relocations.get(i));
+		}
+
+		logger.debug("Assembled " + words.size() + " words, "
+				+ labels.size() + " labels and " + relocations.size()
+				+ " relocations.");
+		return new ObjectFile(origin, 0, toArray(words),
+				labels.toArray(new String[labels.size()]), toArray(offsets),
+				relocation_offsets, relocation_labels, segment_addresses,
+				segments);
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = list.get(i);
+		return array;
+	}
+
+	/**
+	 * @return The name of the object file for a source file: the source with
+	 *         its extension replaced by ".obj".
+	 */
+	public static Path objectFileFor(Path source) {
+		String name = source.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		return source.resolveSibling(name + ObjectFile.EXTENSION);
+	}
+
+	/**
+	 * @param args
+	 *            The source file, optionally followed by the object file.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: Assembler source [object]");
+			System.exit(1);
+		}
+		Path source = Paths.get(args[0]);
+		Path object = args.length == 2 ? Paths.get(args[1])
+				: objectFileFor(source);
+		int origin = Integer.getInteger(ORIGIN_PROPERTY,
+				InstructionLoader.GENERAL_PROGRAM_LOADING_ADDR);
+		try {
+			ObjectFile assembled = new Assembler().assemble(source, origin);
+			assembled.write(object);
+			System.out.println(object + ": " + assembled.size() + " words at "
+					+ origin);
+		} catch (ParseException | IOException e) {
+			System.err.println(e);
+			System.exit(1);
+		}
+	}
+}
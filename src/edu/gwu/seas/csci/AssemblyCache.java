@@ -0,0 +1,287 @@
+package edu.gwu.seas.csci;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps the {@link ObjectFile}s the {@link Assembler} makes in a directory, so
+ * that a program, or the ROM, is only assembled once however many runs and
+ * processes load it. Each object file is named after a SHA-256 hash of the
+ * source, the address it is assembled for, any data segment loaded with it,
+ * and the assembler and object file versions, so an edited source or a new
+ * assembler never finds a stale image. Hits are mapped (see
+ * {@link ObjectFile#map(Path)}).
+ * <p>
+ * The cache is off unless a directory is set with the "assembler.cache"
+ * system property; every request then assembles. Once the object files take
+ * up more than "assembler.cache.size" bytes, 64 MiB by default, those used
+ * least recently are deleted. Use is tracked by modification time, which a
+ * hit updates.
+ * <p>
+ * Any number of threads and processes can share a directory: object files are
+ * written under a temporary name and moved into place. A cache that cannot be
+ * read or written is skipped with a warning; it never fails a load.
+ */
+public class AssemblyCache {
+
+	private static final Logger logger = LogManager
+			.getLogger(AssemblyCache.class.getName());
+
+	/**
+	 * System property naming the cache directory.
+	 */
+	public static final String DIRECTORY_PROPERTY = "assembler.cache";
+
+	/**
+	 * System property holding the most bytes of object files to keep.
+	 */
+	public static final String SIZE_PROPERTY = "assembler.cache.size";
+
+	public static final long DEFAULT_SIZE = 64L << 20;
+
+	/**
+	 * The cache configured with the system properties, made on first use.
+	 */
+	private static volatile AssemblyCache default_cache;
+
+	/**
+	 * The cache directory, or null if the cache is off.
+	 */
+	private final Path directory;
+
+	private final long max_size;
+
+	/**
+	 * @param directory
+	 *            The cache directory, created when the first object file is
+	 *            stored, or null to turn the cache off.
+	 * @param max_size
+	 *            The most bytes of object files to keep.
+	 * @throws IllegalArgumentException
+	 *             If the size is negative.
+	 */
+	public AssemblyCache(Path directory, long max_size)
+			throws IllegalArgumentException {
+		if (max_size < 0)
+			throw new IllegalArgumentException(
+					"The assembler cache size cannot be negative, not "
+							+ max_size + ".");
+		this.directory = directory;
+		this.max_size = max_size;
+	}
+
+	/**
+	 * @return The cache in the directory set with the "assembler.cache" system
+	 *         property, off if it is not set.
+	 * @throws IllegalArgumentException
+	 *             If the size set with "assembler.cache.size" is negative.
+	 */
+	public static AssemblyCache getDefault() throws IllegalArgumentException {
+		AssemblyCache cache = default_cache;
+		if (cache == null) {
+			synchronized (AssemblyCache.class) {
+				if (default_cache == null) {
+					String directory = System.getProperty(DIRECTORY_PROPERTY);
+					default_cache = new AssemblyCache(directory == null ? null
+							: Paths.get(directory), Long.getLong(SIZE_PROPERTY,
+							DEFAULT_SIZE));
+				}
+				cache = default_cache;
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * @return true if object files are kept, false if every request
+	 *         assembles.
+	 */
+	public boolean isEnabled() {
+		return directory != null;
+	}
+
+	/**
+	 * Gets the object file for a program file, as
+	 * {@link Assembler#assemble(Path, int)} makes it.
+	 *
+	 * @param source
+	 *            The program source file.
+	 * @param origin
+	 *            The address to assemble for.
+	 * @return The object file, from the cache if it holds it.
+	 * @throws ParseException
+	 *             If a label is defined twice.
+	 * @throws IOException
+	 *             If the source cannot be read.
+	 */
+	public ObjectFile assemble(Path source, int origin) throws ParseException,
+			IOException {
+		return assemble(Files.readAllBytes(source), origin,
+				InstructionLoader.loadsParagraph(source.toString()));
+	}
+
+	/**
+	 * Gets the object file for program source read into memory.
+	 *
+	 * @param paragraph
+	 *            true to add the paragraph loaded alongside program 2.
+	 * @see Assembler#assemble(byte[], int, boolean)
+	 */
+	ObjectFile assemble(byte[] source, int origin, boolean paragraph)
+			throws ParseException, IOException {
+		if (directory == null)
+			return new Assembler().assemble(source, origin, paragraph);
+
+		Path file = directory.resolve(key(source, origin, paragraph)
+				+ ObjectFile.EXTENSION);
+		if (Files.isRegularFile(file)) {
+			ObjectFile object = null;
+			try {
+				object = ObjectFile.map(file);
+			} catch (IOException e) {
+				logger.warn("Discarding " + file + ": " + e);
+				delete(file);
+			}
+			if (object != null) {
+				try {
+					Files.setLastModifiedTime(file,
+							FileTime.fromMillis(System.currentTimeMillis()));
+				} catch (IOException e) {
+					// A read-only cache is still used, but cannot track use.
+					logger.warn("Cannot mark " + file + " as used: " + e);
+				}
+				logger.debug("Assembler cache hit: " + file);
+				return object;
+			}
+		}
+
+		ObjectFile object = new Assembler().assemble(source, origin, paragraph);
+		try {
+			store(object, file);
+			evict();
+		} catch (IOException e) {
+			logger.warn("Cannot store " + file + ": " + e);
+		}
+		return object;
+	}
+
+	/**
+	 * @return The hex SHA-256 hash of everything the object file depends on.
+	 */
+	private static String key(byte[] source, int origin, boolean paragraph)
+			throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+		update(digest, Assembler.VERSION);
+		update(digest, ObjectFile.VERSION);
+		update(digest, origin);
+		if (paragraph) {
+			int[] words = InstructionLoader.readParagraph();
+			update(digest, words.length);
+			for (int word : words)
+				update(digest, word);
+		} else
+			update(digest, -1);
+		digest.update(source);
+
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest())
+			key.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(
+					Character.forDigit(b & 0xF, 16));
+		return key.toString();
+	}
+
+	private static void update(MessageDigest digest, int value) {
+		digest.update(new byte[] { (byte) (value >>> 24),
+				(byte) (value >>> 16), (byte) (value >>> 8), (byte) value });
+	}
+
+	/**
+	 * Writes an object file under a temporary name and moves it into place.
+	 */
+	private void store(ObjectFile object, Path file) throws IOException {
+		Files.createDirectories(directory);
+		Path temporary = Files.createTempFile(directory, "assembling", ".tmp");
+		try {
+			object.write(temporary);
+			Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Deletes the object files used least recently until the rest fit in the
+	 * cache size.
+	 */
+	private void evict() throws IOException {
+		final List<Path> files = new ArrayList<Path>();
+		final List<BasicFileAttributes> attributes = new ArrayList<BasicFileAttributes>();
+		long total = 0;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(
+				directory, "*" + ObjectFile.EXTENSION)) {
+			for (Path entry : entries) {
+				BasicFileAttributes attribute;
+				try {
+					attribute = Files.readAttributes(entry,
+							BasicFileAttributes.class);
+				} catch (IOException e) {
+					// Evicted by another thread or process
+					continue;
+				}
+				files.add(entry);
+				attributes.add(attribute);
+				total += attribute.size();
+			}
+		}
+		if (total <= max_size)
+			return;
+
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < files.size(); i++)
+			order.add(i);
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return attributes.get(a).lastModifiedTime().compareTo(
+						attributes.get(b).lastModifiedTime());
+			}
+		});
+		for (int i = 0; i < order.size() && total > max_size; i++) {
+			int oldest = order.get(i);
+			logger.debug("Evicting " + files.get(oldest));
+			delete(files.get(oldest));
+			total -= attributes.get(oldest).size();
+		}
+	}
+
+	private static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			logger.warn("Cannot delete " + file + ": " + e);
+		}
+	}
+}
@@ -1,8 +1,12 @@
 package edu.gwu.seas.csci;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -17,138 +21,519 @@ import edu.gwu.seas.csci.Utils;
  * a register to hold the opcode of an instruction). In addition, the CPU class
  * executes a program's instructions from the micro-operation level and
  * simulates a clock for the micro-operations to adhere to. Each of the
- * registers is represented by a Register object (an extension of the BitSet
- * object) of the appropriate size. Each register is placed into a HashMap,
- * where the key is the register's name, for simplified access. Finally, the CPU
+ * registers is held as a masked primitive int in a {@link RegisterFile}, indexed
+ * by the REG_ constants in {@link CPUConstants}; the String-keyed getReg and
+ * setReg methods remain as a compatibility layer on top of it. Finally, the CPU
  * keeps references to the Memory, IRDecoder, and Loader classes to respectively
  * access memory, parse instructions, and load the boot loader program.
  * 
- * This CPU implements a unified, buffered write-through memory cache. All reads
- * and writes are done from and to the cache, respectively, and the memory
- * controller maintains the synchronization between the values in the cache and
- * the values in main memory by the use of an intermediary write buffer.
+ * This CPU implements a buffered write-through L1 memory cache, unified or
+ * split into instruction and data caches, optionally backed by an L2 cache.
+ * All reads and writes are done from and to the L1 cache, respectively, and
+ * the memory controller maintains the synchronization between the values in
+ * the cache and the values in the level below it by the use of an
+ * intermediary write buffer.
  */
 public class CPU implements CPUConstants {
 
 	/**
-	 * This is a 16 {@link L1CacheLine} unified, buffered write-through, L1
-	 * cache. All interaction between the CPU and memory occurs via the cache.
+	 * A set-associative, write-allocate cache in front of a lower
+	 * {@link MemoryLevel}: another cache or main memory. An address selects
+	 * its set directly, so a lookup only searches the ways of one set. When a
+	 * set is full, a {@link ReplacementPolicy} chooses the line to evict among
+	 * the lines that have no writes waiting in the write buffer.
+	 * <p>
+	 * Writes are either write-through, where every write is also sent to the
+	 * next level, or write-back, where a write only marks its line modified
+	 * and the whole line is written to the next level when it is evicted or
+	 * the cache is flushed. The L1 caches send their write-through writes to
+	 * the next level through the write buffer; an L2 sends them directly.
+	 * <p>
+	 * The CPU has either one unified L1 cache or, with -Dcache.split=true,
+	 * separate L1 instruction and data caches of the same geometry. The
+	 * geometry and policies of the L1 can be set with the cache.sets,
+	 * cache.ways, cache.line.size, cache.policy, cache.write.policy and
+	 * cache.latency system properties (for example -Dcache.sets=8
+	 * -Dcache.ways=2 -Dcache.policy=PLRU -Dcache.write.policy=write-back). The
+	 * default is 4 sets of 4 ways with 8-word lines, LRU replacement and
+	 * write-through, for 16 lines in all. The RANDOM policy is seeded with
+	 * cache.policy.seed, 0 by default. Setting cache.l2.sets adds a unified
+	 * L2 cache between the L1 and main memory, configured with the same
+	 * properties under cache.l2 (8 ways, the L1 line size, LRU and write-back
+	 * unless set otherwise).
+	 * <p>
+	 * Every access to a cache costs its latency in cycles, and a miss also
+	 * costs whatever the next level takes to supply the line. All latencies
+	 * are 0 unless set, so the cycle count only depends on the instructions
+	 * run.
 	 */
-	static class L1Cache {
+	static class Cache implements MemoryLevel {
 
 		/**
-		 * The number of {@link L1CacheLine}s in this cache.
+		 * Enumerates what the cache does with a write.
 		 */
-		private static final int CACHE_LENGTH = 16;
+		public enum WritePolicy {
+			WRITE_THROUGH, WRITE_BACK
+		}
+
+		public static final String SETS_PROPERTY = "cache.sets";
+
+		public static final String WAYS_PROPERTY = "cache.ways";
+
+		public static final String LINE_SIZE_PROPERTY = "cache.line.size";
+
+		public static final String POLICY_PROPERTY = "cache.policy";
+
+		public static final String WRITE_POLICY_PROPERTY = "cache.write.policy";
+
+		public static final String LATENCY_PROPERTY = "cache.latency";
+
+		public static final String SPLIT_PROPERTY = "cache.split";
+
+		public static final String L2_SETS_PROPERTY = "cache.l2.sets";
+
+		public static final String L2_WAYS_PROPERTY = "cache.l2.ways";
+
+		public static final String L2_LINE_SIZE_PROPERTY = "cache.l2.line.size";
+
+		public static final String L2_POLICY_PROPERTY = "cache.l2.policy";
+
+		public static final String L2_WRITE_POLICY_PROPERTY = "cache.l2.write.policy";
+
+		public static final String L2_LATENCY_PROPERTY = "cache.l2.latency";
+
+		public static final int DEFAULT_SETS = 4;
+
+		public static final int DEFAULT_WAYS = 4;
+
+		public static final int DEFAULT_L2_WAYS = 8;
+
+		public static final ReplacementPolicy.Type DEFAULT_POLICY = ReplacementPolicy.Type.LRU;
+
+		public static final WritePolicy DEFAULT_WRITE_POLICY = WritePolicy.WRITE_THROUGH;
+
+		public static final WritePolicy DEFAULT_L2_WRITE_POLICY = WritePolicy.WRITE_BACK;
+
+		/**
+		 * Returned by {@link #read(int)} when the address is not cached. Never
+		 * a valid word, since words are masked to 18 bits.
+		 */
+		private static final int CACHE_MISS = -1;
+
+		/**
+		 * Identifies the cache in reports, e.g. "L1D".
+		 */
+		private final String name;
+
+		private final int sets;
+
+		private final int ways;
+
+		/**
+		 * The number of words in each line.
+		 */
+		private final int line_size;
+
+		/**
+		 * log2 of line_size.
+		 */
+		private final int offset_bits;
+
+		/**
+		 * The {@link CacheLine}s that form the cache, set by set. Way w of set
+		 * s is at s * ways + w. Empty ways are null.
+		 */
+		private final CacheLine[] cache;
+
+		private final ReplacementPolicy.Type policy_type;
+
+		private final ReplacementPolicy policy;
+
+		private final WritePolicy write_policy;
 
 		/**
-		 * The array of {@link L1CacheLine}s that form the L1 cache.
+		 * The cycles each access takes.
 		 */
-		private final L1CacheLine[] cache = new L1CacheLine[CACHE_LENGTH];
+		private final int latency;
 
 		/**
-		 * A random number generator used for the cache eviction algorithm.
+		 * Where lines are filled from and written back to.
 		 */
-		private final Random generator = new Random();
+		private final MemoryLevel next;
 
 		/**
-		 * Used to simplify cache initialization.
+		 * The write buffer write-through writes go through, or null if they
+		 * go straight to the next level.
 		 */
-		private byte cache_adds_counter = 0;
+		private final WriteBuffer write_buffer;
 
 		/**
-		 * Adds a cache line to the cache. If the cache is full, it evicts a
-		 * cache line at random to make room for the new cache line. Will not
-		 * evict a "dirty" cache line.
+		 * The L1 data cache, for an L1 instruction cache: a line the data
+		 * cache holds is copied from it rather than read from the next level,
+		 * which may not have the latest stores yet.
+		 */
+		private final Cache peer;
+
+		private final CacheStatistics statistics;
+
+		/**
+		 * The words the next fill reads a block into. A fill that evicts a
+		 * line swaps them with the victim's words and takes over the victim
+		 * line, so a miss in a full set allocates nothing.
+		 */
+		private int[] spare;
+
+		/**
+		 * Creates an L1 cache configured from the system properties.
 		 * 
-		 * @param line
-		 *            The line to add to the cache.
+		 * @param name
+		 *            "L1", "L1I" or "L1D".
+		 * @param next
+		 *            The L2 cache, or main memory.
+		 * @param write_buffer
+		 *            The buffer between the L1 and next.
+		 * @param peer
+		 *            The L1 data cache if this is the L1 instruction cache,
+		 *            otherwise null.
 		 */
-		private void add(L1CacheLine line) {
-			if (cache_adds_counter < CACHE_LENGTH) {
-				logger.debug("Adding cache line with tag " + line.getTag()
-						+ " to cache at empty position " + cache_adds_counter
-						+ ".");
-				cache[cache_adds_counter++] = line;
-			} else {
-				int cache_position = 0;
-				do {
-					cache_position = generator.nextInt(cache.length);
-				} while (cache[cache_position].isDirty());
-				logger.debug("Adding cache line with tag " + line.getTag()
-						+ " to cache at occupied position " + cache_position
-						+ ".");
-				cache[cache_position] = line;
+		static Cache firstLevel(String name, MemoryLevel next,
+				WriteBuffer write_buffer, Cache peer) {
+			return new Cache(name, Integer.getInteger(SETS_PROPERTY,
+					DEFAULT_SETS), Integer.getInteger(WAYS_PROPERTY,
+					DEFAULT_WAYS), Integer.getInteger(LINE_SIZE_PROPERTY,
+					CacheLine.WORDS_PER_LINE), policyProperty(POLICY_PROPERTY),
+					writePolicyProperty(WRITE_POLICY_PROPERTY,
+							DEFAULT_WRITE_POLICY), Integer.getInteger(
+							LATENCY_PROPERTY, 0), next, write_buffer, peer);
+		}
+
+		/**
+		 * Creates the L2 cache configured from the system properties.
+		 * 
+		 * @param next
+		 *            Main memory.
+		 * @return The L2 cache, or null if cache.l2.sets is not set.
+		 * @throws IllegalArgumentException
+		 *             If the L2 lines would be smaller than the L1 lines.
+		 */
+		static Cache secondLevel(MemoryLevel next) {
+			int sets = Integer.getInteger(L2_SETS_PROPERTY, 0);
+			if (sets == 0)
+				return null;
+			int l1_line_size = Integer.getInteger(LINE_SIZE_PROPERTY,
+					CacheLine.WORDS_PER_LINE);
+			int line_size = Integer.getInteger(L2_LINE_SIZE_PROPERTY,
+					l1_line_size);
+			if (line_size < l1_line_size)
+				throw new IllegalArgumentException(
+						"The L2 cache line size must be at least the L1 line size, not "
+								+ line_size + ".");
+			return new Cache("L2", sets, Integer.getInteger(L2_WAYS_PROPERTY,
+					DEFAULT_L2_WAYS), line_size,
+					policyProperty(L2_POLICY_PROPERTY), writePolicyProperty(
+							L2_WRITE_POLICY_PROPERTY, DEFAULT_L2_WRITE_POLICY),
+					Integer.getInteger(L2_LATENCY_PROPERTY, 0), next, null,
+					null);
+		}
+
+		private static ReplacementPolicy.Type policyProperty(String property) {
+			return ReplacementPolicy.Type.valueOf(System.getProperty(property,
+					DEFAULT_POLICY.name()).toUpperCase());
+		}
+
+		private static WritePolicy writePolicyProperty(String property,
+				WritePolicy default_policy) {
+			return WritePolicy.valueOf(System
+					.getProperty(property, default_policy.name())
+					.toUpperCase().replace('-', '_'));
+		}
+
+		/**
+		 * @param name
+		 *            Identifies the cache in reports.
+		 * @param sets
+		 *            The number of sets, a power of two.
+		 * @param ways
+		 *            The number of lines in each set, 1 to 32.
+		 * @param line_size
+		 *            The number of words in each line, a power of two that
+		 *            divides the memory size.
+		 * @param policy
+		 *            The replacement policy.
+		 * @param write_policy
+		 *            Whether writes go through to the next level or are
+		 *            written back.
+		 * @param latency
+		 *            The cycles each access takes.
+		 * @param next
+		 *            The level lines are filled from and written back to.
+		 * @param write_buffer
+		 *            The buffer write-through writes go through, or null to
+		 *            send them straight to next.
+		 * @param peer
+		 *            A cache to copy lines from before asking the next level,
+		 *            or null.
+		 * @throws IllegalArgumentException
+		 *             If the geometry is not supported.
+		 */
+		Cache(String name, int sets, int ways, int line_size,
+				ReplacementPolicy.Type policy, WritePolicy write_policy,
+				int latency, MemoryLevel next, WriteBuffer write_buffer,
+				Cache peer) {
+			if (sets < 1 || Integer.bitCount(sets) != 1)
+				throw new IllegalArgumentException(
+						"The number of cache sets must be a power of two, not "
+								+ sets + ".");
+			if (line_size < 1 || Integer.bitCount(line_size) != 1
+					|| next.size() % line_size != 0)
+				throw new IllegalArgumentException(
+						"The cache line size must be a power of two that divides the memory size, not "
+								+ line_size + ".");
+			if (latency < 0)
+				throw new IllegalArgumentException(
+						"The cache latency cannot be negative, not " + latency
+								+ ".");
+			this.name = name;
+			this.sets = sets;
+			this.ways = ways;
+			this.line_size = line_size;
+			this.offset_bits = Integer.numberOfTrailingZeros(line_size);
+			this.cache = new CacheLine[sets * ways];
+			this.policy_type = policy;
+			this.policy = policy.create(sets, ways);
+			this.write_policy = write_policy;
+			this.latency = latency;
+			this.next = next;
+			this.write_buffer = write_buffer;
+			this.peer = peer;
+			this.statistics = new CacheStatistics(name, sets * ways, line_size,
+					next.size());
+			this.spare = new int[line_size];
+			logger.debug(name + " cache: " + sets + " sets, " + ways
+					+ " ways, " + line_size + " words per line, " + policy
+					+ ", " + write_policy + ", " + latency + " cycles.");
+		}
+
+		/**
+		 * @return The name of the cache, e.g. "L1D".
+		 */
+		String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The number of words in each line.
+		 */
+		int getLineSize() {
+			return line_size;
+		}
+
+		/**
+		 * @return The cycles each access takes.
+		 */
+		int getLatency() {
+			return latency;
+		}
+
+		/**
+		 * @return The level lines are filled from and written back to.
+		 */
+		MemoryLevel getNext() {
+			return next;
+		}
+
+		/**
+		 * @return The counters for this cache.
+		 */
+		CacheStatistics getStatistics() {
+			return statistics;
+		}
+
+		/**
+		 * @return The address of the first word of the line holding an
+		 *         address, which is the line's tag.
+		 */
+		int tagOf(int address) {
+			return address & -line_size;
+		}
+
+		private int setOf(int address) {
+			return (address >>> offset_bits) & (sets - 1);
+		}
+
+		/**
+		 * Finds the way holding an address.
+		 * 
+		 * @return The position of the line in the cache array, or -1 if the
+		 *         address is not cached.
+		 */
+		private int find(int address) {
+			int tag = tagOf(address);
+			int base = setOf(address) * ways;
+			for (int i = base; i < base + ways; i++) {
+				CacheLine line = cache[i];
+				if (line != null && line.getTag() == tag)
+					return i;
 			}
+			return -1;
 		}
 
 		/**
-		 * Locates the line_tag of the cache line containing a given address.
+		 * Brings the block holding an address into the cache, from the peer
+		 * cache if it holds the block and otherwise from the next level.
 		 * 
 		 * @param address
-		 *            The address for which to find the corresponding cache
-		 *            line.
-		 * @return the line_tag of the cache line, or null if the address is not
-		 *         in the cache.
+		 *            Any address in the block.
+		 * @return The cycles taken to get the block.
 		 */
-		private L1CacheLine getCacheLine(int address) {
-			L1CacheLine line = null;
-			for (int i = 0; i < CACHE_LENGTH; i++) {
-				line = cache[i];
-				if (line != null && address >= line.getTag()
-						&& address < line.getTag() + L1CacheLine.WORDS_PER_LINE)
-					return line;
+		int fill(int address) {
+			int[] block = spare;
+			int cycles;
+			int i = peer == null ? -1 : peer.find(address);
+			if (i != -1) {
+				System.arraycopy(peer.cache[i].words, 0, block, 0, line_size);
+				cycles = peer.latency;
+			} else {
+				cycles = next.readBlock(address, block);
+				statistics.lineFilled(line_size);
 			}
-			return null;
+			add(tagOf(address), block);
+			return cycles;
+		}
+
+		/**
+		 * Writes a modified line to the next level and marks it unmodified.
+		 */
+		private void writeBack(CacheLine line) {
+			if (logger.isDebugEnabled())
+				logger.debug("Writing back cache line with tag "
+						+ line.getTag() + ".");
+			next.writeBlock(line.getTag(), line.words);
+			line.modified = false;
+			statistics.lineWrittenBack(line_size);
 		}
 
 		/**
-		 * Checks the cache for the contents of a given memory address. Iterates
-		 * through the tags of each line in the cache, and checks whether the
-		 * value of the search address is between the value of the tag line
-		 * address and the tag line address plus the number of words in the
-		 * cache line, inclusive.
+		 * Writes every modified line to the next level. The lines stay cached.
+		 * Does nothing for a write-through cache, whose writes are already on
+		 * their way to the next level.
+		 */
+		@Override
+		public synchronized void flush() {
+			for (CacheLine line : cache)
+				if (line != null && line.modified)
+					writeBack(line);
+		}
+
+		/**
+		 * Adds a block to its set as an unmodified line. If the set is full,
+		 * the replacement policy evicts one of the lines without writes in the
+		 * write buffer, writing it back first if it was modified. If every
+		 * line in the set has writes in the write buffer, the CPU stalls until
+		 * the memory controller has written one of them.
+		 * <p>
+		 * The evicted line is reused for the block, and its words become the
+		 * spare block for the next fill. This is safe because nothing else
+		 * holds on to a line without buffered writes: the memory controller
+		 * is done with a line once its last buffered write is counted off.
 		 * 
-		 * @param address
-		 *            The memory address to search for in the cache, i.e., the
-		 *            search address.
-		 * @return The contents of the specified address or null if the
-		 *         specified memory address is not in the cache.
+		 * @param tag
+		 *            The address of the first word of the block.
+		 * @param block
+		 *            The spare block, holding the words of the block.
 		 */
-		private Word read(int address) {
-			for (L1CacheLine line : cache) {
-				if (line != null) {
-					if (address >= line.getTag()
-							&& address < line.getTag()
-									+ L1CacheLine.WORDS_PER_LINE) {
-						logger.debug("Cache read hit.  Found address "
-								+ address + " in cache line with tag "
-								+ line.getTag() + ".");
-						return line.getWord(address - line.getTag());
-					}
+		private void add(int tag, int[] block) {
+			int set = setOf(tag);
+			int base = set * ways;
+			for (int way = 0; way < ways; way++) {
+				if (cache[base + way] == null) {
+					if (logger.isDebugEnabled())
+						logger.debug("Adding cache line with tag " + tag
+								+ " to cache at empty position "
+								+ (base + way) + ".");
+					spare = new int[line_size];
+					place(new CacheLine(tag, block, (byte) 0), set, way);
+					return;
 				}
 			}
-			logger.debug("Cache read miss.");
-			return null;
+
+			int candidates = evictableWays(base);
+			if (candidates == 0) {
+				statistics.dirtyEvictionStall();
+				logger.debug("Every line in set " + set
+						+ " is dirty.  Waiting on memory controller.");
+				while ((candidates = evictableWays(base)) == 0)
+					write_buffer.awaitProgress();
+			}
+			int way = policy.victim(set, candidates);
+			statistics.evicted();
+			CacheLine line = cache[base + way];
+			if (line.modified)
+				writeBack(line);
+			if (logger.isDebugEnabled())
+				logger.debug("Adding cache line with tag " + tag
+						+ " to cache at occupied position " + (base + way)
+						+ ".");
+			spare = line.words;
+			line.tag = tag;
+			line.words = block;
+			place(line, set, way);
+		}
+
+		private void place(CacheLine line, int set, int way) {
+			cache[set * ways + way] = line;
+			policy.filled(set, way);
+		}
+
+		/**
+		 * @return Bitmask of the ways of a full set whose lines have no writes
+		 *         waiting in the write buffer.
+		 */
+		private int evictableWays(int base) {
+			int candidates = 0;
+			for (int way = 0; way < ways; way++)
+				if (!cache[base + way].hasBufferedWrites())
+					candidates |= 1 << way;
+			return candidates;
 		}
 
 		/**
-		 * Updates the writes bitmask on the cache line that contains the
-		 * specified address. If the value of the add parameter is true, this
-		 * method adds the value of the line_tag parameter to the cache line
-		 * writes bitmask, otherwise it subtracts the value of the line_tag
-		 * parameter from the cache line writes bitmask.
+		 * Locates the cache line containing a given address.
 		 * 
 		 * @param address
-		 *            The address whose cache line writes bitmask to update.
-		 * @param add
-		 *            Whether to add or subtract the value of line_tag from the
-		 *            cache line writes bitmask.
-		 * @param line_tag
+		 *            The address for which to find the corresponding cache
+		 *            line.
+		 * @return the cache line, or null if the address is not in the cache.
+		 */
+		private CacheLine getCacheLine(int address) {
+			int i = find(address);
+			return i == -1 ? null : cache[i];
+		}
+
+		/**
+		 * Checks the cache for the contents of a given memory address, looking
+		 * only in the set the address maps to.
+		 * 
+		 * @param address
+		 *            The memory address to search for in the cache, i.e., the
+		 *            search address.
+		 * @return The contents of the specified address or CACHE_MISS if the
+		 *         specified memory address is not in the cache.
 		 */
-		private void updateWrites(int address, boolean add) {
-			L1CacheLine line = l1_cache.getCacheLine(address);
-			line.updateWrites(add);
+		int read(int address) {
+			int i = find(address);
+			if (i == -1) {
+				logger.debug("Cache read miss.");
+				statistics.miss(address, false);
+				return CACHE_MISS;
+			}
+			CacheLine line = cache[i];
+			if (logger.isDebugEnabled())
+				logger.debug("Cache read hit.  Found address " + address
+						+ " in cache line with tag " + line.getTag() + ".");
+			statistics.hit(address, false);
+			policy.accessed(i / ways, i % ways);
+			return line.getWord(address - line.getTag());
 		}
 
 		/**
@@ -159,56 +544,226 @@ public class CPU implements CPUConstants {
 		 * <li>Cache Miss.</li>
 		 * </ol>
 		 * For a cache hit, this method updates the value in the cache with the
-		 * value of the word parameter, sets the appropriate dirty line_tag on
-		 * the cache line, and adds the value of the word parameter to the write
-		 * buffer. For a cache miss, this method returns false.
+		 * value of the word parameter. A write-through cache then sends the
+		 * word to the next level (an L1 cache counts the pending write on the
+		 * cache line and adds it to the write buffer); a write-back cache marks
+		 * the line modified. For a cache miss, this method first brings the
+		 * line into the cache and then proceeds as for a hit.
 		 * 
 		 * @param word
 		 *            The content to write to the cache.
 		 * @param address
 		 *            The main memory address of the content to write to the
 		 *            cache.
-		 * @return true if a cache hit; otherwise false.
-		 */
-		private boolean write(Word word, int address) {
-			for (L1CacheLine line : cache) {
-				if (line != null) {
-					if (address >= line.getTag()
-							&& address < line.getTag()
-									+ L1CacheLine.WORDS_PER_LINE) {
-						logger.debug("Cache write hit.  Found address "
-								+ address + " in cache line with tag "
-								+ line.getTag() + ".");
-						int tag = line.getTag();
-						byte index = (byte) (address - tag);
-						line.setWord(word, index);
-						line.writes++;
-						return write_buffer.addToBuffer(word, address, tag);
-					}
-				}
+		 * @return The cycles the write took: the latency of this cache, plus
+		 *         the time to fill the line on a miss.
+		 */
+		int write(int word, int address) {
+			int cycles = latency;
+			int i = find(address);
+			if (i == -1) {
+				logger.debug("Cache write miss.");
+				statistics.miss(address, true);
+				cycles += fill(address);
+				i = find(address);
+			} else {
+				if (logger.isDebugEnabled())
+					logger.debug("Cache write hit.  Found address " + address
+							+ " in cache line with tag " + cache[i].getTag()
+							+ ".");
+				statistics.hit(address, true);
+				policy.accessed(i / ways, i % ways);
 			}
-			logger.debug("Cache write miss.");
-			return false;
+			CacheLine line = cache[i];
+			line.setWord(word, address - line.getTag());
+			if (write_policy == WritePolicy.WRITE_BACK) {
+				line.modified = true;
+				return cycles;
+			}
+			statistics.wordsWrittenThrough(1);
+			if (write_buffer != null) {
+				line.updateWrites(true);
+				if (write_buffer.addToBuffer(word, address, line))
+					statistics.writeBufferStall();
+			} else
+				next.writeWord(word, address);
+			return cycles;
+		}
+
+		/**
+		 * Copies the part of a line holding a smaller block to a cache above,
+		 * filling the line on a miss.
+		 */
+		@Override
+		public synchronized int readBlock(int address, int[] block) {
+			int cycles = latency;
+			int i = find(address);
+			if (i == -1) {
+				statistics.miss(address, false);
+				cycles += fill(address);
+				i = find(address);
+			} else {
+				statistics.hit(address, false);
+				policy.accessed(i / ways, i % ways);
+			}
+			CacheLine line = cache[i];
+			System.arraycopy(line.words, (address & -block.length)
+					- line.getTag(), block, 0, block.length);
+			return cycles;
+		}
+
+		/**
+		 * Takes a line written back by a cache above, allocating a line for it
+		 * on a miss.
+		 */
+		@Override
+		public synchronized void writeBlock(int address, int[] block) {
+			int i = find(address);
+			if (i == -1) {
+				statistics.miss(address, true);
+				fill(address);
+				i = find(address);
+			} else {
+				statistics.hit(address, true);
+				policy.accessed(i / ways, i % ways);
+			}
+			CacheLine line = cache[i];
+			System.arraycopy(block, 0, line.words, (address & -block.length)
+					- line.getTag(), block.length);
+			if (write_policy == WritePolicy.WRITE_BACK)
+				line.modified = true;
+			else {
+				statistics.wordsWrittenThrough(block.length);
+				next.writeBlock(address, block);
+			}
+		}
+
+		/**
+		 * Takes a word written through a cache above.
+		 */
+		@Override
+		public synchronized void writeWord(int word, int address) {
+			write(word, address);
+		}
+
+		/**
+		 * @return The size of the memory behind the cache.
+		 */
+		@Override
+		public int size() {
+			return next.size();
+		}
+
+		/**
+		 * Reads an address without counting an access or changing any cache.
+		 * 
+		 * @return The contents of the address in this cache, or in the levels
+		 *         below it if it is not cached.
+		 */
+		@Override
+		public synchronized int peek(int address) {
+			int i = find(address);
+			return i == -1 ? next.peek(address) : cache[i].getWord(address
+					- cache[i].getTag());
+		}
+
+		/**
+		 * Writes an address in this cache, if it holds the address, and in
+		 * every level below, without counting an access or marking a line
+		 * modified. Used when memory is written from outside the machine.
+		 */
+		@Override
+		public synchronized void poke(int word, int address) {
+			update(word, address);
+			next.poke(word, address);
+		}
+
+		/**
+		 * Updates the cached copy of an address, if there is one, without
+		 * counting an access or marking the line modified. Keeps an L1
+		 * instruction cache in step with stores made through the data cache.
+		 */
+		private void update(int word, int address) {
+			int i = find(address);
+			if (i != -1)
+				cache[i].setWord(word, address - cache[i].getTag());
 		}
 
 		/**
 		 * @return the cache
 		 */
-		L1CacheLine[] getCache() {
+		CacheLine[] getCache() {
 			return cache;
 		}
+
+		/**
+		 * Writes the geometry, policies and lines of the cache and the
+		 * history of its replacement policy to a snapshot (see
+		 * {@link Snapshot}). The write buffer must be empty.
+		 */
+		synchronized void writeState(DataOutput out) throws IOException {
+			out.writeInt(sets);
+			out.writeInt(ways);
+			out.writeInt(line_size);
+			out.writeUTF(policy_type.name());
+			out.writeUTF(write_policy.name());
+			for (CacheLine line : cache) {
+				out.writeBoolean(line != null);
+				if (line == null)
+					continue;
+				out.writeInt(line.tag);
+				out.writeBoolean(line.modified);
+				Snapshot.writeWords(out, line.words, 0, line_size);
+			}
+			policy.writeState(out);
+		}
+
+		/**
+		 * Replaces the lines of the cache and the history of its replacement
+		 * policy with those of a snapshot. The write buffer must be empty.
+		 * 
+		 * @throws IOException
+		 *             If the snapshot was taken of a cache with a different
+		 *             geometry or different policies.
+		 */
+		synchronized void readState(DataInput in) throws IOException {
+			Snapshot.expect(name + " cache sets", sets, in.readInt());
+			Snapshot.expect(name + " cache ways", ways, in.readInt());
+			Snapshot.expect(name + " cache words per line", line_size,
+					in.readInt());
+			String policies = in.readUTF() + ", " + in.readUTF();
+			if (!policies.equals(policy_type.name() + ", "
+					+ write_policy.name()))
+				throw new IOException("The snapshot " + name + " cache is "
+						+ policies + ", not " + policy_type + ", "
+						+ write_policy + ".");
+			for (int i = 0; i < cache.length; i++) {
+				if (!in.readBoolean()) {
+					cache[i] = null;
+					continue;
+				}
+				int tag = in.readInt();
+				boolean modified = in.readBoolean();
+				int[] block = new int[line_size];
+				Snapshot.readWords(in, block, 0, line_size);
+				cache[i] = new CacheLine(tag, block, (byte) 0);
+				cache[i].modified = modified;
+			}
+			policy.readState(in);
+		}
 	}
 
 	/**
-	 * Represents the structure of each line in the L1 cache. We have not been
+	 * Represents the structure of each line in a cache. We have not been
 	 * directed to use a specific cache line structure, so for our case each
-	 * line contains 1 address tag, 6 Words, and 1 writes bitmask. This puts our
-	 * total L1 cache contents at 96 Words (16 lines x 6 words per line).
+	 * line contains 1 address tag, the words of one memory block, and 1 writes
+	 * bitmask. With the default geometry this puts our total L1 cache contents
+	 * at 128 Words (16 lines x 8 words per line).
 	 */
-	static class L1CacheLine {
+	static class CacheLine {
 
 		/**
-		 * The number of words in each cache line.
+		 * The default number of words in each cache line.
 		 */
 		public static final int WORDS_PER_LINE = 8;
 
@@ -221,12 +776,19 @@ public class CPU implements CPUConstants {
 		 * The contents of the main memory location identified by the tag
 		 * address.
 		 */
-		private Word[] words;
+		private int[] words;
+
+		/**
+		 * The number of writes to this line still in the write buffer.
+		 * Incremented by the CPU and decremented by the memory controller.
+		 */
+		private final AtomicInteger writes;
 
 		/**
-		 * A bitmask for cache operations.
+		 * Set when a write-back cache writes to this line, until the line is
+		 * written back to main memory.
 		 */
-		private byte writes;
+		private boolean modified;
 
 		/**
 		 * Creates a new cache line from the given parameters.
@@ -235,17 +797,17 @@ public class CPU implements CPUConstants {
 		 * @param block
 		 * @param writes
 		 */
-		private L1CacheLine(int address, Word[] block, byte writes) {
+		private CacheLine(int address, int[] block, byte writes) {
 			this.tag = address;
 			this.words = block;
-			this.writes = writes;
+			this.writes = new AtomicInteger(writes);
 		}
 
 		/**
 		 * @return the writes
 		 */
 		byte getFlags() {
-			return writes;
+			return (byte) writes.get();
 		}
 
 		/**
@@ -258,7 +820,7 @@ public class CPU implements CPUConstants {
 		/**
 		 * @return the words
 		 */
-		private Word getWord(int index) {
+		private int getWord(int index) {
 			return words[index];
 		}
 
@@ -272,14 +834,21 @@ public class CPU implements CPUConstants {
 		 *         corresponding address location in main memory.
 		 */
 		private boolean isDirty() {
-			return writes > 0;
+			return modified || hasBufferedWrites();
+		}
+
+		/**
+		 * @return true if writes to this line are still in the write buffer.
+		 */
+		private boolean hasBufferedWrites() {
+			return writes.get() > 0;
 		}
 
 		/**
 		 * @param word
 		 * @param line_tag
 		 */
-		private void setWord(Word word, int index) {
+		private void setWord(int word, int index) {
 			words[index] = word;
 		}
 
@@ -290,8 +859,9 @@ public class CPU implements CPUConstants {
 		 */
 		@Override
 		public String toString() {
-			return "L1CacheLine [tag=" + tag + ", words="
-					+ Arrays.toString(words) + ", writes=" + writes + "]";
+			return "CacheLine [tag=" + tag + ", words="
+					+ Arrays.toString(words) + ", writes=" + writes
+					+ ", modified=" + modified + "]";
 		}
 
 		/**
@@ -309,11 +879,12 @@ public class CPU implements CPUConstants {
 		 */
 		private void updateWrites(boolean add) {
 			if (add)
-				this.writes++;
+				this.writes.incrementAndGet();
 			else
-				this.writes--;
-			logger.debug("Updated the value of line tag " + this.tag
-					+ " writes counter to " + this.writes + ".");
+				this.writes.decrementAndGet();
+			if (logger.isDebugEnabled())
+				logger.debug("Updated the value of line tag " + this.tag
+						+ " writes counter to " + this.writes + ".");
 		}
 	}
 
@@ -321,158 +892,231 @@ public class CPU implements CPUConstants {
 	 * Maintains synchronization of the memory contents between the L1 cache and
 	 * main memory by use of an intermediary write buffer. Runs as a separate
 	 * Runnable to simulate the hardware separation between the CPU and the
-	 * memory controller. Waits for the CPU to write to the write buffer and
-	 * then processes the contents of the buffer until the buffer is empty
-	 * again, at which time it returns to the waiting state until the CPU makes
-	 * another write to the write buffer.
+	 * memory controller. Processes the contents of the write buffer until it
+	 * is empty, at which time it waits until the CPU makes another write to
+	 * the write buffer.
+	 * <p>
+	 * With -Dmemory.controller=synchronous the controller has no thread of its
+	 * own. Instead the CPU clocks it after every step, and it writes up to
+	 * memory.controller.drain buffer entries (1 by default) to main memory for
+	 * each cycle that has passed. A CPU stall on the write buffer then
+	 * drains the buffer on the CPU's thread. Main memory is updated at the
+	 * same points in every run, so runs are reproducible cycle for cycle.
 	 */
 	static class MemoryController implements Runnable {
 
-		private boolean terminate = false;
+		public static final String MODE_PROPERTY = "memory.controller";
+
+		public static final String DRAIN_PROPERTY = "memory.controller.drain";
+
+		public static final int DEFAULT_DRAIN = 1;
+
+		private volatile boolean terminate = false;
+
+		private final boolean synchronous;
+
+		/**
+		 * Buffer entries written per cycle in synchronous mode.
+		 */
+		private final int drain_per_cycle;
+
+		/**
+		 * The buffer this controller empties.
+		 */
+		private final WriteBuffer write_buffer;
+
+		/**
+		 * Creates a memory controller configured from the system properties,
+		 * with an empty write buffer.
+		 * 
+		 * @param target
+		 *            Where the write buffer's writes go: the level below the
+		 *            L1 data cache.
+		 */
+		MemoryController(MemoryLevel target) {
+			String mode = System.getProperty(MODE_PROPERTY, "threaded");
+			if (!mode.equals("threaded") && !mode.equals("synchronous"))
+				throw new IllegalArgumentException(
+						"The memory controller mode must be threaded or synchronous, not "
+								+ mode + ".");
+			synchronous = mode.equals("synchronous");
+			drain_per_cycle = Integer.getInteger(DRAIN_PROPERTY, DEFAULT_DRAIN);
+			if (drain_per_cycle < 1)
+				throw new IllegalArgumentException(
+						"The memory controller must drain at least 1 entry per cycle, not "
+								+ drain_per_cycle + ".");
+			write_buffer = new WriteBuffer(target, synchronous);
+		}
+
+		/**
+		 * @return The buffer this controller empties.
+		 */
+		WriteBuffer getWriteBuffer() {
+			return write_buffer;
+		}
+
+		/**
+		 * @return true if the CPU clocks this controller instead of it running
+		 *         in its own thread.
+		 */
+		boolean isSynchronous() {
+			return synchronous;
+		}
+
+		/**
+		 * Advances a synchronous controller by a number of CPU cycles.
+		 * 
+		 * @param cycles
+		 *            The cycles since the controller was last clocked.
+		 */
+		void clock(long cycles) {
+			long entries = cycles * drain_per_cycle;
+			for (long i = 0; i < entries; i++)
+				if (!write_buffer.writeToMainMemory())
+					break;
+		}
 
 		@Override
 		public void run() {
-			while (!terminate) {
-				synchronized (write_buffer) {
-					if (write_buffer.isEmpty()) {
-						try {
-							logger.debug("Memory controller is waiting for an element to be added to the write buffer.");
-							write_buffer.wait();
-
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-						logger.debug("Memory controller has been notified that an element has been added to the write buffer.");
-						write_buffer.writeToMainMemory();
-					} else {
-						write_buffer.writeToMainMemory();
-					}
-				}
-				synchronized (this) {
-					this.notify();
-				}
-			}
-			while (!write_buffer.isEmpty()) {
-				write_buffer.writeToMainMemory();
+			write_buffer.setConsumer(Thread.currentThread());
+			while (true) {
+				if (write_buffer.writeToMainMemory())
+					continue;
+				if (terminate)
+					break;
+				logger.debug("Memory controller is waiting for an element to be added to the write buffer.");
+				write_buffer.awaitElement(this);
 			}
 		}
 
 		/**
-		 * Tells this runnable to terminate the run method.
+		 * Tells this runnable to terminate the run method once the write
+		 * buffer is empty.
 		 */
 		public void terminate() {
-			synchronized (write_buffer) {
-				terminate = true;
-				write_buffer.notify();
-			}
+			terminate = true;
+			if (synchronous)
+				write_buffer.drain();
+			else
+				write_buffer.wakeConsumer();
+		}
+
+		boolean isTerminating() {
+			return terminate;
 		}
 	}
 
 	/**
 	 * Holds data being written back from the cache to main memory. This is a
 	 * variation of write-through caching called buffered write-through.
-	 * Implements a simple FIFO queue. Notifies the memory controller when the
-	 * write buffer has elements to process.
+	 * <p>
+	 * The buffer is a lock-free ring with one producer (the CPU) and one
+	 * consumer (the memory controller). Each side only writes its own index:
+	 * the CPU fills a slot and then publishes it by advancing the volatile
+	 * tail, and the memory controller writes the slot to main memory and then
+	 * frees it by advancing the volatile head. Writes therefore reach main
+	 * memory in the order the CPU made them. A side that has to wait (the CPU
+	 * on a full buffer, the memory controller on an empty one) spins briefly
+	 * and then parks until the other side unparks it.
+	 * <p>
+	 * The depth is 4 unless set with the write.buffer.depth system property,
+	 * and must be a power of two.
 	 */
 	static class WriteBuffer {
 
+		public static final String DEPTH_PROPERTY = "write.buffer.depth";
+
+		public static final int DEFAULT_DEPTH = 4;
+
 		/**
-		 * Represents the structure of each element in the write buffer queue.
-		 * Each element contains the main memory address, the contents of that
-		 * address, and a line_tag value that indicates the line_tag of the
-		 * address on its cache line in the L1 cache.
+		 * How many times a waiting side checks again before parking.
 		 */
-		private class WriteBufferElement {
-			private int address;
-			private Word word;
-			private int line_tag;
+		private static final int SPINS = 1000;
 
-			/**
-			 * @param address
-			 * @param word
-			 */
-			private WriteBufferElement(int address, Word word, int line_tag) {
-				this.address = address;
-				this.word = word;
-				this.line_tag = line_tag;
-			}
+		private final int mask;
 
-			/**
-			 * @return the address
-			 */
-			public int getAddress() {
-				return address;
-			}
+		private final int[] addresses;
 
-			public byte getIndex() {
-				return (byte) (address - line_tag);
-			}
+		private final int[] words;
 
-			/**
-			 * @return the line_tag
-			 */
-			public int getLineTag() {
-				return line_tag;
-			}
+		/**
+		 * The cache line each write was made to, so the memory controller can
+		 * mark the write as done without looking the line up.
+		 */
+		private final CacheLine[] lines;
 
-			/**
-			 * @return the word
-			 */
-			public Word getWord() {
-				return word;
-			}
+		/**
+		 * The number of writes the memory controller has finished. Only
+		 * written by the memory controller.
+		 */
+		private volatile long head = 0;
 
-			/*
-			 * (non-Javadoc)
-			 * 
-			 * @see java.lang.Object#toString()
-			 */
-			@Override
-			public String toString() {
-				return "WriteBufferElement [address=" + address + ", word="
-						+ word + ", line_tag=" + line_tag + "]";
-			}
-		}
+		/**
+		 * The number of writes the CPU has added. Only written by the CPU.
+		 */
+		private volatile long tail = 0;
+
+		private volatile Thread consumer;
+
+		private volatile boolean consumer_parked;
+
+		private volatile Thread producer;
+
+		private volatile boolean producer_parked;
+
+		/**
+		 * Where writes go: the level below the L1 data cache.
+		 */
+		private final MemoryLevel target;
 
 		/**
-		 * FIFO queue of size 4 serves as a write write_buffer. Holds the dirty
-		 * L1CacheLines as elements in the queue. L1CacheLines line_tag bits are
-		 * ignored, and the L1CacheLine word is written to the main memory
-		 * address specified by the L1CacheLine tag value.
+		 * True if the memory controller is run on the CPU's thread.
 		 */
-		private final Queue<WriteBufferElement> buffer = new ArrayBlockingQueue<WriteBufferElement>(
-				4);
+		private final boolean synchronous;
+
+		WriteBuffer(MemoryLevel target, boolean synchronous) {
+			this.target = target;
+			this.synchronous = synchronous;
+			int depth = Integer.getInteger(DEPTH_PROPERTY, DEFAULT_DEPTH);
+			if (depth < 1 || Integer.bitCount(depth) != 1)
+				throw new IllegalArgumentException(
+						"The write buffer depth must be a power of two, not "
+								+ depth + ".");
+			mask = depth - 1;
+			addresses = new int[depth];
+			words = new int[depth];
+			lines = new CacheLine[depth];
+		}
 
 		/**
-		 * Adds a dirty cache value to the write buffer for synchronization with
-		 * main memory. If the write_buffer is full, the add is blocked and the
-		 * CPU will stall until there is room in the write_buffer.
+		 * Adds a cache write to the write buffer for synchronization with main
+		 * memory. If the write_buffer is full, the CPU will stall until there
+		 * is room in the write_buffer.
 		 * 
 		 * @param word
+		 *            The word written.
 		 * @param address
-		 * @param line_tag
-		 * @return
-		 */
-		private boolean addToBuffer(Word word, int address, int line_tag) {
-			WriteBufferElement contents = new WriteBufferElement(address, word,
-					line_tag);
-			boolean success = false;
-			while (buffer.size() == 4) {
-				synchronized (memory_controller) {
-					try {
-						logger.debug("Buffer is full.  Waiting on memory controller to process buffer.");
-						memory_controller.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-			}
-			synchronized (this) {
-				success = buffer.add(contents);
-				logger.debug("Element added to write write_buffer.  Notifying memory controller.");
-				notify();
+		 *            The main memory address written to.
+		 * @param line
+		 *            The cache line holding the address.
+		 * @return true if the CPU had to wait for room in the buffer.
+		 */
+		private boolean addToBuffer(int word, int address, CacheLine line) {
+			long slot = tail;
+			boolean stalled = slot - head > mask;
+			if (stalled) {
+				logger.debug("Buffer is full.  Waiting on memory controller to process buffer.");
+				awaitWriteBack(slot - mask);
 			}
-			return success;
+			int index = (int) slot & mask;
+			addresses[index] = address;
+			words[index] = word;
+			lines[index] = line;
+			tail = slot + 1;
+			logger.debug("Element added to write write_buffer.  Notifying memory controller.");
+			if (consumer_parked)
+				wakeConsumer();
+			return stalled;
 		}
 
 		/**
@@ -481,140 +1125,384 @@ public class CPU implements CPUConstants {
 		 * @return true if this WriteBuffer contains no elements.
 		 */
 		private boolean isEmpty() {
-			return buffer.isEmpty();
+			return head == tail;
+		}
+
+		/**
+		 * Stalls the CPU until the memory controller has finished the given
+		 * number of writes in all. A synchronous memory controller is run on
+		 * the CPU's thread until it has.
+		 */
+		private void awaitWriteBack(long writes) {
+			if (synchronous) {
+				while (head < writes)
+					writeToMainMemory();
+				return;
+			}
+			for (int i = 0; i < SPINS; i++)
+				if (head >= writes)
+					return;
+			producer = Thread.currentThread();
+			while (head < writes) {
+				producer_parked = true;
+				// Checked again after announcing the park, so a write finished
+				// in between is not missed.
+				if (head < writes)
+					LockSupport.park(this);
+				producer_parked = false;
+			}
+		}
+
+		/**
+		 * Stalls the CPU until the memory controller has finished at least one
+		 * more write. Used when every line of a cache set is waiting on the
+		 * write buffer.
+		 */
+		private void awaitProgress() {
+			if (!isEmpty())
+				awaitWriteBack(head + 1);
 		}
 
 		/**
-		 * Retrieves and writes the head of this FIFO queue to main memory.
-		 * Updates the line_tag on the cache line to reflect the synchronization
-		 * between the cache and main memory of the address that was written to.
+		 * Stalls the CPU until every write in the buffer is in main memory.
+		 */
+		private void drain() {
+			awaitWriteBack(tail);
+		}
+
+		private void setConsumer(Thread consumer) {
+			this.consumer = consumer;
+		}
+
+		private void wakeConsumer() {
+			Thread thread = consumer;
+			if (thread != null)
+				LockSupport.unpark(thread);
+		}
+
+		/**
+		 * Parks the memory controller until the CPU adds a write or the
+		 * controller is told to terminate.
+		 */
+		private void awaitElement(MemoryController controller) {
+			for (int i = 0; i < SPINS; i++)
+				if (!isEmpty())
+					return;
+			consumer_parked = true;
+			if (isEmpty() && !controller.isTerminating())
+				LockSupport.park(this);
+			consumer_parked = false;
+		}
+
+		/**
+		 * Writes the oldest write in this FIFO queue to the level below the
+		 * L1 data cache (the L2 cache or main memory), then removes it and
+		 * marks it done on its cache line.
 		 * 
-		 * @return true if successful, otherwise false;
+		 * @return true if a write was processed, false if the buffer was
+		 *         empty.
 		 */
 		private boolean writeToMainMemory() {
-			boolean success = true;
-			try {
-				WriteBufferElement buffer_element = buffer.remove();
-				logger.debug("Removing line " + buffer_element
-						+ " From write_buffer.");
-				Word word = buffer_element.getWord();
-				int address = buffer_element.getAddress();
-				Memory.getInstance().write(word, address);
-				l1_cache.updateWrites(address, false);
-			} catch (NoSuchElementException | IndexOutOfBoundsException e) {
-				success = false;
-			}
-			return success;
+			long slot = head;
+			if (slot == tail)
+				return false;
+			int index = (int) slot & mask;
+			CacheLine line = lines[index];
+			if (logger.isDebugEnabled())
+				logger.debug("Writing " + words[index] + " to address "
+						+ addresses[index] + " from write_buffer.");
+			target.writeWord(words[index], addresses[index]);
+			lines[index] = null;
+			line.updateWrites(false);
+			head = slot + 1;
+			if (producer_parked)
+				LockSupport.unpark(producer);
+			return true;
 		}
 	}
 
 	private static final Logger logger = LogManager.getLogger(CPU.class
 			.getName());
-	private static CPU INSTANCE = null;
-	public static Boolean cont_execution = true;
-	public static int prog_step = 0;
-	public static int cycle_count = 0;
-	private Map<String, Register> regMap = new HashMap<String, Register>();
+
+	/**
+	 * The machine this CPU belongs to.
+	 */
+	private final Machine machine;
+
+	/**
+	 * The machine's main memory.
+	 */
+	private final Memory memory;
+	private boolean cont_execution = true;
+	private int prog_step = 0;
+	private final RegisterFile registers = new RegisterFile();
+
+	/**
+	 * Counts the cycles this CPU spends and the CPI of each instruction class.
+	 */
+	private final TimingModel timing = new TimingModel();
 	private IRDecoder irdecoder;
 	private ALU alu;
+
+	/**
+	 * Selects how instructions are dispatched to their opcode handlers:
+	 * "table" (the default) loads the handler from opcodeHandlers, "switch"
+	 * switches on the opcode with a call site per opcode, as the CPU did
+	 * before the table. The switch is kept as the baseline DispatchBenchmark
+	 * compares the table with.
+	 */
+	public static final String DISPATCH_PROPERTY = "cpu.dispatch";
+
+	/**
+	 * The opcode handlers, indexed by opcode.
+	 */
+	private final OpcodeHandler[] opcodeHandlers;
+
+	/**
+	 * True if instructions are dispatched with a switch on the opcode instead
+	 * of through opcodeHandlers.
+	 */
+	private final boolean switch_dispatch;
 	public String input_buffer = "";
 	public int character_pointer = 0;
 	public int memory_stack = 2047;
 	/**
 	 * The memory write write_buffer with a fast FIFO algorithm.
 	 */
-	private static WriteBuffer write_buffer = new WriteBuffer();
+	private final WriteBuffer write_buffer;
 	/**
 	 * Maintains memory state by managing the reads and writes amongst the
 	 * components of memory.
 	 */
-	private static MemoryController memory_controller = new MemoryController();
+	private final MemoryController memory_controller;
+
+	/**
+	 * The cycle count when a synchronous memory controller was last clocked.
+	 */
+	private long clocked_cycle_count;
 
 	/**
 	 * Runs the memory_controller asynchronously in a separate dedicated thread.
 	 */
-	private Thread memory_controller_thread = new Thread(memory_controller,
-			"memory_controller");
+	private final Thread memory_controller_thread;
+
+	/**
+	 * The optional L2 cache, or null.
+	 */
+	private final Cache l2_cache;
+
+	/**
+	 * The L1 cache data is read from and written to.
+	 */
+	private final Cache data_cache;
+
+	/**
+	 * The L1 cache instructions are fetched from. The same cache as
+	 * data_cache unless the L1 is split.
+	 */
+	private final Cache instruction_cache;
+
+	/**
+	 * The number of reads and writes the CPU has made through the caches,
+	 * for the average memory access time.
+	 */
+	private long memory_accesses;
 
 	/**
-	 * The CPU's L1 cache.
+	 * The cycles those reads and writes took.
 	 */
-	private static final L1Cache l1_cache = new L1Cache();
+	private long memory_access_cycles;
 
 	private boolean waitForInterrupt;
 	private boolean jumpTaken;
+
+	/**
+	 * The number of instructions completed from memory (instructions typed
+	 * into the GUI are not counted).
+	 */
+	private long instruction_count;
+
+	/**
+	 * The cycle count at which "continue" and "fast run" stop.
+	 */
+	private long cycle_limit = Long.MAX_VALUE;
+
+	/**
+	 * Set when "continue" or "fast run" last stopped at the cycle limit.
+	 */
+	private boolean stoppedAtCycleLimit;
+
+	/**
+	 * Micro steps run since "continue" or "fast run" started that added no
+	 * cycles, such as the steps of TRAP. Each counts as a cycle towards the
+	 * cycle limit, so an instruction stuck on one still reaches it.
+	 */
+	private long idle_steps;
 	private boolean bootloaderRunning;
 	private String currentExecution = "";
 
-	// Constructor
-	private CPU() {
-		memory_controller_thread.start();
-
-		// 4 General Purpose Registers(GPRs)
-		regMap.put(R0, new Register());
-		regMap.put(R1, new Register());
-		regMap.put(R2, new Register());
-		regMap.put(R3, new Register());
-
-		// 3 Index Registers
-		regMap.put(X1, new Register());
-		regMap.put(X2, new Register());
-		regMap.put(X3, new Register());
-
-		// Special registers
-		regMap.put(PC, new Register(12));
-		regMap.put(IR, new Register());
-		regMap.put(CC, new Register(4));
-		regMap.put(MAR, new Register());
-		regMap.put(MDR, new Register());
-		regMap.put(MSR, new Register());
-		regMap.put(MFR, new Register(4));
-
-		// Assuming EA should be as large as the MAR register
-		regMap.put(EA, new Register());
-
-		// ALU Registers
-		regMap.put(OP1, new Register());
-		regMap.put(OP2, new Register());
-		regMap.put(OP3, new Register());
-		regMap.put(OP4, new Register());
-		regMap.put(RESULT, new Register());
-		regMap.put(RESULT2, new Register());
-
-		// Registers for Load and Store instructions
-		regMap.put(OPCODE, new Register(InstructionBitFormats.OPCODE_SIZE));
-		regMap.put(IX, new Register(InstructionBitFormats.LD_STR_IX_SIZE));
-		regMap.put(R, new Register(InstructionBitFormats.LD_STR_R_SIZE));
-		regMap.put(I, new Register(InstructionBitFormats.LD_STR_I_SIZE));
-		regMap.put(ADDR, new Register(InstructionBitFormats.LD_STR_ADDR_SIZE));
-
-		// Registers for register-register instructions
-		regMap.put(RX, new Register(InstructionBitFormats.XY_ARITH_RX_SIZE));
-		regMap.put(RY, new Register(InstructionBitFormats.XY_ARITH_RY_SIZE));
-
-		// Registers for shift instructions
-		regMap.put(AL, new Register(InstructionBitFormats.SHIFT_AL_SIZE));
-		regMap.put(LR, new Register(InstructionBitFormats.SHIFT_LR_SIZE));
-		regMap.put(COUNT, new Register(InstructionBitFormats.SHIFT_COUNT_SIZE));
-
-		// Registers for IO instructions
-		regMap.put(DEVID, new Register(InstructionBitFormats.IO_DEVID_SIZE));
-
-		// Registers for TRAP instructions
-		regMap.put(TRAPCODE, new Register(InstructionBitFormats.TRAP_CODE_SIZE));
+	/**
+	 * The registered {@link MachineListener}s. Replaced, never modified, when
+	 * a listener is added or removed.
+	 */
+	private volatile MachineListener[] listeners = new MachineListener[0];
+
+	/**
+	 * Registers written since listeners were last notified; bit n stands for
+	 * register slot n.
+	 */
+	private long changedRegisters;
+
+	/**
+	 * Minimum time between register notifications while running, in
+	 * nanoseconds. 0 notifies after every instruction.
+	 */
+	private long registerPublishInterval = 0;
+	private long lastRegisterPublish;
+
+	/**
+	 * If true, a HLT at the end of a user program restarts the boot program
+	 * so the next program can be loaded, as the GUI expects.
+	 */
+	private boolean haltRestartsBoot = true;
 
+	/**
+	 * Creates a CPU with its caches, write buffer and memory controller, all
+	 * configured from the system properties. Created by its {@link Machine}.
+	 * 
+	 * @param machine
+	 *            The machine the CPU belongs to, whose memory must already
+	 *            exist.
+	 */
+	CPU(Machine machine) {
+		this.machine = machine;
+		this.memory = machine.getMemory();
+		l2_cache = Cache.secondLevel(memory);
+		MemoryLevel next = l2_cache == null ? memory : l2_cache;
+		memory_controller = new MemoryController(next);
+		write_buffer = memory_controller.getWriteBuffer();
+		if (Boolean.getBoolean(Cache.SPLIT_PROPERTY)) {
+			data_cache = Cache.firstLevel("L1D", next, write_buffer, null);
+			instruction_cache = Cache.firstLevel("L1I", next, write_buffer,
+					data_cache);
+		} else {
+			data_cache = Cache.firstLevel("L1", next, write_buffer, null);
+			instruction_cache = data_cache;
+		}
+
+		memory_controller_thread = new Thread(memory_controller,
+				"memory_controller");
+		// An abandoned machine must not keep the JVM alive.
+		memory_controller_thread.setDaemon(true);
+		if (!memory_controller.isSynchronous())
+			memory_controller_thread.start();
 		irdecoder = new IRDecoder(this);
 		alu = new ALU(this);
+		opcodeHandlers = createOpcodeHandlers();
+		String dispatch = System.getProperty(DISPATCH_PROPERTY, "table");
+		if (!dispatch.equals("table") && !dispatch.equals("switch"))
+			throw new IllegalArgumentException(
+					"The opcode dispatch must be table or switch, not "
+							+ dispatch + ".");
+		switch_dispatch = dispatch.equals("switch");
 	}
 
 	/**
-	 * @return
+	 * @return The CPU of the default {@link Machine}, the one the GUI runs.
 	 */
 	public static CPU getInstance() {
-		if (INSTANCE == null) {
-			INSTANCE = new CPU();
-		}
-		return INSTANCE;
+		return Machine.getDefault().getCPU();
+	}
+
+	/**
+	 * @return The machine this CPU belongs to.
+	 */
+	public Machine getMachine() {
+		return machine;
+	}
+
+	/**
+	 * @return The machine's main memory.
+	 */
+	public Memory getMemory() {
+		return memory;
+	}
+
+	/**
+	 * @param listener
+	 *            Receives events from this CPU until removed.
+	 */
+	public synchronized void addMachineListener(MachineListener listener) {
+		MachineListener[] updated = Arrays.copyOf(listeners,
+				listeners.length + 1);
+		updated[listeners.length] = listener;
+		listeners = updated;
+	}
+
+	/**
+	 * @param listener
+	 *            A listener previously passed to
+	 *            {@link #addMachineListener(MachineListener)}.
+	 */
+	public synchronized void removeMachineListener(MachineListener listener) {
+		List<MachineListener> updated = new ArrayList<MachineListener>(
+				Arrays.asList(listeners));
+		updated.remove(listener);
+		listeners = updated.toArray(new MachineListener[updated.size()]);
+	}
+
+	/**
+	 * Limits how often register changes are reported while the CPU is
+	 * running. Changes are always reported when execution stops.
+	 * 
+	 * @param millis
+	 *            Minimum time between notifications, or 0 to notify after
+	 *            every instruction.
+	 */
+	public void setRegisterPublishInterval(long millis) {
+		registerPublishInterval = millis * 1000000L;
+	}
+
+	/**
+	 * @param restart
+	 *            false to stop at a user program's HLT instead of restarting
+	 *            the boot program, as {@link HeadlessComputer} does.
+	 */
+	public void setHaltRestartsBoot(boolean restart) {
+		haltRestartsBoot = restart;
+	}
+
+	/**
+	 * Makes "continue" and "fast run" stop once the cycle counter reaches a
+	 * limit, so that a program that never halts or waits for input cannot run
+	 * forever. The limit is checked before every dispatch, so "continue" can
+	 * stop part way through an instruction, and a micro step that takes no
+	 * cycles counts as one. The limit is not saved in snapshots and is not
+	 * passed on to forks.
+	 * 
+	 * @param limit
+	 *            The cycle count to stop at (see {@link #getCycleCount()}),
+	 *            or Long.MAX_VALUE for no limit, the default.
+	 */
+	public void setCycleLimit(long limit) {
+		cycle_limit = limit;
+	}
+
+	/**
+	 * @return true if execution last stopped at the cycle limit rather than
+	 *         at HLT or to wait for input.
+	 */
+	public boolean isStoppedAtCycleLimit() {
+		return stoppedAtCycleLimit;
+	}
+
+	/**
+	 * @return true if execution is suspended on an IN instruction until
+	 *         input_buffer is filled and {@link #handleInterrupt(byte)} is
+	 *         called.
+	 */
+	public boolean isWaitingForInput() {
+		return waitForInterrupt;
 	}
 
 	/**
@@ -634,22 +1522,15 @@ public class CPU implements CPUConstants {
 		try {
 
 			// Machine fault routine address at 1
-
-			Word errorRoutineAddr = Utils.registerToWord((Utils.intToBitSet(
-					FAULT_AND_TRAP_START_ADDR, DEFAULT_BIT_SIZE)),
-					DEFAULT_BIT_SIZE);
-			writeToMemory(errorRoutineAddr, 1);
+			writeToMemory(memory.getFaultRoutineAddress(), 1);
 
 			// Trap table at address 0
-			Word trapTableAddr = Utils.registerToWord(
-					(Utils.intToBitSet(TRAP_TABLE_ADDR, DEFAULT_BIT_SIZE)),
-					DEFAULT_BIT_SIZE);
-			writeToMemory(trapTableAddr, 0);
+			writeToMemory(memory.getTrapTableAddress(), 0);
 
 			// writeToMemory(word, address)
-			InstructionLoader faultLoader = new InstructionLoader(
+			InstructionLoader faultLoader = new InstructionLoader(machine,
 					FAULT_INSTR_FILENAME, false);
-			faultLoader.load(FAULT_AND_TRAP_START_ADDR);
+			faultLoader.load(memory.getFaultRoutineAddress());
 			
 
 		} catch (NullPointerException | IllegalArgumentException
@@ -660,14 +1541,67 @@ public class CPU implements CPUConstants {
 	}
 
 	/**
-	 * Gets a register from the map.
+	 * Loads an assembled ROM: the same words as {@link #loadROM(Loader)} with
+	 * the boot program and fault routine source, copied with an
+	 * {@link ObjectLoader} instead of parsed, so no cache accesses or cycles
+	 * are counted.
+	 *
+	 * @param rom
+	 *            The ROM, usually {@link ROMImage#getDefault()}.
+	 */
+	public void loadROM(ROMImage rom) {
+		ObjectLoader loader = new ObjectLoader(machine);
+		loader.load(rom.getBoot(), InstructionLoader.BOOT_PROGRAM_LOADING_ADDR);
+		pokeMemory(memory.getFaultRoutineAddress(), 1);
+		pokeMemory(memory.getTrapTableAddress(), 0);
+		loader.load(rom.getFault(), memory.getFaultRoutineAddress());
+		this.initializeProgramCounter(InstructionLoader.BOOT_PROGRAM_LOADING_ADDR);
+	}
+
+	/**
+	 * Gets a copy of a register by name. Kept for callers outside of the
+	 * execution path (the GUI, for example); the CPU and ALU read the
+	 * {@link RegisterFile} slots directly.
 	 * 
 	 * @param regName
-	 *            Key into the register map.
-	 * @return The register associated with the key.
+	 *            Name of the register.
+	 * @return A snapshot of the register, or null if there is no such
+	 *         register.
 	 */
 	public Register getReg(String regName) {
-		return regMap.get(regName);
+		int slot = RegisterFile.slotOf(regName);
+		if (slot == -1)
+			return null;
+		return registers.toRegister(slot);
+	}
+
+	/**
+	 * @return The unsigned contents of a register slot.
+	 */
+	int getRegister(int slot) {
+		return registers.get(slot);
+	}
+
+	/**
+	 * @return The contents of a register slot, sign extended from the width of
+	 *         the register.
+	 */
+	int getSignedRegister(int slot) {
+		return registers.getSigned(slot);
+	}
+
+	/**
+	 * Sets a register slot (truncating the value to the register width) and
+	 * updates the GUI.
+	 * 
+	 * @param slot
+	 *            The register slot, one of the REG_ constants.
+	 * @param value
+	 *            The new contents of the register.
+	 */
+	void setRegister(int slot, int value) {
+		registers.set(slot, value);
+		changedRegisters |= 1L << slot;
 	}
 
 	/**
@@ -676,45 +1610,63 @@ public class CPU implements CPUConstants {
 	 * memory. Used when a cache check would be redundant; otherwise, perform
 	 * the default behavior of checking the cache for the desired address.
 	 * Updates the cache with the block fetched from memory regardless of the
-	 * override option.
+	 * override option. The cycles the read takes are added to the cycle count.
 	 * 
 	 * @param address
 	 *            The address in main memory to target.
 	 * @param override
 	 *            Skip the cache check if true.
+	 * @param cache
+	 *            The L1 cache to read through: instruction_cache for
+	 *            instruction fetches, data_cache for everything else.
 	 * 
-	 * @return the contents of the specified address.
+	 * @return the unsigned 18-bit contents of the specified address.
 	 */
-	private Word readFromMemory(int address, boolean override) {
+	private int readIntFromMemory(int address, boolean override, Cache cache) {
 		// Check for illegal address
-		if ((address < 0) || (address > MAX_ADDR)) {
+		if ((address < 0) || (address >= memory.size())) {
 			// PC and MSR are saved to memory
-			Word orig_PC = readFromMemory(2);
+			int orig_PC = readIntFromMemory(2);
 			writeToMemory(orig_PC, 4);
-			Word msr = Utils.registerToWord(getReg(CPU.PC), 18);
-			writeToMemory(msr, 5);
-			// Change PC to fault error routine
-			Word faultRoutine = readFromMemory(1);
-			setReg(PC, faultRoutine); // Is this ok...just truncate least
-										// important?
+			writeToMemory(registers.get(REG_PC), 5);
+			// Change PC to fault error routine, truncated to the PC width
+			setRegister(REG_PC, readIntFromMemory(1));
 			// Execute fault error routine
 			executeInstruction("continue");
 		}
 
-		Word word = null;
-		if (override)
-			word = readFromMainMemory(address);
-		else {
-			word = l1_cache.read(address);
-			if (word != null)
-				return word;
-			else {
-				word = readFromMainMemory(address);
-			}
+		long cycles = cache.getLatency();
+		int word = override ? Cache.CACHE_MISS : cache.read(address);
+		if (word == Cache.CACHE_MISS) {
+			long stalls = cache.getStatistics().getStalls();
+			cycles += cache.fill(address);
+			cycles += stallCycles(cache, stalls);
+			word = cache.peek(address);
 		}
+		chargeMemoryAccess(cycles);
 		return word;
 	}
 
+	/**
+	 * @param stalls
+	 *            The stalls the cache had recorded before an access.
+	 * @return The cycles the stalls recorded since took.
+	 */
+	private long stallCycles(Cache cache, long stalls) {
+		return (cache.getStatistics().getStalls() - stalls)
+				* timing.getStallLatency();
+	}
+
+	/**
+	 * Adds the cycles a read or write through the caches took to the cycle
+	 * count and to the average memory access time.
+	 */
+	private void chargeMemoryAccess(long cycles) {
+		timing.advance(cycles);
+		memory_accesses++;
+		memory_access_cycles += cycles;
+	}
+
 	/**
 	 * Reads the contents of a specified address from memory. Checks the cache
 	 * for the desired address before searching main memory. Updates the cache
@@ -725,30 +1677,104 @@ public class CPU implements CPUConstants {
 	 * @return the contents of the specified address.
 	 */
 	public Word readFromMemory(int address) {
-		return this.readFromMemory(address, false);
+		return Word.fromInt(this.readIntFromMemory(address, false, data_cache));
+	}
+
+	/**
+	 * Reads an address as a program would see it (from the cache if it holds
+	 * the address, otherwise from main memory) without counting a cache
+	 * access or bringing the address into the cache. For the loader and the
+	 * GUI, which look at memory from outside the machine.
+	 * 
+	 * @param address
+	 *            The address in main memory to target.
+	 * @return the unsigned 18-bit contents of the specified address.
+	 */
+	public int peekMemory(int address) {
+		return data_cache.peek(address);
+	}
+
+	/**
+	 * Writes an address in main memory and in the cache, if it holds the
+	 * address, without counting a cache access. For writes from outside the
+	 * machine, such as the GUI.
+	 * 
+	 * @param word
+	 *            The contents to write.
+	 * @param address
+	 *            The address in main memory to target.
+	 */
+	public void pokeMemory(int word, int address) {
+		word = Utils.wrap(word);
+		data_cache.poke(word, address);
+		if (instruction_cache != data_cache)
+			instruction_cache.update(word, address);
+		irdecoder.invalidate(address);
+	}
+
+	/**
+	 * Copies a block of words into main memory and into every cache that
+	 * holds their addresses, without counting cache accesses or cycles, once
+	 * the write buffer has been drained so no pending write can overwrite
+	 * them. For loading assembled programs, see {@link ObjectLoader}.
+	 * 
+	 * @param address
+	 *            The address of the first word.
+	 * @param words
+	 *            The words to copy.
+	 * @throws IllegalArgumentException
+	 *             If the block does not fit in memory.
+	 */
+	public void loadBlock(int address, int[] words)
+			throws IllegalArgumentException {
+		if (address < 0 || address + words.length > memory.size())
+			throw new IllegalArgumentException("Cannot load " + words.length
+					+ " words at address " + address + ".");
+		drainWriteBuffer();
+		for (int i = 0; i < words.length; i++)
+			pokeMemory(words[i], address + i);
+	}
+
+	/**
+	 * Reads the contents of a specified address from memory as an unsigned
+	 * 18-bit value, checking the cache first. Does not allocate on a cache
+	 * hit.
+	 * 
+	 * @param address
+	 *            The address in main memory to target.
+	 * @return the contents of the specified address.
+	 */
+	int readIntFromMemory(int address) {
+		return this.readIntFromMemory(address, false, data_cache);
+	}
+
+	/**
+	 * Fetches an instruction through the instruction cache.
+	 * 
+	 * @param address
+	 *            The address of the instruction.
+	 * @return the unsigned 18-bit instruction.
+	 */
+	private int fetchFromMemory(int address) {
+		return this.readIntFromMemory(address, false, instruction_cache);
 	}
 
 	/**
 	 * Sets a register with a BitSet value.
 	 * 
 	 * @param destName
-	 *            Key into the register map.
+	 *            Name of the register.
 	 * @param sourceSet
 	 *            BitSet to set the register equal to.
 	 * @param sourceBits
 	 *            Number of bits in the BitSet.
 	 */
 	public void setReg(String destName, BitSet sourceSet, int sourceBits) {
-		if (regMap.containsKey(destName)) {
-			// regMap.put(regName, bitValue);
-
-			Register destination = regMap.get(destName);
-			Utils.bitsetDeepCopy(sourceSet, sourceBits, destination,
-					destination.getNumBits());
-
-			// update the GUI
-			Computer_GUI.update_register(destName, getReg(destName));
-
+		int slot = RegisterFile.slotOf(destName);
+		if (slot != -1) {
+			registers.set(slot, sourceSet, sourceBits);
+			changedRegisters |= 1L << slot;
+			publishRegisters(true);
 		}
 	}
 
@@ -757,18 +1783,13 @@ public class CPU implements CPUConstants {
 	 * the register map).
 	 * 
 	 * @param destName
-	 *            Key into the register map (the destination register).
+	 *            Name of the register (the destination register).
 	 * @param source
 	 */
 	public void setReg(String destName, Register source) {
-		if (regMap.containsKey(destName)) {
-			Register destination = regMap.get(destName);
-			Utils.bitsetDeepCopy(source, source.getNumBits(), destination,
-					destination.getNumBits());
-
-			// update the GUI
-			Computer_GUI.update_register(destName, getReg(destName));
-		} else
+		if (RegisterFile.slotOf(destName) != -1)
+			setReg(destName, source, source.getNumBits());
+		else
 			logger.debug("Register map does not contain key " + destName);
 	}
 
@@ -779,13 +1800,7 @@ public class CPU implements CPUConstants {
 	 * @param sourceMemory
 	 */
 	public void setReg(String destName, Word sourceMemory) {
-		if (regMap.containsKey(destName)) {
-			Register destination = regMap.get(destName);
-			Utils.bitsetDeepCopy(sourceMemory, DEFAULT_BIT_SIZE, destination,
-					destination.getNumBits());
-			// update the GUI
-			Computer_GUI.update_register(destName, getReg(destName));
-		}
+		setReg(destName, sourceMemory, DEFAULT_BIT_SIZE);
 	}
 
 	/**
@@ -796,8 +1811,7 @@ public class CPU implements CPUConstants {
 	 *            TODO
 	 */
 	public void initializeProgramCounter(int address) {
-		setReg(PC, Utils.intToBitSet(address, getReg(PC).getNumBits()),
-				getReg(PC).getNumBits());
+		setRegister(REG_PC, address);
 		bootloaderRunning = true;
 		prog_step = 0;
 	}
@@ -825,32 +1839,44 @@ public class CPU implements CPUConstants {
 	 * @return true if successful, false otherwise.
 	 */
 	public boolean writeToMemory(Word word, int address) {
+		return writeToMemory(word.toInt(), address);
+	}
+
+	/**
+	 * Writes an 18-bit value to memory through the cache. See
+	 * {@link #writeToMemory(Word, int)}.
+	 * 
+	 * @param word
+	 *            The contents to write.
+	 * @param address
+	 *            The address in main memory to target.
+	 * @return true if successful, false otherwise.
+	 */
+	public boolean writeToMemory(int word, int address) {
 		// Check for illegal address
-		if ((address < 0) || (address > MAX_ADDR)) {
+		if ((address < 0) || (address >= memory.size())) {
 
 			// PC and MSR are saved to memory
-			Word orig_PC = readFromMemory(2);
+			int orig_PC = readIntFromMemory(2);
 			writeToMemory(orig_PC, 4);
-			Word msr = Utils.registerToWord(getReg(CPU.PC), 18);
-			writeToMemory(msr, 5);
+			writeToMemory(registers.get(REG_PC), 5);
 
-			// Change PC to fault error routine
-			Word faultRoutine = readFromMemory(1);
-			setReg(PC, faultRoutine); // Is this ok...just truncate least
-										// important?
+			// Change PC to fault error routine, truncated to the PC width
+			setRegister(REG_PC, readIntFromMemory(1));
 
 			// Execute fault error routine
 			executeInstruction("continue");
 		}
 
-		if (l1_cache.write(word, address)) {
-			// Cache Hit.
-			return true;
-		} else {
-			// Cache Miss.
-			this.readFromMemory(address, false);
-			return this.writeToMemory(word, address);
-		}
+		word = Utils.wrap(word);
+		irdecoder.invalidate(address);
+		long stalls = data_cache.getStatistics().getStalls();
+		long cycles = data_cache.write(word, address);
+		chargeMemoryAccess(cycles + stallCycles(data_cache, stalls));
+		// The instruction cache is not written, only kept up to date.
+		if (instruction_cache != data_cache)
+			instruction_cache.update(word, address);
+		return true;
 	}
 
 	/**
@@ -863,14 +1889,13 @@ public class CPU implements CPUConstants {
 	}
 
 	private void advancePC() {
+		instruction_count++;
+		timing.retire(registers.get(REG_OPCODE));
 		if (jumpTaken) {
 			jumpTaken = false;
 			return;
 		}
-		int pcContents = Utils
-				.convertToInt(getReg(PC), getReg(PC).getNumBits());
-		setReg(PC, Utils.intToBitSet(++pcContents, getReg(PC).getNumBits()),
-				getReg(PC).getNumBits());
+		setRegister(REG_PC, registers.get(REG_PC) + 1);
 	}
 
 	/**
@@ -882,57 +1907,26 @@ public class CPU implements CPUConstants {
 	 *            Set to true if doing a LDX or STX instruction.
 	 */
 	private void calculateEA(boolean LDXSTXInstruction) {
-		Register i = regMap.get(I);
-		Register ix = regMap.get(IX);
-		Register ea = regMap.get(EA);
-		Register addr = regMap.get(ADDR);
-
-		if (Utils.convertToUnsignedByte(i, i.getNumBits()) == 0) { // No
-																	// indirect
-			// addressing
-			if (LDXSTXInstruction
-					|| Utils.convertToUnsignedByte(ix, ix.getNumBits()) == 0) { // No
-				// indexing
-				setReg(EA, regMap.get(ADDR));
-			} else { // Indexing, no indirect
-				// ADDR + indexregisterfile(IX)
-				int temp = Utils.convertToInt(getReg(indexRegisterFile(ix)),
-						getReg(indexRegisterFile(ix)).getNumBits())
-						+ Utils.convertToUnsignedByte(addr, addr.getNumBits());
-
-				// EA = ADDR + Xx
-				setReg(EA, Utils.intToBitSet(temp, ea.getNumBits()),
-						ea.getNumBits());
-			}
-
-		} else { // Indirect addressing
-			if (LDXSTXInstruction
-					|| Utils.convertToUnsignedByte(ix, ix.getNumBits()) == 0) { // No
-				// indexing
-				setReg(EA, regMap.get(ADDR));
-			} else { // Indexing, no indirect
-				// ADDR + indexregisterfile(IX)
-				int temp = Utils.convertToInt(getReg(indexRegisterFile(ix)),
-						getReg(indexRegisterFile(ix)).getNumBits())
-						+ Utils.convertToUnsignedByte(addr, addr.getNumBits());
-
-				// EA = ADDR + Xx
-				setReg(EA, Utils.intToBitSet(temp, ea.getNumBits()),
-						ea.getNumBits());
-			}
+		int ix = registers.get(REG_IX);
+
+		if (LDXSTXInstruction || ix == 0) { // No indexing
+			setRegister(REG_EA, registers.get(REG_ADDR));
+		} else { // Indexing
+			// EA = ADDR + indexregisterfile(IX)
+			setRegister(REG_EA, registers.getSigned(indexRegisterFile(ix))
+					+ registers.get(REG_ADDR));
+		}
 
+		if (registers.get(REG_I) != 0) { // Indirect addressing
 			// TODO implement the clock
-			// Taking care of the indirect part
 			// EA -> MAR
-			setReg(MAR, getReg(EA));
+			setRegister(REG_MAR, registers.get(REG_EA));
 
 			// Memory(MAR) -> MDR
-			Register register = this.getReg(MAR);
-			int address = Utils.convertToInt(register, register.getNumBits());
-			Word word = this.readFromMemory(address);
-			setReg(MDR, word);
+			setRegister(REG_MDR, readIntFromMemory(registers.get(REG_MAR)));
+
 			// MDR -> EA
-			setReg(EA, getReg(MDR));
+			setRegister(REG_EA, registers.get(REG_MDR));
 		}
 	}
 
@@ -959,27 +1953,58 @@ public class CPU implements CPUConstants {
 	 * @param step_type
 	 */
 	public void executeInstruction(String step_type) {
+		execute(step_type);
+		publishRegisters(true);
+	}
+
+	private void execute(String step_type) {
 		currentExecution = step_type;
+		stoppedAtCycleLimit = false;
+		idle_steps = 0;
 		switch (step_type) {
 		case "continue":
-			Computer_GUI.toggle_button("load", false);
+			fireExecutionStarted();
 			logger.debug("Continue");
 			while (cont_execution) {
-				singleInstruction();
+				if (atCycleLimit())
+					break;
+				limitedInstruction();
 				if (waitForInterrupt)
 					return;
 				if (prog_step == 0) {
 					logger.debug("--------- Instruction Done ---------");
 					printAllRegisters();
 					advancePC();
+					publishRegisters(false);
+				}
+			}
+			cont_execution = true;
+			break;
+
+		case "fast run":
+			fireExecutionStarted();
+			logger.debug("Fast Run");
+			while (cont_execution) {
+				if (atCycleLimit())
+					break;
+				// Finish an instruction left part way through (an IN that
+				// was waiting for input, or a step from the GUI) and run the
+				// instructions fastInstruction() hands back on micro steps.
+				if (prog_step == 0 && fastInstruction()) {
+					advancePC();
+					continue;
 				}
+				limitedInstruction();
+				if (waitForInterrupt)
+					return;
+				if (prog_step == 0)
+					advancePC();
 			}
 			cont_execution = true;
 			break;
 
 		case "micro step":
-			Computer_GUI.toggle_button("load", false);
-			// Computer_GUI.toggle_button("runinput", false);
+			fireExecutionStarted();
 			logger.debug("Micro Step");
 			singleInstruction();
 			if (waitForInterrupt)
@@ -989,12 +2014,12 @@ public class CPU implements CPUConstants {
 				logger.debug("--------- Instruction Done ---------");
 				printAllRegisters();
 				advancePC();
-				Computer_GUI.toggle_button("runinput", true);
+				fireStepCompleted();
 			}
 			break;
 
 		case "macro step":
-			Computer_GUI.toggle_button("load", false);
+			fireExecutionStarted();
 			logger.debug("Macro Step");
 			do {
 				singleInstruction();
@@ -1006,7 +2031,7 @@ public class CPU implements CPUConstants {
 			logger.debug("--------- Instruction Done ---------");
 			printAllRegisters();
 			advancePC();
-			Computer_GUI.toggle_button("runinput", true);
+			fireStepCompleted();
 			break;
 
 		// Direct Execution - Does not advance PC
@@ -1015,16 +2040,16 @@ public class CPU implements CPUConstants {
 
 			try {
 				System.out.println(step_type);
-				Word word_command = (new InstructionLoader())
+				Word word_command = (new InstructionLoader(machine))
 						.instructionToWord(step_type);
 				Utils.bitsetToString("input", word_command, 18);
 				setReg(MDR, word_command);
-				cycle_count++;
+				timing.advance(1);
 				prog_step = prog_step + 2;
 				do {
 					singleInstruction();
 					if (waitForInterrupt) {
-						cycle_count -= 2;
+						timing.advance(-2);
 						prog_step = 0;
 						return;
 					}
@@ -1041,1000 +2066,1413 @@ public class CPU implements CPUConstants {
 	}
 
 	/**
-	 * Returns a String key into the register map according to the contents of
-	 * IX (the line_tag register line_tag)
+	 * Returns the register file slot of the index register selected by the
+	 * contents of IX.
 	 * 
-	 * @param R
-	 *            The R register.
-	 * @return A String key into the register map.
+	 * @param ix
+	 *            The contents of the IX register (1-3).
+	 * @return A register file slot.
 	 */
-	private String indexRegisterFile(BitSet IX) {
-		switch (Utils.convertToUnsignedByte(IX,
-				InstructionBitFormats.LD_STR_IX_SIZE)) {
-		case 1:
-			return X1;
-		case 2:
-			return X2;
-		case 3:
-			return X3;
-		}
-
-		return null;
+	private static int indexRegisterFile(int ix) {
+		return REG_X1 + ix - 1;
 	}
 
 	/**
-	 * Branch Logic for individual opcodes - at end of any opcode logic it
-	 * should reset prog_step counter - This will make singleInstruction
-	 * restart, thus reaching the next PC - Currently Opcodes not properly setup
+	 * Returns the register file slot of the general purpose register selected
+	 * by the contents of a register field (R, RX or RY).
 	 * 
-	 * @param op_byte
-	 *            Opcode to do case branching
+	 * @param r
+	 *            The contents of the register field (0-3).
+	 * @return A register file slot.
 	 */
-	private void opcodeInstruction(byte op_byte) {
-		// memory = Memory.getInstance();
-		switch (op_byte) {
+	private static int registerFile(int r) {
+		return REG_R0 + r;
+	}
 
-		case OpCodesList.LDR:
-			switch (prog_step) {
-			case 4:
+	/**
+	 * @return The mask of the given condition code within the CC register.
+	 */
+	static int ccBit(int condition) {
+		return 1 << (RegisterFile.getNumBits(REG_CC) - 1 - condition);
+	}
+
+	/**
+	 * Executes the instructions with one opcode. The CPU keeps a handler for
+	 * every 6-bit opcode in opcodeHandlers, so dispatching an instruction is a
+	 * single array load.
+	 */
+	private abstract class OpcodeHandler {
+
+		/**
+		 * Performs the micro step given by prog_step (4 and up). At the end of
+		 * the instruction prog_step is reset to 0 - This will make
+		 * singleInstruction restart, thus reaching the next PC.
+		 */
+		abstract void step();
+
+		/**
+		 * Performs every micro step after the decode in a single call, for the
+		 * "fast run" execution mode. Does the same register transfers, memory
+		 * accesses and ALU operations as step(), so the machine ends the
+		 * instruction in the same state, and adds the same number of cycles.
+		 * A memory access after the first step is preceded by
+		 * {@link CPU#completeSteps(int)} for the steps before it, so a
+		 * synchronous memory controller is clocked at the same points.
+		 * 
+		 * @return true if the instruction was executed, false if it has to be
+		 *         run with step() instead.
+		 */
+		boolean execute() {
+			return false;
+		}
+	}
+
+	/**
+	 * Handles every opcode without an implementation by raising a machine
+	 * fault: the PC and MSR are saved to memory, the illegal opcode bit is
+	 * set in the MFR and execution continues at the fault error routine,
+	 * whose address is stored at 1.
+	 */
+	private final OpcodeHandler illegalOpcode = new OpcodeHandler() {
+		@Override
+		void step() {
+			// PC and MSR are saved to memory
+			writeToMemory(registers.get(REG_PC), 4);
+			writeToMemory(registers.get(REG_MSR), 5);
+			setRegister(REG_MFR, 1 << ILLEGAL_OPCODE);
+
+			// Change PC to fault error routine
+			jumpTo(readIntFromMemory(1));
+			timing.advance(1);
+			prog_step = 0;
+		}
+
+		@Override
+		boolean execute() {
+			step();
+			return true;
+		}
+	};
+
+	/**
+	 * Builds the opcode handler table, indexed by the opcodes in
+	 * {@link OpCodesList}. Opcodes without an implementation, including the
+	 * unassigned ones, are routed to {@link #illegalOpcode}.
+	 * 
+	 * @return A table with an entry for each of the 64 opcodes.
+	 */
+	private OpcodeHandler[] createOpcodeHandlers() {
+		OpcodeHandler[] table =
+				new OpcodeHandler[1 << InstructionBitFormats.OPCODE_SIZE];
+		Arrays.fill(table, illegalOpcode);
+
+		// Load/store instructions
+		table[OpCodesList.LDR] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+
+				case 5:
+					// EA -> MAR
+					setRegister(REG_MAR, registers.get(REG_EA));
+					timing.advance(1);
+					prog_step++;
+					break;
+
+				case 6:
+					// Mem(MAR) -> MDR
+					setRegister(REG_MDR,
+							readIntFromMemory(registers.get(REG_MAR)));
+					timing.advance(1);
+					prog_step++;
+					break;
+
+				case 7:
+					// MDR -> registerFile(R)
+					setRegister(registerFile(registers.get(REG_R)),
+							registers.get(REG_MDR));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
 				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-
-			case 5:
-				// EA -> MAR
-				setReg(MAR, regMap.get(EA));
-				cycle_count++;
-				prog_step++;
-				break;
-
-			case 6:
-				// Mem(MAR) -> MDR
-				int mar_addr = Utils.convertToInt(regMap.get(MAR), getReg(MAR)
-						.getNumBits());
-				setReg(MDR, this.readFromMemory(mar_addr));
-				cycle_count++;
-				prog_step++;
-				break;
-
-			case 7:
-				// MDR -> registerFile(R)
-				setReg(registerFile(getReg(R)), regMap.get(MDR));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				setRegister(REG_MAR, registers.get(REG_EA));
+				completeSteps(2);
+				setRegister(REG_MDR, readIntFromMemory(registers.get(REG_MAR)));
+				setRegister(registerFile(registers.get(REG_R)),
+						registers.get(REG_MDR));
+				timing.advance(2);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.STR:
-			switch (prog_step) {
-			case 4:
+		table[OpCodesList.STR] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+
+				case 5:
+					// EA -> MAR
+					setRegister(REG_MAR, registers.get(REG_EA));
+
+					// registerFile(R) -> MDR
+					setRegister(REG_MDR,
+							registers.get(registerFile(registers.get(REG_R))));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// MDR -> Mem(MAR)
+					writeToMemory(registers.get(REG_MDR),
+							registers.get(REG_MAR));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
 				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-
-			case 5:
-				// EA -> MAR
-				setReg(MAR, regMap.get(EA));
-
-				// registerFile(R) -> MDR
-				setReg(MDR, getReg(registerFile(getReg(R))));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// MDR -> Mem(MAR)
-				Word word = Utils.registerToWord(getReg(MDR), getReg(MDR)
-						.getNumBits());
-				Register register = this.getReg(MAR);
-				int address = Utils.convertToInt(register,
-						register.getNumBits());
-				this.writeToMemory(word, address);
-				cycle_count++;
-				prog_step = 0;
-				break;
+				setRegister(REG_MAR, registers.get(REG_EA));
+				setRegister(REG_MDR,
+						registers.get(registerFile(registers.get(REG_R))));
+				completeSteps(2);
+				writeToMemory(registers.get(REG_MDR), registers.get(REG_MAR));
+				timing.advance(1);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.LDA:
-			switch (prog_step) {
-			case 4:
+		table[OpCodesList.LDA] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+
+				case 5:
+					// EA -> regFile(R)
+					setRegister(registerFile(registers.get(REG_R)),
+							registers.get(REG_EA));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
 				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-
-			case 5:
-				// EA -> regFile(R)
-				setReg(registerFile(getReg(R)), getReg(EA));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				setRegister(registerFile(registers.get(REG_R)),
+						registers.get(REG_EA));
+				timing.advance(2);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.LDX:
-			switch (prog_step) {
-			case 4:
+		table[OpCodesList.LDX] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(true);
+					timing.advance(1);
+					prog_step++;
+					break;
+
+				case 5:
+					// EA -> MAR
+					setRegister(REG_MAR, registers.get(REG_EA));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// Mem(MAR) -> MDR
+					setRegister(REG_MDR,
+							readIntFromMemory(registers.get(REG_MAR)));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 7:
+					// MDR -> indexRegFile(R)
+					setRegister(indexRegisterFile(registers.get(REG_IX)),
+							registers.get(REG_MDR));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
 				calculateEA(true);
-				cycle_count++;
-				prog_step++;
-				break;
-
-			case 5:
-				// EA -> MAR
-				setReg(MAR, regMap.get(EA));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// Mem(MAR) -> MDR
-				int mar_addr = Utils.convertToInt(regMap.get(MAR), getReg(MAR)
-						.getNumBits());
-				setReg(MDR, this.readFromMemory(mar_addr));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 7:
-				// MDR -> indexRegFile(R)
-				setReg(indexRegisterFile(getReg(IX)), getReg(MDR));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				setRegister(REG_MAR, registers.get(REG_EA));
+				completeSteps(2);
+				setRegister(REG_MDR, readIntFromMemory(registers.get(REG_MAR)));
+				setRegister(indexRegisterFile(registers.get(REG_IX)),
+						registers.get(REG_MDR));
+				timing.advance(2);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.STX:
-			switch (prog_step) {
-			case 4:
+		table[OpCodesList.STX] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(true);
+					timing.advance(1);
+					prog_step++;
+					break;
+
+				case 5:
+					// EA -> MAR
+					setRegister(REG_MAR, registers.get(REG_EA));
+
+					// indexRegFile(R) -> MDR
+					setRegister(REG_MDR, registers
+							.get(indexRegisterFile(registers.get(REG_IX))));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// MDR -> Mem(MAR)
+					writeToMemory(registers.get(REG_MDR),
+							registers.get(REG_MAR));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+
+				}
+			}
+
+			@Override
+			boolean execute() {
 				calculateEA(true);
-				cycle_count++;
-				prog_step++;
-				break;
-
-			case 5:
-				// EA -> MAR
-				setReg(MAR, regMap.get(EA));
-
-				// indexRegFile(R) -> MDR
-				setReg(MDR, getReg(indexRegisterFile(getReg(IX))));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// MDR -> Mem(MAR)
-				Word word = Utils.registerToWord(getReg(MDR), getReg(MDR)
-						.getNumBits());
-				Register register = this.getReg(MAR);
-				int address = Utils.convertToInt(register,
-						register.getNumBits());
-				this.writeToMemory(word, address);
-				cycle_count++;
-				prog_step = 0;
-				break;
+				setRegister(REG_MAR, registers.get(REG_EA));
+				setRegister(REG_MDR,
+						registers.get(indexRegisterFile(registers.get(REG_IX))));
+				completeSteps(2);
+				writeToMemory(registers.get(REG_MDR), registers.get(REG_MAR));
+				timing.advance(1);
+				return true;
+			}
+		};
 
+		// Transfer instructions
+		table[OpCodesList.JZ] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// registerFile(R) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_R))));
+					registers.set(REG_OP2, 0);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// Perform equal to zero comparison in ALU
+					alu.TRR();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 7:
+					// If RESULT == 1
+					// EA -> PC
+					if ((registers.get(REG_CC) & ccBit(EQUALORNOT)) != 0) {
+						setRegister(REG_PC, registers.get(REG_EA));
+						jumpTaken = true;
+					}
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
 			}
-			break;
 
-		case OpCodesList.JZ:
-			switch (prog_step) {
-			case 4:
-				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// registerFile(R) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(R))));
-				getReg(OP2).clear();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// Perform equal to zero comparison in ALU
-				alu.TRR();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 7:
-				// If RESULT == 1
-				// EA -> PC
-				if (getReg(CC).get(EQUALORNOT)) {
-					setReg(PC, getReg(EA));
-					jumpTaken = true;
+			@Override
+			boolean execute() {
+				jumpIfZero(true);
+				return true;
+			}
+		};
+
+		table[OpCodesList.JNE] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// registerFile(R) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_R))));
+					registers.set(REG_OP2, 0);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// Perform not equal to zero comparison in ALU
+					alu.TRR();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 7:
+					// If RESULT == 0
+					// EA -> PC
+					if ((registers.get(REG_CC) & ccBit(EQUALORNOT)) == 0) {
+						setRegister(REG_PC, registers.get(REG_EA));
+						jumpTaken = true;
+					}
+					timing.advance(1);
+					prog_step = 0;
+					break;
 				}
-				cycle_count++;
-				prog_step = 0;
-				break;
 			}
-			break;
 
-		case OpCodesList.JNE:
-			switch (prog_step) {
-			case 4:
+			@Override
+			boolean execute() {
+				jumpIfZero(false);
+				return true;
+			}
+		};
+
+		table[OpCodesList.JCC] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// If CC(R) == true
+					// EA -> PC
+					if (registers.isBitSet(REG_CC, registers.get(REG_R))) {
+						setRegister(REG_PC, registers.get(REG_EA));
+						jumpTaken = true;
+					}
+
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
 				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// registerFile(R) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(R))));
-				getReg(OP2).clear();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// Perform not equal to zero comparison in ALU
-				alu.TRR();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 7:
-				// If RESULT == 0
-				// EA -> PC
-				if (!getReg(CC).get(EQUALORNOT)) {
-					setReg(PC, getReg(EA));
+				if (registers.isBitSet(REG_CC, registers.get(REG_R)))
+					jumpTo(registers.get(REG_EA));
+				timing.advance(2);
+				return true;
+			}
+		};
+
+		table[OpCodesList.JMP] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// EA -> PC
+					setRegister(REG_PC, registers.get(REG_EA));
+					timing.advance(1);
+					prog_step = 0;
 					jumpTaken = true;
+					break;
 				}
-				cycle_count++;
-				prog_step = 0;
-				break;
 			}
-			break;
 
-		case OpCodesList.JCC:
-			switch (prog_step) {
-			case 4:
+			@Override
+			boolean execute() {
 				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// If CC(R) == true
-				// EA -> PC
-				if (getReg(CC).get(
-						Utils.convertToUnsignedByte(getReg(R), getReg(R)
-								.getNumBits()))) {
-					setReg(PC, getReg(EA));
+				jumpTo(registers.get(REG_EA));
+				timing.advance(2);
+				return true;
+			}
+		};
+
+		table[OpCodesList.JSR] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// PC+1 -> R3
+					setRegister(REG_R3, registers.get(REG_PC) + 1);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// EA -> PC
+					setRegister(REG_PC, registers.get(REG_EA));
+					timing.advance(1);
+					prog_step = 0;
 					jumpTaken = true;
+					break;
 				}
-
-				cycle_count++;
-				prog_step = 0;
-				break;
 			}
-			break;
-		case OpCodesList.JMP:
-			// System.out.println("JUMP");
-			switch (prog_step) {
-			case 4:
+
+			@Override
+			boolean execute() {
 				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// EA -> PC
-				setReg(PC, getReg(EA));
-				cycle_count++;
-				prog_step = 0;
-				jumpTaken = true;
-				break;
+				setRegister(REG_R3, registers.get(REG_PC) + 1);
+				jumpTo(registers.get(REG_EA));
+				timing.advance(3);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.JSR:
-			switch (prog_step) {
-			case 4:
-				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				int temp = Utils.convertToInt(getReg(PC), getReg(PC)
-						.getNumBits()) + 1;
-				// PC+1 -> R3
-				setReg(R3, Utils.intToBitSet(temp, getReg(R3).getNumBits()),
-						getReg(R3).getNumBits());
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// EA -> PC
-				setReg(PC, getReg(EA));
-				cycle_count++;
-				prog_step = 0;
-				jumpTaken = true;
-				break;
+		table[OpCodesList.RFS] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// ADDR -> R0
+					setRegister(REG_R0, registers.get(REG_ADDR));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// R3 -> PC
+					setRegister(REG_PC, registers.get(REG_R3));
+					jumpTaken = true;
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
 			}
-			break;
 
-		case OpCodesList.RFS:
-			switch (prog_step) {
-			case 4:
-				// ADDR -> R0
-				setReg(R0, getReg(ADDR));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// R3 -> PC
-				setReg(PC, getReg(R3));
-				jumpTaken = true;
-				cycle_count++;
-				prog_step = 0;
-				break;
+			@Override
+			boolean execute() {
+				setRegister(REG_R0, registers.get(REG_ADDR));
+				jumpTo(registers.get(REG_R3));
+				timing.advance(2);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.SOB:
-			switch (prog_step) {
-			case 4:
+		table[OpCodesList.SOB] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// registerFile(R) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_R))));
+					setRegister(REG_OP2, 1);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// Perform subtract one in ALU
+					alu.SIR();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 7:
+					// Putting the subtraction result back in the register and OP1
+					setRegister(registerFile(registers.get(REG_R)),
+							registers.get(REG_RESULT));
+					setRegister(REG_OP1, registers.get(REG_RESULT));
+
+					// Clearing OP2 in preparation for GTE comparison
+					registers.set(REG_OP2, 0);
+					// Checking if OP1 >= 0
+					alu.GTE();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 8:
+					// If RESULT == 1
+					// EA -> PC
+					if (registers.get(REG_RESULT) == 1) {
+						setRegister(REG_PC, registers.get(REG_EA));
+						jumpTaken = true;
+					}
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
+				int r = registerFile(registers.get(REG_R));
 				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// registerFile(R) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(R))));
-				setReg(OP2, Utils.intToBitSet(1, getReg(OP2).getNumBits()),
-						getReg(OP2).getNumBits());
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// Perform subtract one in ALU
+				setRegister(REG_OP1, registers.get(r));
+				setRegister(REG_OP2, 1);
 				alu.SIR();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 7:
-				// Putting the subtraction result back in the register and OP1
-				setReg(registerFile(getReg(R)), getReg(RESULT));
-				setReg(OP1, getReg(RESULT));
-
-				// Clearing OP2 in preparation for GTE comparison
-				getReg(OP2).clear();
-				// Checking if OP1 >= 0
+				setRegister(r, registers.get(REG_RESULT));
+				setRegister(REG_OP1, registers.get(REG_RESULT));
+				registers.set(REG_OP2, 0);
 				alu.GTE();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 8:
-				// If RESULT == 1
-				// EA -> PC
-				if (Utils.convertToInt(getReg(RESULT), getReg(RESULT)
-						.getNumBits()) == 1) {
-					setReg(PC, getReg(EA));
-					jumpTaken = true;
+				if (registers.get(REG_RESULT) == 1)
+					jumpTo(registers.get(REG_EA));
+				timing.advance(5);
+				return true;
+			}
+		};
+
+		table[OpCodesList.JGE] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// registerFile(R) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_R))));
+					registers.set(REG_OP2, 0);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// Perform greater than/equal comparison in ALU
+					alu.GTE();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 7:
+					// If RESULT == 1
+					// EA -> PC
+					if (registers.get(REG_RESULT) == 1) {
+						setRegister(REG_PC, registers.get(REG_EA));
+						jumpTaken = true;
+					}
+					timing.advance(1);
+					prog_step = 0;
+					break;
 				}
-				cycle_count++;
-				prog_step = 0;
-				break;
 			}
-			break;
 
-		case OpCodesList.JGE:
-			switch (prog_step) {
-			case 4:
+			@Override
+			boolean execute() {
 				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// registerFile(R) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(R))));
-				getReg(OP2).clear();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// Perform greater than/equal comparison in ALU
+				setRegister(REG_OP1,
+						registers.get(registerFile(registers.get(REG_R))));
+				registers.set(REG_OP2, 0);
 				alu.GTE();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 7:
-				// If RESULT == 1
-				// EA -> PC
-				if (Utils.convertToInt(getReg(RESULT), getReg(RESULT)
-						.getNumBits()) == 1) {
-					setReg(PC, getReg(EA));
-					jumpTaken = true;
+				if (registers.get(REG_RESULT) == 1)
+					jumpTo(registers.get(REG_EA));
+				timing.advance(4);
+				return true;
+			}
+		};
+
+		// Arithmetic (register-address) instructions
+		table[OpCodesList.AMR] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Need to fetch the data from memory, EA -> MAR
+					setRegister(REG_MAR, registers.get(REG_EA));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// Memory(MAR) -> MDR
+					setRegister(REG_MDR,
+							readIntFromMemory(registers.get(REG_MAR)));
+					timing.advance(1);
+					prog_step++;
+					break;
+
+				case 7:
+					// registerFile(R) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_R))));
+
+					// MDR -> OP2
+					setRegister(REG_OP2, registers.get(REG_MDR));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 8:
+					// Perform add in ALU
+					logger.debug("Performing add");
+					alu.AMR();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 9:
+					// RESULT -> registerFile(R)
+					setRegister(registerFile(registers.get(REG_R)),
+							registers.get(REG_RESULT));
+					timing.advance(1);
+					prog_step = 0;
+					break;
 				}
-				cycle_count++;
-				prog_step = 0;
-				break;
 			}
-			break;
 
-		case OpCodesList.AMR:
-			// System.out.println("Prog step:" + prog_step);
-			switch (prog_step) {
-			case 4:
+			@Override
+			boolean execute() {
 				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Need to fetch the data from memory, EA -> MAR
-				setReg(MAR, getReg(EA));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// Memory(MAR) -> MDR
-				Register register = this.getReg(MAR);
-				int address = Utils.convertToInt(register,
-						register.getNumBits());
-				Word word = this.readFromMemory(address);
-				setReg(MDR, word);
-				cycle_count++;
-				prog_step++;
-				break;
-
-			case 7:
-				// registerFile(R) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(R))));
-
-				// MDR -> OP2
-				setReg(OP2, getReg(MDR));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 8:
-				// Perform add in ALU
-				logger.debug("Performing add");
+				completeSteps(2);
+				loadMemoryOperands();
 				alu.AMR();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 9:
-				// RESULT -> registerFile(R)
-				setReg(registerFile(getReg(R)), getReg(RESULT));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				storeResult(REG_R);
+				timing.advance(4);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.SMR:
-			// System.out.println("SMR");
-			switch (prog_step) {
-			case 4:
+		table[OpCodesList.SMR] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					calculateEA(false);
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Need to fetch the data from memory, EA -> MAR
+					setRegister(REG_MAR, registers.get(REG_EA));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// Memory(MAR) -> MDR
+					setRegister(REG_MDR,
+							readIntFromMemory(registers.get(REG_MAR)));
+					timing.advance(1);
+					prog_step++;
+					break;
+
+				case 7:
+					// registerFile(R) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_R))));
+
+					// MDR -> OP2
+					setRegister(REG_OP2, registers.get(REG_MDR));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 8:
+					// Perform subtract in ALU
+					alu.SMR();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 9:
+					// RESULT -> registerFile(R)
+					setRegister(registerFile(registers.get(REG_R)),
+							registers.get(REG_RESULT));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
 				calculateEA(false);
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Need to fetch the data from memory, EA -> MAR
-				setReg(MAR, getReg(EA));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// Memory(MAR) -> MDR
-				Register register = this.getReg(MAR);
-				int address = Utils.convertToInt(register,
-						register.getNumBits());
-				Word word = this.readFromMemory(address);
-				setReg(MDR, word);
-				cycle_count++;
-				prog_step++;
-				break;
-
-			case 7:
-				// registerFile(R) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(R))));
-
-				// MDR -> OP2
-				setReg(OP2, getReg(MDR));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 8:
-				// Perform subtract in ALU
+				completeSteps(2);
+				loadMemoryOperands();
 				alu.SMR();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 9:
-				// RESULT -> registerFile(R)
-				setReg(registerFile(getReg(R)), getReg(RESULT));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				storeResult(REG_R);
+				timing.advance(4);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.AIR:
-			switch (prog_step) {
-			case 4:
-				// registerFile(R) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(R))));
-
-				// ADDR -> OP2 (ADDR contains immediate data)
-				setReg(OP2, getReg(ADDR));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Perform add in ALU
+		table[OpCodesList.AIR] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// registerFile(R) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_R))));
+
+					// ADDR -> OP2 (ADDR contains immediate data)
+					setRegister(REG_OP2, registers.get(REG_ADDR));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Perform add in ALU
+					alu.AIR();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// RESULT -> registerFile(R)
+					setRegister(registerFile(registers.get(REG_R)),
+							registers.get(REG_RESULT));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
+				loadImmediateOperands();
 				alu.AIR();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// RESULT -> registerFile(R)
-				setReg(registerFile(getReg(R)), getReg(RESULT));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				storeResult(REG_R);
+				timing.advance(3);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.SIR:
-			switch (prog_step) {
-			case 4:
-				// registerFile(R) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(R))));
-
-				// ADDR -> OP2 (ADDR contains immediate data)
-				setReg(OP2, getReg(ADDR));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Perform subtract in ALU
+		table[OpCodesList.SIR] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// registerFile(R) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_R))));
+
+					// ADDR -> OP2 (ADDR contains immediate data)
+					setRegister(REG_OP2, registers.get(REG_ADDR));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Perform subtract in ALU
+					alu.SIR();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// RESULT -> registerFile(R)
+					setRegister(registerFile(registers.get(REG_R)),
+							registers.get(REG_RESULT));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
+				loadImmediateOperands();
 				alu.SIR();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// RESULT -> registerFile(R)
-				setReg(registerFile(getReg(R)), getReg(RESULT));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				storeResult(REG_R);
+				timing.advance(3);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.MLT:
-			switch (prog_step) {
-			case 4:
-				// registerFile(RX) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(RX))));
-
-				// registerFile(RY) -> OP2
-				setReg(OP2, getReg(registerFile(getReg(RY))));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Perform multiply in ALU
+		// Arithmetic/logical (register-register) instructions
+		table[OpCodesList.MLT] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// registerFile(RX) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_RX))));
+
+					// registerFile(RY) -> OP2
+					setRegister(REG_OP2,
+							registers.get(registerFile(registers.get(REG_RY))));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Perform multiply in ALU
+					alu.MLT();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// RX will contain the high order word
+					setRegister(registerFile(registers.get(REG_RX)),
+							registers.get(REG_RESULT));
+
+					// RX+1 will contain the low order word
+					// RX can only be 0 or 2
+					if (registers.get(REG_RX) == 0)
+						setRegister(REG_R1, registers.get(REG_RESULT2));
+					else
+						setRegister(REG_R3, registers.get(REG_RESULT2));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
+				loadRegisterOperands();
 				alu.MLT();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// RX will contain the high order word
-				setReg(registerFile(getReg(RX)), getReg(RESULT));
-
-				// RX+1 will contain the low order word
-				// RX can only be 0 or 2
-				if (registerFile(getReg(RX)).equals(R0))
-					setReg(R1, getReg(RESULT2));
-				else
-					setReg(R3, getReg(RESULT2));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				storeDoubleResult();
+				timing.advance(3);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.DVD:
-			switch (prog_step) {
-			case 4:
-				// registerFile(RX) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(RX))));
-
-				// registerFile(RY) -> OP2
-				setReg(OP2, getReg(registerFile(getReg(RY))));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Perform divide in ALU
+		table[OpCodesList.DVD] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// registerFile(RX) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_RX))));
+
+					// registerFile(RY) -> OP2
+					setRegister(REG_OP2,
+							registers.get(registerFile(registers.get(REG_RY))));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Perform divide in ALU
+					alu.DVD();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// RX will contain the quotient
+					setRegister(registerFile(registers.get(REG_RX)),
+							registers.get(REG_RESULT));
+
+					// RX+1 will contain the remainder
+					// RX can only be 0 or 2
+					if (registers.get(REG_RX) == 0)
+						setRegister(REG_R1, registers.get(REG_RESULT2));
+					else
+						setRegister(REG_R3, registers.get(REG_RESULT2));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
+				loadRegisterOperands();
 				alu.DVD();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// RX will contain the quotient
-				setReg(registerFile(getReg(RX)), getReg(RESULT));
-
-				// RX+1 will contain the remainder
-				// RX can only be 0 or 2
-				if (registerFile(getReg(RX)).equals(R0))
-					setReg(R1, getReg(RESULT2));
-				else
-					setReg(R3, getReg(RESULT2));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				storeDoubleResult();
+				timing.advance(3);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.TRR:
-			switch (prog_step) {
-			case 4:
-				// registerFile(RX) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(RX))));
-
-				// registerFile(RY) -> OP2
-				setReg(OP2, getReg(registerFile(getReg(RY))));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Perform equality test in ALU (also sets the condition code)
+		table[OpCodesList.TRR] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// registerFile(RX) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_RX))));
+
+					// registerFile(RY) -> OP2
+					setRegister(REG_OP2,
+							registers.get(registerFile(registers.get(REG_RY))));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Perform equality test in ALU (also sets the condition code)
+					alu.TRR();
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
+				loadRegisterOperands();
 				alu.TRR();
-				cycle_count++;
-				prog_step = 0;
-				break;
+				timing.advance(2);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.AND:
-			switch (prog_step) {
-			case 4:
-				// registerFile(RX) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(RX))));
-
-				// registerFile(RY) -> OP2
-				setReg(OP2, getReg(registerFile(getReg(RY))));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Perform AND in ALU
+		table[OpCodesList.AND] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// registerFile(RX) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_RX))));
+
+					// registerFile(RY) -> OP2
+					setRegister(REG_OP2,
+							registers.get(registerFile(registers.get(REG_RY))));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Perform AND in ALU
+					alu.AND();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// RESULT -> registerFile(RX)
+					setRegister(registerFile(registers.get(REG_RX)),
+							registers.get(REG_RESULT));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
+				loadRegisterOperands();
 				alu.AND();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// RESULT -> registerFile(RX)
-				setReg(registerFile(getReg(RX)), getReg(RESULT));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				storeResult(REG_RX);
+				timing.advance(3);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.ORR:
-			switch (prog_step) {
-			case 4:
-				// registerFile(RX) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(RX))));
-
-				// registerFile(RY) -> OP2
-				setReg(OP2, getReg(registerFile(getReg(RY))));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Perform OR in ALU
+		table[OpCodesList.ORR] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// registerFile(RX) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_RX))));
+
+					// registerFile(RY) -> OP2
+					setRegister(REG_OP2,
+							registers.get(registerFile(registers.get(REG_RY))));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Perform OR in ALU
+					alu.ORR();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// RESULT -> registerFile(RX)
+					setRegister(registerFile(registers.get(REG_RX)),
+							registers.get(REG_RESULT));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
+				loadRegisterOperands();
 				alu.ORR();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// RESULT -> registerFile(RX)
-				setReg(registerFile(getReg(RX)), getReg(RESULT));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				storeResult(REG_RX);
+				timing.advance(3);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.NOT:
-			switch (prog_step) {
-			case 4:
-				// registerFile(RX) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(RX))));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Perform NOT in ALU
+		table[OpCodesList.NOT] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// registerFile(RX) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_RX))));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Perform NOT in ALU
+					alu.NOT();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// RESULT -> registerFile(RX)
+					setRegister(registerFile(registers.get(REG_RX)),
+							registers.get(REG_RESULT));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
+				setRegister(REG_OP1,
+						registers.get(registerFile(registers.get(REG_RX))));
 				alu.NOT();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// RESULT -> registerFile(RX)
-				setReg(registerFile(getReg(RX)), getReg(RESULT));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				storeResult(REG_RX);
+				timing.advance(3);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.SRC:
-			switch (prog_step) {
-			case 4:
-				// registerFile(R) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(R))));
-
-				// COUNT -> OP2
-				setReg(OP2, getReg(COUNT));
-
-				// LR -> OP3
-				setReg(OP3, getReg(LR));
-
-				// AL -> OP4
-				setReg(OP4, getReg(AL));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Perform shift in ALU
+		// Shift/rotate instructions
+		table[OpCodesList.SRC] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// registerFile(R) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_R))));
+
+					// COUNT -> OP2
+					setRegister(REG_OP2, registers.get(REG_COUNT));
+
+					// LR -> OP3
+					setRegister(REG_OP3, registers.get(REG_LR));
+
+					// AL -> OP4
+					setRegister(REG_OP4, registers.get(REG_AL));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Perform shift in ALU
+					alu.SRC();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// RESULT -> registerFile(R)
+					setRegister(registerFile(registers.get(REG_R)),
+							registers.get(REG_RESULT));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
+			}
+
+			@Override
+			boolean execute() {
+				loadShiftOperands();
 				alu.SRC();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// RESULT -> registerFile(R)
-				setReg(registerFile(getReg(R)), getReg(RESULT));
-				cycle_count++;
-				prog_step = 0;
-				break;
+				storeResult(REG_R);
+				timing.advance(3);
+				return true;
 			}
-			break;
+		};
 
-		case OpCodesList.RRC:
-			switch (prog_step) {
-			case 4:
-				// registerFile(R) -> OP1
-				setReg(OP1, getReg(registerFile(getReg(R))));
-
-				// COUNT -> OP2
-				setReg(OP2, getReg(COUNT));
-
-				// LR -> OP3
-				setReg(OP3, getReg(LR));
-
-				// AL -> OP4
-				setReg(OP4, getReg(AL));
-				cycle_count++;
-				prog_step++;
-				break;
-			case 5:
-				// Perform rotate in ALU
-				alu.RRC();
-				cycle_count++;
-				prog_step++;
-				break;
-			case 6:
-				// RESULT -> registerFile(R)
-				setReg(registerFile(getReg(R)), getReg(RESULT));
-				cycle_count++;
-				prog_step = 0;
-				break;
+		table[OpCodesList.RRC] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					// registerFile(R) -> OP1
+					setRegister(REG_OP1,
+							registers.get(registerFile(registers.get(REG_R))));
+
+					// COUNT -> OP2
+					setRegister(REG_OP2, registers.get(REG_COUNT));
+
+					// LR -> OP3
+					setRegister(REG_OP3, registers.get(REG_LR));
+
+					// AL -> OP4
+					setRegister(REG_OP4, registers.get(REG_AL));
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 5:
+					// Perform rotate in ALU
+					alu.RRC();
+					timing.advance(1);
+					prog_step++;
+					break;
+				case 6:
+					// RESULT -> registerFile(R)
+					setRegister(registerFile(registers.get(REG_R)),
+							registers.get(REG_RESULT));
+					timing.advance(1);
+					prog_step = 0;
+					break;
+				}
 			}
-			break;
 
-		// Needs logic for different devices??
-		case OpCodesList.IN:
-			logger.debug("RUNNING IN");
-			if (input_buffer.equals("")) {
-				logger.info("Waiting for interrupt...");
-				waitForInterrupt = true;
-				return;
+			@Override
+			boolean execute() {
+				loadShiftOperands();
+				alu.RRC();
+				storeResult(REG_R);
+				timing.advance(3);
+				return true;
 			}
+		};
 
-			// The character_pointer is used as an line_tag into the
-			// string to return a single character
-			try {
+		// IO instructions
+		table[OpCodesList.IN] = new OpcodeHandler() {
+			@Override
+			void step() {
+				// Needs logic for different devices??
+				logger.debug("RUNNING IN");
+				if (input_buffer.equals("")) {
+					logger.info("Waiting for interrupt...");
+					waitForInterrupt = true;
+					return;
+				}
+
+				// The character_pointer is used as an line_tag into the
+				// string to return a single character
 				if (character_pointer == 0)
-					Computer_GUI.append_to_terminal(input_buffer);
-				// int input = Integer.parseInt(input_buffer);
+					for (MachineListener listener : listeners)
+						listener.inputRead(input_buffer);
 
 				// Pick off a single character and put it in the register,
 				// advance the line_tag
 				int input = input_buffer.charAt(character_pointer++);
-				BitSet input_bitset = Utils.intToBitSet(input, 18);
-				setReg(registerFile(getReg(R)), input_bitset, 18);
-			} catch (NumberFormatException e) {
-				// Does not handle string input!!
-				// Word input_word = (Word) Utils.StringToWord(input_buffer);
-				// setReg(registerFile(getReg(R)), input_word);
-			}
-
-			// If the end of the string has been reached, reset the character
-			// pointer and
-			// clear the input buffer
-			if (character_pointer == input_buffer.length()) {
-				character_pointer = 0;
-				input_buffer = "";
-			}
-			cycle_count++;
-			prog_step = 0;
-			break;
-
-		case OpCodesList.OUT:
-			// Prints a single character
-			if (Utils.convertToInt(getReg(DEVID), getReg(DEVID).getNumBits()) == 1) {
-				int output = Utils.convertToInt(
-						getReg(registerFile(getReg(R))), 18);
-				Computer_GUI.append_to_terminal("" + (char) (output));
+				setRegister(registerFile(registers.get(REG_R)), input);
+
+				// If the end of the string has been reached, reset the character
+				// pointer and
+				// clear the input buffer
+				if (character_pointer == input_buffer.length()) {
+					character_pointer = 0;
+					input_buffer = "";
+				}
+				timing.advance(1);
+				prog_step = 0;
 			}
-			cycle_count++;
-			prog_step = 0;
-			break;
+		};
 
-		case OpCodesList.TRAP:
-			switch (prog_step) {
-			case 4:
-				logger.debug("TRAP");
-				// store pc in memory[2]
-				Word pc = Utils.registerToWord(getReg(PC), 12);
-				// convert pc to int, add 1, and then write to 2 (look at PC
-				// method)
-				Memory.getInstance().write(pc, 2);
-				break;
-			case 5:
-				// set PC to current subroutine address
-				Word sub_table = readFromMemory(0);
-				int sub_table_addr = Utils.convertToInt(sub_table, 18);
-				int trap_subroutine_offset = sub_table_addr
-						+ Utils.convertToInt(regMap.get(TRAPCODE),
-								regMap.get(TRAPCODE).getNumBits());
-				int trap_subroutine = trap_subroutine_offset + sub_table_addr;
-				Word sub_location = readFromMemory(trap_subroutine);
-
-				// check for illegal TRAP code
-				if (sub_location.isEmpty()) {
-
-					// PC and MSR are saved to memory
-					Word orig_PC = readFromMemory(2);
-					writeToMemory(orig_PC, 4);
-					Word msr = Utils.registerToWord(getReg(CPU.PC), 18);
-					writeToMemory(msr, 5);
-
-					// Change PC to fault error routine
-					Word faultRoutine = readFromMemory(1);
-					setReg(PC, faultRoutine); // Is this ok...just truncate
-												// least important?
-
-					// Execute fault error routine
-					executeInstruction("continue");
-				} else {
-					setReg(PC, sub_location);
+		table[OpCodesList.OUT] = new OpcodeHandler() {
+			@Override
+			void step() {
+				// Prints a single character
+				if (registers.get(REG_DEVID) == 1) {
+					int output = registers.getSigned(registerFile(registers
+							.get(REG_R)));
+					for (MachineListener listener : listeners)
+						listener.output((char) output);
 				}
+				timing.advance(1);
+				prog_step = 0;
 			}
-			break;
 
-		case OpCodesList.HLT:
-			logger.info("End of the program");
-			cont_execution = false;
-			prog_step = 0;
-			Computer_GUI.disable_btns();
-			Computer_GUI.toggle_button("load", true);
-
-			if (bootloaderRunning) {
-				Computer_GUI
-						.append_to_terminal("\n__________________________________________________\n");
-				clearMainRegisters();
-				bootloaderRunning = false;
-			} else {
-				Computer_GUI
-						.append_to_terminal("\n__________________________________________________\n");
-				clearMainRegisters();
-				bootloaderRunning = true;
-				jumpTaken = true;
-				initializeProgramCounter(InstructionLoader.BOOT_PROGRAM_LOADING_ADDR);
-				executeInstruction("continue");
+			@Override
+			boolean execute() {
+				step();
+				return true;
 			}
-			break;
+		};
+
+		// Special instructions
+		table[OpCodesList.TRAP] = new OpcodeHandler() {
+			@Override
+			void step() {
+				switch (prog_step) {
+				case 4:
+					logger.debug("TRAP");
+					// store pc in memory[2]
+					pokeMemory(registers.get(REG_PC), 2);
+					break;
+				case 5:
+					// set PC to current subroutine address
+					int sub_table_addr = Utils.signExtend(
+							readIntFromMemory(0), DEFAULT_BIT_SIZE);
+					int trap_subroutine_offset = sub_table_addr
+							+ registers.getSigned(REG_TRAPCODE);
+					int trap_subroutine = trap_subroutine_offset + sub_table_addr;
+					int sub_location = readIntFromMemory(trap_subroutine);
+
+					// check for illegal TRAP code
+					if (sub_location == 0) {
+
+						// PC and MSR are saved to memory
+						int orig_PC = readIntFromMemory(2);
+						writeToMemory(orig_PC, 4);
+						writeToMemory(registers.get(REG_PC), 5);
+
+						// Change PC to fault error routine, truncated to the
+						// PC width
+						setRegister(REG_PC, readIntFromMemory(1));
+
+						// Execute fault error routine
+						executeInstruction("continue");
+					} else {
+						setRegister(REG_PC, sub_location);
+					}
+				}
+			}
+		};
+
+		table[OpCodesList.HLT] = new OpcodeHandler() {
+			@Override
+			void step() {
+				logger.info("End of the program");
+				logger.info(getCacheReport());
+				logger.info(timing);
+				// Let main memory catch up, so whoever looks at it after the
+				// halt sees every store the program made.
+				data_cache.flush();
+				write_buffer.drain();
+				if (l2_cache != null)
+					l2_cache.flush();
+				cont_execution = false;
+				prog_step = 0;
+				publishRegisters(true);
+				for (MachineListener listener : listeners)
+					listener.halted();
+
+				// Without the GUI there is no one to load the next program, so
+				// stop here and leave the machine state for the caller.
+				if (!haltRestartsBoot)
+					return;
+
+				if (bootloaderRunning) {
+					clearMainRegisters();
+					bootloaderRunning = false;
+				} else {
+					clearMainRegisters();
+					bootloaderRunning = true;
+					jumpTaken = true;
+					initializeProgramCounter(InstructionLoader.BOOT_PROGRAM_LOADING_ADDR);
+					executeInstruction("continue");
+				}
+			}
+		};
+
+		// Floating point/vector instructions and CHK are not implemented
+		table[OpCodesList.FADD] = illegalOpcode;
+		table[OpCodesList.FSUB] = illegalOpcode;
+		table[OpCodesList.VADD] = illegalOpcode;
+		table[OpCodesList.VSUB] = illegalOpcode;
+		table[OpCodesList.CNVRT] = illegalOpcode;
+		table[OpCodesList.LDFR] = illegalOpcode;
+		table[OpCodesList.STFR] = illegalOpcode;
+		table[OpCodesList.CHK] = illegalOpcode;
+		return table;
+	}
+
+	/**
+	 * Reports the registers written since the last notification to the
+	 * listeners.
+	 * 
+	 * @param force
+	 *            false to skip the notification if the publish interval has
+	 *            not elapsed (the changes are kept for the next one).
+	 */
+	private void publishRegisters(boolean force) {
+		if (changedRegisters == 0)
+			return;
+		MachineListener[] targets = listeners;
+		if (targets.length == 0) {
+			changedRegisters = 0;
+			return;
+		}
+		if (!force && registerPublishInterval > 0) {
+			long now = System.nanoTime();
+			if (now - lastRegisterPublish < registerPublishInterval)
+				return;
+			lastRegisterPublish = now;
 		}
+		long changed = changedRegisters;
+		changedRegisters = 0;
+		for (MachineListener listener : targets)
+			listener.registersChanged(changed, registers);
 	}
 
-	private void clearMainRegisters() {
-		setReg(R0, Utils.intToBitSet(0, 18), 18);
-		setReg(R1, Utils.intToBitSet(0, 18), 18);
-		setReg(R2, Utils.intToBitSet(0, 18), 18);
-		setReg(R3, Utils.intToBitSet(0, 18), 18);
+	private void fireExecutionStarted() {
+		for (MachineListener listener : listeners)
+			listener.executionStarted();
+	}
+
+	private void fireStepCompleted() {
+		for (MachineListener listener : listeners)
+			listener.stepCompleted();
+	}
 
-		setReg(X1, Utils.intToBitSet(0, 18), 18);
-		setReg(X2, Utils.intToBitSet(0, 18), 18);
-		setReg(X3, Utils.intToBitSet(0, 18), 18);
+	private void clearMainRegisters() {
+		for (int slot = REG_R0; slot <= REG_X3; slot++)
+			setRegister(slot, 0);
 	}
 
 	/**
-	 * Prints the contents of all the registers to the console. (Eventually will
+	 * Logs the contents of all the registers at debug level. (Eventually will
 	 * become obsolete when GUI is done)
 	 */
 	private void printAllRegisters() {
-		Utils.bitsetToString(R0, getReg(R0), getReg(R0).getNumBits());
-		Utils.bitsetToString(R1, getReg(R1), getReg(R1).getNumBits());
-		Utils.bitsetToString(R2, getReg(R2), getReg(R2).getNumBits());
-		Utils.bitsetToString(R3, getReg(R3), getReg(R3).getNumBits());
-		Utils.bitsetToString(X1, getReg(X1), getReg(X1).getNumBits());
-		Utils.bitsetToString(X2, getReg(X2), getReg(X2).getNumBits());
-		Utils.bitsetToString(X3, getReg(X3), getReg(X3).getNumBits());
-		Utils.bitsetToString(PC, getReg(PC), getReg(PC).getNumBits());
-		Utils.bitsetToString(IR, getReg(IR), getReg(IR).getNumBits());
-		Utils.bitsetToString(MAR, getReg(MAR), getReg(MAR).getNumBits());
-		Utils.bitsetToString(MDR, getReg(MDR), getReg(MDR).getNumBits());
-		Utils.bitsetToString(MSR, getReg(MSR), getReg(MSR).getNumBits());
-		Utils.bitsetToString(MFR, getReg(MFR), getReg(MFR).getNumBits());
-		Utils.bitsetToString(OPCODE, getReg(OPCODE), getReg(OPCODE)
-				.getNumBits());
-		Utils.bitsetToString(IX, getReg(IX), getReg(IX).getNumBits());
-		Utils.bitsetToString(R, getReg(R), getReg(R).getNumBits());
-		Utils.bitsetToString(I, getReg(I), getReg(I).getNumBits());
-		Utils.bitsetToString(ADDR, getReg(ADDR), getReg(ADDR).getNumBits());
-		Utils.bitsetToString(EA, getReg(EA), getReg(EA).getNumBits());
-		Utils.bitsetToString(RX, getReg(RX), getReg(RX).getNumBits());
-		Utils.bitsetToString(RY, getReg(RY), getReg(RY).getNumBits());
-		Utils.bitsetToString(COUNT, getReg(COUNT), getReg(COUNT).getNumBits());
-		Utils.bitsetToString(LR, getReg(LR), getReg(LR).getNumBits());
-		Utils.bitsetToString(AL, getReg(AL), getReg(AL).getNumBits());
-		Utils.bitsetToString(OP1, getReg(OP1), getReg(OP1).getNumBits());
-		Utils.bitsetToString(OP2, getReg(OP2), getReg(OP2).getNumBits());
-		Utils.bitsetToString(OP3, getReg(OP3), getReg(OP3).getNumBits());
-		Utils.bitsetToString(OP4, getReg(OP4), getReg(OP4).getNumBits());
-		Utils.bitsetToString(RESULT, getReg(RESULT), getReg(RESULT)
-				.getNumBits());
-		Utils.bitsetToString(DEVID, getReg(DEVID), getReg(DEVID).getNumBits());
-		Utils.bitsetToString(CC, getReg(CC), getReg(CC).getNumBits());
-		Utils.bitsetToString(TRAPCODE, getReg(TRAPCODE), getReg(TRAPCODE)
-				.getNumBits());
-	}
-
-	/**
-	 * Omits a check to the cache and fetches contents directly from memory.
-	 * Used when a cache check would be redundant. Updates the cache with the
-	 * block fetched from memory via a call to
-	 * {@link L1Cache#add(L1CacheLine line)} .
-	 * 
-	 * @param address
-	 *            The address of the contents to fetch from mmain memory.
-	 * @return The contents of the specified address in main memory.
-	 */
-	private Word readFromMainMemory(int address) {
-		Word[] block = Memory.getInstance().getMemoryBlock(address);
-		int tag = (address / 8) * 8;
-		int index = address % 8;
-		Word word = block[index];
-		L1CacheLine line = new L1CacheLine(tag, block, (byte) 0);
-		l1_cache.add(line);
-		return word;
+		if (!logger.isDebugEnabled())
+			return;
+		for (int slot = 0; slot < REGISTER_COUNT; slot++)
+			logger.debug(RegisterFile.getName(slot) + " contains: "
+					+ registers.toBinaryString(slot));
 	}
 
 	/**
-	 * Returns a String key into the register map according to the contents of R
-	 * (the register line_tag register)
-	 * 
-	 * @param R
-	 *            The R register.
-	 * @return A String key into the register map.
+	 * @return true, and sets stoppedAtCycleLimit, if the cycles spent plus the
+	 *         idle micro steps have reached the cycle limit.
 	 */
-	private String registerFile(BitSet R) {
-		switch (Utils.convertToUnsignedByte(R,
-				InstructionBitFormats.LD_STR_R_SIZE)) {
-		case 0:
-			return R0;
-		case 1:
-			return R1;
-		case 2:
-			return R2;
-		case 3:
-			return R3;
-		}
-		return null;
+	private boolean atCycleLimit() {
+		if (timing.getCycles() + idle_steps < cycle_limit)
+			return false;
+		stoppedAtCycleLimit = true;
+		return true;
+	}
+
+	/**
+	 * Runs singleInstruction() for "continue" and "fast run", counting the
+	 * micro step towards the cycle limit if it took no cycles.
+	 */
+	private void limitedInstruction() {
+		long cycles = timing.getCycles();
+		singleInstruction();
+		if (timing.getCycles() == cycles)
+			idle_steps++;
 	}
 
 	/**
@@ -2044,54 +3482,526 @@ public class CPU implements CPUConstants {
 	private void singleInstruction() {
 		switch (prog_step) {
 		case 0:
-			setReg(MAR, regMap.get(PC));
-			cycle_count++;
+			setRegister(REG_MAR, registers.get(REG_PC));
+			timing.advance(1);
 			prog_step++;
 			break;
 
 		case 1:
-			int mar_addr = Utils.convertToInt(regMap.get(MAR), getReg(MAR)
-					.getNumBits());
-			setReg(MDR, this.readFromMemory(mar_addr));
-			cycle_count++;
+			setRegister(REG_MDR, fetchFromMemory(registers.get(REG_MAR)));
+			timing.advance(1);
 			prog_step++;
 			break;
 
 		case 2:
-			setReg(IR, regMap.get(MDR));
-			cycle_count++;
+			setRegister(REG_IR, registers.get(REG_MDR));
+			timing.advance(1);
 			prog_step++;
 			break;
 
 		case 3:
-			irdecoder.parseIR(regMap.get(IR));
+			irdecoder.parseIR(registers.get(REG_IR), registers.get(REG_MAR));
 
-			if (Utils.convertToUnsignedByte(getReg(ADDR), getReg(ADDR)
-					.getNumBits()) == 8) {
-				short currentPC = (short) Utils.convertToInt(getReg(PC),
-						getReg(PC).getNumBits());
-				int jumpAddr = InstructionLoader
-						.getJumpAddrFromReference(currentPC);
-				Word word = Utils.registerToWord(
-						Utils.intToBitSet(jumpAddr, 18), 18);
-				this.writeToMemory(word, 8);
+			if (registers.get(REG_ADDR) == InstructionLoader.JUMP_INDIRECTION_ADDR) {
+				short currentPC = (short) registers.get(REG_PC);
+				int jumpAddr = machine.getJumpAddrFromReference(currentPC);
+				writeToMemory(jumpAddr, InstructionLoader.JUMP_INDIRECTION_ADDR);
 			}
 
-			cycle_count++;
+			timing.advance(1);
 			prog_step++;
 			break;
 
 		default:
-			opcodeInstruction(Utils.convertToUnsignedByte(getReg(OPCODE),
-					InstructionBitFormats.OPCODE_SIZE));
+			if (switch_dispatch)
+				switchStep(registers.get(REG_OPCODE));
+			else
+				opcodeHandlers[registers.get(REG_OPCODE)].step();
+		}
+		clockMemoryController();
+	}
+
+	/**
+	 * Performs the micro step given by prog_step of the instruction with an
+	 * opcode, dispatched with a switch (see {@link #DISPATCH_PROPERTY}). Each
+	 * case calls its handler from a call site of its own, so the JIT sees a
+	 * single receiver at each and can inline it, as it did the cases of the
+	 * switch the table replaced.
+	 */
+	private void switchStep(int opcode) {
+		switch (opcode) {
+		case OpCodesList.LDR:
+			opcodeHandlers[OpCodesList.LDR].step();
+			break;
+		case OpCodesList.STR:
+			opcodeHandlers[OpCodesList.STR].step();
+			break;
+		case OpCodesList.LDA:
+			opcodeHandlers[OpCodesList.LDA].step();
+			break;
+		case OpCodesList.LDX:
+			opcodeHandlers[OpCodesList.LDX].step();
+			break;
+		case OpCodesList.STX:
+			opcodeHandlers[OpCodesList.STX].step();
+			break;
+		case OpCodesList.JZ:
+			opcodeHandlers[OpCodesList.JZ].step();
+			break;
+		case OpCodesList.JNE:
+			opcodeHandlers[OpCodesList.JNE].step();
+			break;
+		case OpCodesList.JCC:
+			opcodeHandlers[OpCodesList.JCC].step();
+			break;
+		case OpCodesList.JMP:
+			opcodeHandlers[OpCodesList.JMP].step();
+			break;
+		case OpCodesList.JSR:
+			opcodeHandlers[OpCodesList.JSR].step();
+			break;
+		case OpCodesList.RFS:
+			opcodeHandlers[OpCodesList.RFS].step();
+			break;
+		case OpCodesList.SOB:
+			opcodeHandlers[OpCodesList.SOB].step();
+			break;
+		case OpCodesList.JGE:
+			opcodeHandlers[OpCodesList.JGE].step();
+			break;
+		case OpCodesList.AMR:
+			opcodeHandlers[OpCodesList.AMR].step();
+			break;
+		case OpCodesList.SMR:
+			opcodeHandlers[OpCodesList.SMR].step();
+			break;
+		case OpCodesList.AIR:
+			opcodeHandlers[OpCodesList.AIR].step();
+			break;
+		case OpCodesList.SIR:
+			opcodeHandlers[OpCodesList.SIR].step();
+			break;
+		case OpCodesList.MLT:
+			opcodeHandlers[OpCodesList.MLT].step();
+			break;
+		case OpCodesList.DVD:
+			opcodeHandlers[OpCodesList.DVD].step();
+			break;
+		case OpCodesList.TRR:
+			opcodeHandlers[OpCodesList.TRR].step();
+			break;
+		case OpCodesList.AND:
+			opcodeHandlers[OpCodesList.AND].step();
+			break;
+		case OpCodesList.ORR:
+			opcodeHandlers[OpCodesList.ORR].step();
+			break;
+		case OpCodesList.NOT:
+			opcodeHandlers[OpCodesList.NOT].step();
+			break;
+		case OpCodesList.SRC:
+			opcodeHandlers[OpCodesList.SRC].step();
+			break;
+		case OpCodesList.RRC:
+			opcodeHandlers[OpCodesList.RRC].step();
+			break;
+		case OpCodesList.IN:
+			opcodeHandlers[OpCodesList.IN].step();
+			break;
+		case OpCodesList.OUT:
+			opcodeHandlers[OpCodesList.OUT].step();
+			break;
+		case OpCodesList.TRAP:
+			opcodeHandlers[OpCodesList.TRAP].step();
+			break;
+		case OpCodesList.HLT:
+			opcodeHandlers[OpCodesList.HLT].step();
+			break;
+		default:
+			illegalOpcode.step();
 		}
 	}
 
 	/**
-	 * @return the l1Cache
+	 * Executes the instruction with an opcode in a single call, dispatched
+	 * with a switch; see {@link #switchStep(int)}.
+	 * 
+	 * @return true if the instruction was executed, false if it has to be run
+	 *         with micro steps instead.
+	 */
+	private boolean switchExecute(int opcode) {
+		switch (opcode) {
+		case OpCodesList.LDR:
+			return opcodeHandlers[OpCodesList.LDR].execute();
+		case OpCodesList.STR:
+			return opcodeHandlers[OpCodesList.STR].execute();
+		case OpCodesList.LDA:
+			return opcodeHandlers[OpCodesList.LDA].execute();
+		case OpCodesList.LDX:
+			return opcodeHandlers[OpCodesList.LDX].execute();
+		case OpCodesList.STX:
+			return opcodeHandlers[OpCodesList.STX].execute();
+		case OpCodesList.JZ:
+			return opcodeHandlers[OpCodesList.JZ].execute();
+		case OpCodesList.JNE:
+			return opcodeHandlers[OpCodesList.JNE].execute();
+		case OpCodesList.JCC:
+			return opcodeHandlers[OpCodesList.JCC].execute();
+		case OpCodesList.JMP:
+			return opcodeHandlers[OpCodesList.JMP].execute();
+		case OpCodesList.JSR:
+			return opcodeHandlers[OpCodesList.JSR].execute();
+		case OpCodesList.RFS:
+			return opcodeHandlers[OpCodesList.RFS].execute();
+		case OpCodesList.SOB:
+			return opcodeHandlers[OpCodesList.SOB].execute();
+		case OpCodesList.JGE:
+			return opcodeHandlers[OpCodesList.JGE].execute();
+		case OpCodesList.AMR:
+			return opcodeHandlers[OpCodesList.AMR].execute();
+		case OpCodesList.SMR:
+			return opcodeHandlers[OpCodesList.SMR].execute();
+		case OpCodesList.AIR:
+			return opcodeHandlers[OpCodesList.AIR].execute();
+		case OpCodesList.SIR:
+			return opcodeHandlers[OpCodesList.SIR].execute();
+		case OpCodesList.MLT:
+			return opcodeHandlers[OpCodesList.MLT].execute();
+		case OpCodesList.DVD:
+			return opcodeHandlers[OpCodesList.DVD].execute();
+		case OpCodesList.TRR:
+			return opcodeHandlers[OpCodesList.TRR].execute();
+		case OpCodesList.AND:
+			return opcodeHandlers[OpCodesList.AND].execute();
+		case OpCodesList.ORR:
+			return opcodeHandlers[OpCodesList.ORR].execute();
+		case OpCodesList.NOT:
+			return opcodeHandlers[OpCodesList.NOT].execute();
+		case OpCodesList.SRC:
+			return opcodeHandlers[OpCodesList.SRC].execute();
+		case OpCodesList.RRC:
+			return opcodeHandlers[OpCodesList.RRC].execute();
+		case OpCodesList.IN:
+			return opcodeHandlers[OpCodesList.IN].execute();
+		case OpCodesList.OUT:
+			return opcodeHandlers[OpCodesList.OUT].execute();
+		case OpCodesList.TRAP:
+			return opcodeHandlers[OpCodesList.TRAP].execute();
+		case OpCodesList.HLT:
+			return opcodeHandlers[OpCodesList.HLT].execute();
+		default:
+			return illegalOpcode.execute();
+		}
+	}
+
+	/**
+	 * Lets a synchronous memory controller catch up with the cycles the CPU
+	 * has used since it was last clocked.
+	 */
+	private void clockMemoryController() {
+		if (!memory_controller.isSynchronous())
+			return;
+		long cycles = timing.getCycles() - clocked_cycle_count;
+		clocked_cycle_count = timing.getCycles();
+		if (cycles > 0)
+			memory_controller.clock(cycles);
+	}
+
+	/**
+	 * Executes the instruction at the PC in a single call, for the "fast run"
+	 * execution mode. Performs the same register transfers, memory accesses
+	 * and ALU operations as the micro steps of singleInstruction() and
+	 * {@link OpcodeHandler#step()}, so the machine is in the same state at
+	 * the end of the instruction, but without dispatching once per micro step,
+	 * logging or notifying listeners. The PC is not advanced.
+	 * <p>
+	 * IN, TRAP and HLT are left to the micro-step engine: the instruction is
+	 * fetched and decoded, prog_step is left at 4 and false is returned.
+	 * 
+	 * @return true if the instruction was executed, false if it still has to
+	 *         be run with singleInstruction().
+	 */
+	private boolean fastInstruction() {
+		// Fetch and decode (prog_step 0 to 3)
+		setRegister(REG_MAR, registers.get(REG_PC));
+		completeSteps(1);
+		setRegister(REG_MDR, fetchFromMemory(registers.get(REG_MAR)));
+		setRegister(REG_IR, registers.get(REG_MDR));
+		completeSteps(2);
+		irdecoder.parseIR(registers.get(REG_IR), registers.get(REG_MAR));
+		if (registers.get(REG_ADDR) == InstructionLoader.JUMP_INDIRECTION_ADDR) {
+			short currentPC = (short) registers.get(REG_PC);
+			int jumpAddr = machine.getJumpAddrFromReference(currentPC);
+			writeToMemory(jumpAddr, InstructionLoader.JUMP_INDIRECTION_ADDR);
+		}
+		completeSteps(1);
+		prog_step = 4;
+
+		int opcode = registers.get(REG_OPCODE);
+		if (!(switch_dispatch ? switchExecute(opcode)
+				: opcodeHandlers[opcode].execute()))
+			return false;
+		prog_step = 0;
+		clockMemoryController();
+		return true;
+	}
+
+	/**
+	 * Adds the cycles of micro steps done in "fast run" mode, and clocks a
+	 * synchronous memory controller through them. Called before each memory
+	 * access, so the write buffer has drained as far as when the steps are
+	 * run one at a time by singleInstruction(), which clocks the controller
+	 * after every step.
+	 * 
+	 * @param steps
+	 *            The micro steps completed since the last call.
+	 */
+	private void completeSteps(int steps) {
+		timing.advance(steps);
+		clockMemoryController();
+	}
+
+	/**
+	 * EA -> PC, for a taken branch.
+	 */
+	private void jumpTo(int address) {
+		setRegister(REG_PC, address);
+		jumpTaken = true;
+	}
+
+	/**
+	 * JZ and JNE for fast run: jumps to EA if c(R) is zero (onZero) or is not
+	 * zero (!onZero), comparing in the ALU as the micro steps do.
+	 */
+	private void jumpIfZero(boolean onZero) {
+		calculateEA(false);
+		setRegister(REG_OP1, registers.get(registerFile(registers.get(REG_R))));
+		registers.set(REG_OP2, 0);
+		alu.TRR();
+		boolean zero = (registers.get(REG_CC) & ccBit(EQUALORNOT)) != 0;
+		if (zero == onZero)
+			jumpTo(registers.get(REG_EA));
+		timing.advance(4);
+	}
+
+	/**
+	 * EA -> MAR, Mem(MAR) -> MDR, registerFile(R) -> OP1, MDR -> OP2. The
+	 * read is the micro step after EA -> MAR, so the caller completes the
+	 * steps before it first (see {@link #completeSteps(int)}).
+	 */
+	private void loadMemoryOperands() {
+		setRegister(REG_MAR, registers.get(REG_EA));
+		setRegister(REG_MDR, readIntFromMemory(registers.get(REG_MAR)));
+		setRegister(REG_OP1, registers.get(registerFile(registers.get(REG_R))));
+		setRegister(REG_OP2, registers.get(REG_MDR));
+	}
+
+	/**
+	 * registerFile(R) -> OP1, ADDR -> OP2 (ADDR contains immediate data).
+	 */
+	private void loadImmediateOperands() {
+		setRegister(REG_OP1, registers.get(registerFile(registers.get(REG_R))));
+		setRegister(REG_OP2, registers.get(REG_ADDR));
+	}
+
+	/**
+	 * registerFile(RX) -> OP1, registerFile(RY) -> OP2.
+	 */
+	private void loadRegisterOperands() {
+		setRegister(REG_OP1,
+				registers.get(registerFile(registers.get(REG_RX))));
+		setRegister(REG_OP2,
+				registers.get(registerFile(registers.get(REG_RY))));
+	}
+
+	/**
+	 * registerFile(R) -> OP1, COUNT -> OP2, LR -> OP3, AL -> OP4.
+	 */
+	private void loadShiftOperands() {
+		setRegister(REG_OP1, registers.get(registerFile(registers.get(REG_R))));
+		setRegister(REG_OP2, registers.get(REG_COUNT));
+		setRegister(REG_OP3, registers.get(REG_LR));
+		setRegister(REG_OP4, registers.get(REG_AL));
+	}
+
+	/**
+	 * RESULT -> registerFile(field), where field is the R or RX register.
+	 */
+	private void storeResult(int field) {
+		setRegister(registerFile(registers.get(field)),
+				registers.get(REG_RESULT));
+	}
+
+	/**
+	 * RESULT -> registerFile(RX), RESULT2 -> registerFile(RX+1). RX can only
+	 * be 0 or 2.
+	 */
+	private void storeDoubleResult() {
+		setRegister(registerFile(registers.get(REG_RX)),
+				registers.get(REG_RESULT));
+		if (registers.get(REG_RX) == 0)
+			setRegister(REG_R1, registers.get(REG_RESULT2));
+		else
+			setRegister(REG_R3, registers.get(REG_RESULT2));
+	}
+
+	/**
+	 * Waits until every write in the write buffer has reached the level below
+	 * the L1 data cache. Called before a snapshot is saved or restored, so the
+	 * snapshot does not have to hold the buffer.
+	 */
+	void drainWriteBuffer() {
+		write_buffer.drain();
+		clocked_cycle_count = timing.getCycles();
+	}
+
+	/**
+	 * Writes the registers, the execution and I/O state, the counters and
+	 * the caches to a snapshot (see {@link Snapshot}). The write buffer must
+	 * have been drained. Cache statistics are not saved.
+	 */
+	void writeState(DataOutput out) throws IOException {
+		int[] values = new int[REGISTER_COUNT];
+		for (int slot = 0; slot < REGISTER_COUNT; slot++)
+			values[slot] = registers.get(slot);
+		out.writeByte(REGISTER_COUNT);
+		Snapshot.writeWords(out, values, 0, REGISTER_COUNT);
+
+		out.writeInt(prog_step);
+		out.writeBoolean(cont_execution);
+		out.writeBoolean(waitForInterrupt);
+		out.writeBoolean(jumpTaken);
+		out.writeBoolean(bootloaderRunning);
+		out.writeUTF(currentExecution);
+		out.writeUTF(input_buffer);
+		out.writeInt(character_pointer);
+		out.writeInt(memory_stack);
+		out.writeLong(instruction_count);
+		out.writeLong(timing.getCycles());
+
+		List<Cache> caches = getCaches();
+		out.writeByte(caches.size());
+		for (Cache cache : caches)
+			cache.writeState(out);
+	}
+
+	/**
+	 * Replaces the registers, the execution and I/O state, the counters and
+	 * the caches with those of a snapshot. The write buffer must have been
+	 * drained. The cache statistics and the CPI of each instruction class are
+	 * reset, and every register is published to the listeners on the next
+	 * notification.
+	 * 
+	 * @throws IOException
+	 *             If the snapshot was taken with different caches.
+	 */
+	void readState(DataInput in) throws IOException {
+		Snapshot.expect("registers", REGISTER_COUNT, in.readByte());
+		int[] values = new int[REGISTER_COUNT];
+		Snapshot.readWords(in, values, 0, REGISTER_COUNT);
+		for (int slot = 0; slot < REGISTER_COUNT; slot++)
+			registers.set(slot, values[slot]);
+		changedRegisters = (1L << REGISTER_COUNT) - 1;
+
+		prog_step = in.readInt();
+		cont_execution = in.readBoolean();
+		waitForInterrupt = in.readBoolean();
+		jumpTaken = in.readBoolean();
+		bootloaderRunning = in.readBoolean();
+		currentExecution = in.readUTF();
+		input_buffer = in.readUTF();
+		character_pointer = in.readInt();
+		memory_stack = in.readInt();
+		instruction_count = in.readLong();
+		timing.restore(in.readLong());
+		clocked_cycle_count = timing.getCycles();
+
+		List<Cache> caches = getCaches();
+		Snapshot.expect("caches", caches.size(), in.readByte());
+		for (Cache cache : caches)
+			cache.readState(in);
+		resetCacheStatistics();
+	}
+
+	/**
+	 * @return The cycles this CPU has spent since it was created.
+	 */
+	public long getCycleCount() {
+		return timing.getCycles();
+	}
+
+	/**
+	 * @return The cycle counter and the CPI of each instruction class.
+	 */
+	public TimingModel getTimingModel() {
+		return timing;
+	}
+
+	/**
+	 * @return the number of instructions completed from memory
+	 */
+	long getInstructionCount() {
+		return instruction_count;
+	}
+
+	/**
+	 * @return The hit, miss and stall counters of the L1 data cache (the
+	 *         unified L1 cache unless the L1 is split).
+	 */
+	public CacheStatistics getCacheStatistics() {
+		return data_cache.getStatistics();
+	}
+
+	/**
+	 * @return The average number of cycles a read or write through the caches
+	 *         has taken, or 0 if there have been none.
+	 */
+	public double getAverageMemoryAccessTime() {
+		return memory_accesses == 0 ? 0 : (double) memory_access_cycles
+				/ memory_accesses;
+	}
+
+	/**
+	 * Clears the counters of every cache and the average memory access time.
+	 */
+	public void resetCacheStatistics() {
+		for (Cache cache : getCaches())
+			cache.getStatistics().reset();
+		memory_accesses = 0;
+		memory_access_cycles = 0;
+	}
+
+	/**
+	 * @return The statistics of every cache, top level first, followed by the
+	 *         average memory access time.
+	 */
+	public String getCacheReport() {
+		StringBuilder report = new StringBuilder();
+		for (Cache cache : getCaches())
+			report.append(cache.getStatistics());
+		report.append(String.format("AMAT: %.2f cycles over %d accesses%n",
+				getAverageMemoryAccessTime(), memory_accesses));
+		return report.toString();
+	}
+
+	/**
+	 * @return The caches, top level first.
+	 */
+	private List<Cache> getCaches() {
+		List<Cache> caches = new ArrayList<Cache>();
+		if (instruction_cache != data_cache)
+			caches.add(instruction_cache);
+		caches.add(data_cache);
+		if (l2_cache != null)
+			caches.add(l2_cache);
+		return caches;
+	}
+
+	/**
+	 * @return the L1 data cache
 	 */
-	static L1Cache getL1Cache() {
-		return l1_cache;
+	Cache getL1Cache() {
+		return data_cache;
 	}
 
 	/**
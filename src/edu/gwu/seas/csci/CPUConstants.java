@@ -50,6 +50,47 @@ public interface CPUConstants {
 	public static final String LR = "LR";
 	public static final String COUNT = "COUNT";
 	
+	/**
+	 * Slot indices into the RegisterFile. The GPRs and index registers are
+	 * contiguous so that R and IX fields can be added directly to REG_R0 and
+	 * REG_X1.
+	 */
+	
+	public static final int REG_R0 = 0;
+	public static final int REG_R1 = 1;
+	public static final int REG_R2 = 2;
+	public static final int REG_R3 = 3;
+	public static final int REG_X1 = 4;
+	public static final int REG_X2 = 5;
+	public static final int REG_X3 = 6;
+	public static final int REG_PC = 7;
+	public static final int REG_IR = 8;
+	public static final int REG_CC = 9;
+	public static final int REG_MAR = 10;
+	public static final int REG_MDR = 11;
+	public static final int REG_MSR = 12;
+	public static final int REG_MFR = 13;
+	public static final int REG_EA = 14;
+	public static final int REG_OP1 = 15;
+	public static final int REG_OP2 = 16;
+	public static final int REG_OP3 = 17;
+	public static final int REG_OP4 = 18;
+	public static final int REG_RESULT = 19;
+	public static final int REG_RESULT2 = 20;
+	public static final int REG_OPCODE = 21;
+	public static final int REG_IX = 22;
+	public static final int REG_R = 23;
+	public static final int REG_I = 24;
+	public static final int REG_ADDR = 25;
+	public static final int REG_RX = 26;
+	public static final int REG_RY = 27;
+	public static final int REG_AL = 28;
+	public static final int REG_LR = 29;
+	public static final int REG_COUNT = 30;
+	public static final int REG_DEVID = 31;
+	public static final int REG_TRAPCODE = 32;
+	public static final int REGISTER_COUNT = 33;
+	
 	/**
 	 * ALU constants
 	 */
@@ -64,6 +105,13 @@ public interface CPUConstants {
 	public static final int UNDERFLOW = 1;
 	public static final int DIVZERO = 2;
 	public static final int EQUALORNOT = 3;
+
+	//On bits in the MFR register that identify machine faults, counted from
+	//the least significant bit.
+	public static final int ILLEGAL_RESERVED_ADDRESS = 0;
+	public static final int ILLEGAL_TRAP_CODE = 1;
+	public static final int ILLEGAL_OPCODE = 2;
+	public static final int ILLEGAL_ADDRESS = 3;
 	
 	/*
 	 * IO Constants
@@ -74,18 +122,13 @@ public interface CPUConstants {
 	 * TRAP Constants
 	 */
 	public static final String TRAPCODE = "TRAPCODE";
-	public static final int TRAP_TABLE_ADDR = 2032;
 	
 	/*
 	 * Machine Fault
 	 */
-	public static final int FAULT_AND_TRAP_START_ADDR = 1984;
+	// The fault routine and trap table addresses depend on the memory size,
+	// see Memory.getFaultRoutineAddress() and Memory.getTrapTableAddress().
 	public static final String FAULT_INSTR_FILENAME = "fault_instructions.txt";
-	
-	/*
-	 * Memory Constants 
-	 */
-	public static final int MAX_ADDR = 2048;
 
 	
 	
@@ -0,0 +1,386 @@
+package edu.gwu.seas.csci;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Counts what happens in a cache: hits and misses for reads and writes,
+ * evictions, and the times the CPU stalled because a full set held only dirty
+ * lines or because the write buffer was full.
+ * <p>
+ * Misses are classified with the usual three Cs. A miss on a block that has
+ * never been cached before is compulsory. Otherwise the access is replayed
+ * against a fully associative LRU cache with the same number of lines: if that
+ * cache misses too, the miss is a capacity miss, otherwise it is a conflict
+ * miss caused by the set mapping. The fully associative cache is kept in int
+ * arrays indexed by block and by line, so counting does not allocate.
+ * <p>
+ * Hits and misses are also broken down by address range, in regions of a
+ * fixed number of words (256 unless set with the cache.stats.region system
+ * property).
+ */
+public class CacheStatistics {
+
+	public static final String REGION_SIZE_PROPERTY = "cache.stats.region";
+
+	public static final int DEFAULT_REGION_SIZE = 256;
+
+	/**
+	 * The name of the cache, e.g. "L1D".
+	 */
+	private final String name;
+
+	private final int line_size;
+
+	private final int region_size;
+
+	/**
+	 * Blocks (addresses divided by the line size) that have been cached.
+	 */
+	private final BitSet seen = new BitSet();
+
+	/**
+	 * For each block, the line of a fully associative LRU cache of the same
+	 * capacity that holds it, or -1.
+	 */
+	private final int[] shadow_lines;
+
+	/**
+	 * The block held in each line of the fully associative cache, or -1.
+	 */
+	private final int[] shadow_blocks;
+
+	/**
+	 * When each line of the fully associative cache was last used.
+	 */
+	private final long[] shadow_used;
+
+	/**
+	 * Counts the accesses to the fully associative cache.
+	 */
+	private long shadow_clock;
+
+	private final long[] region_hits;
+
+	private final long[] region_misses;
+
+	private long read_hits;
+	private long read_misses;
+	private long write_hits;
+	private long write_misses;
+	private long compulsory_misses;
+	private long capacity_misses;
+	private long conflict_misses;
+	private long evictions;
+	private long line_fills;
+	private long write_backs;
+	private long memory_words_read;
+	private long memory_words_written;
+	private long dirty_eviction_stalls;
+	private long write_buffer_stalls;
+
+	/**
+	 * @param name
+	 *            The name of the cache, used in the report.
+	 * @param lines
+	 *            The number of lines in the cache.
+	 * @param line_size
+	 *            The number of words in each line.
+	 * @param memory_size
+	 *            The number of words of memory behind the cache.
+	 */
+	CacheStatistics(String name, final int lines, int line_size,
+			int memory_size) {
+		this.name = name;
+		this.line_size = line_size;
+		this.region_size = Integer.getInteger(REGION_SIZE_PROPERTY,
+				DEFAULT_REGION_SIZE);
+		if (region_size < 1)
+			throw new IllegalArgumentException(
+					"The statistics region size must be positive, not "
+							+ region_size + ".");
+		int regions = (memory_size + region_size - 1) / region_size;
+		region_hits = new long[regions];
+		region_misses = new long[regions];
+		shadow_lines = new int[(memory_size + line_size - 1) / line_size];
+		Arrays.fill(shadow_lines, -1);
+		shadow_blocks = new int[lines];
+		Arrays.fill(shadow_blocks, -1);
+		shadow_used = new long[lines];
+	}
+
+	/**
+	 * Accesses a block in the fully associative LRU cache, replacing the
+	 * least recently used line if it is not there.
+	 * 
+	 * @return true if the block was there.
+	 */
+	private boolean accessFullyAssociative(int block) {
+		int line = shadow_lines[block];
+		if (line != -1) {
+			shadow_used[line] = ++shadow_clock;
+			return true;
+		}
+		line = 0;
+		for (int i = 1; i < shadow_used.length; i++)
+			if (shadow_used[i] < shadow_used[line])
+				line = i;
+		if (shadow_blocks[line] != -1)
+			shadow_lines[shadow_blocks[line]] = -1;
+		shadow_blocks[line] = block;
+		shadow_lines[block] = line;
+		shadow_used[line] = ++shadow_clock;
+		return false;
+	}
+
+	/**
+	 * Records a read or write that found its address in the cache.
+	 */
+	void hit(int address, boolean write) {
+		if (write)
+			write_hits++;
+		else
+			read_hits++;
+		region_hits[address / region_size]++;
+		accessFullyAssociative(address / line_size);
+	}
+
+	/**
+	 * Records and classifies a read or write that did not find its address in
+	 * the cache.
+	 */
+	void miss(int address, boolean write) {
+		if (write)
+			write_misses++;
+		else
+			read_misses++;
+		region_misses[address / region_size]++;
+
+		int block = address / line_size;
+		boolean fully_associative_hit = accessFullyAssociative(block);
+		if (!seen.get(block)) {
+			seen.set(block);
+			compulsory_misses++;
+		} else if (fully_associative_hit)
+			conflict_misses++;
+		else
+			capacity_misses++;
+	}
+
+	/**
+	 * Records a line being replaced to make room for another.
+	 */
+	void evicted() {
+		evictions++;
+	}
+
+	/**
+	 * Records a line being read from the next level into the cache.
+	 */
+	void lineFilled(int words) {
+		line_fills++;
+		memory_words_read += words;
+	}
+
+	/**
+	 * Records a modified line being written back to the next level.
+	 */
+	void lineWrittenBack(int words) {
+		write_backs++;
+		memory_words_written += words;
+	}
+
+	/**
+	 * Records words being sent on to the next level by a write-through cache.
+	 */
+	void wordsWrittenThrough(int words) {
+		memory_words_written += words;
+	}
+
+	/**
+	 * Records the CPU waiting for a dirty line to be written back before it
+	 * could evict it.
+	 */
+	void dirtyEvictionStall() {
+		dirty_eviction_stalls++;
+	}
+
+	/**
+	 * Records the CPU waiting for room in the write buffer.
+	 */
+	void writeBufferStall() {
+		write_buffer_stalls++;
+	}
+
+	/**
+	 * Clears every counter. The cache contents are unchanged, so misses on
+	 * blocks cached before the reset are not counted as compulsory.
+	 */
+	public void reset() {
+		read_hits = read_misses = write_hits = write_misses = 0;
+		compulsory_misses = capacity_misses = conflict_misses = 0;
+		evictions = dirty_eviction_stalls = write_buffer_stalls = 0;
+		line_fills = write_backs = memory_words_read = memory_words_written = 0;
+		for (int i = 0; i < region_hits.length; i++) {
+			region_hits[i] = 0;
+			region_misses[i] = 0;
+		}
+	}
+
+	public long getReadHits() {
+		return read_hits;
+	}
+
+	public long getReadMisses() {
+		return read_misses;
+	}
+
+	public long getWriteHits() {
+		return write_hits;
+	}
+
+	public long getWriteMisses() {
+		return write_misses;
+	}
+
+	public long getHits() {
+		return read_hits + write_hits;
+	}
+
+	public long getMisses() {
+		return read_misses + write_misses;
+	}
+
+	/**
+	 * @return The fraction of accesses that hit, or 0 if there were none.
+	 */
+	public double getHitRate() {
+		long accesses = getHits() + getMisses();
+		return accesses == 0 ? 0 : (double) getHits() / accesses;
+	}
+
+	public long getCompulsoryMisses() {
+		return compulsory_misses;
+	}
+
+	public long getCapacityMisses() {
+		return capacity_misses;
+	}
+
+	public long getConflictMisses() {
+		return conflict_misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public long getLineFills() {
+		return line_fills;
+	}
+
+	public long getWriteBacks() {
+		return write_backs;
+	}
+
+	/**
+	 * @return The name of the cache, e.g. "L1D".
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return The words read from the next level (an L2 cache or main
+	 *         memory) into the cache.
+	 */
+	public long getMemoryWordsRead() {
+		return memory_words_read;
+	}
+
+	/**
+	 * @return The words written to the next level, written through or by
+	 *         write-backs.
+	 */
+	public long getMemoryWordsWritten() {
+		return memory_words_written;
+	}
+
+	public long getDirtyEvictionStalls() {
+		return dirty_eviction_stalls;
+	}
+
+	public long getWriteBufferStalls() {
+		return write_buffer_stalls;
+	}
+
+	/**
+	 * @return The dirty-eviction and write-buffer-full stalls together.
+	 */
+	public long getStalls() {
+		return dirty_eviction_stalls + write_buffer_stalls;
+	}
+
+	/**
+	 * @return The number of words in each address range of the breakdown.
+	 */
+	public int getRegionSize() {
+		return region_size;
+	}
+
+	/**
+	 * @return The number of address ranges in the breakdown.
+	 */
+	public int getRegionCount() {
+		return region_hits.length;
+	}
+
+	/**
+	 * @param region
+	 *            The address range, starting at region * getRegionSize().
+	 * @return The hits on addresses in the range.
+	 */
+	public long getRegionHits(int region) {
+		return region_hits[region];
+	}
+
+	/**
+	 * @param region
+	 *            The address range, starting at region * getRegionSize().
+	 * @return The misses on addresses in the range.
+	 */
+	public long getRegionMisses(int region) {
+		return region_misses[region];
+	}
+
+	/**
+	 * @return A multi-line report of every counter, listing only the address
+	 *         ranges that were accessed.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%s cache: %d hits, %d misses (%.1f%% hit rate)%n",
+				name, getHits(), getMisses(), getHitRate() * 100));
+		report.append(String.format("  reads: %d hits, %d misses%n", read_hits,
+				read_misses));
+		report.append(String.format("  writes: %d hits, %d misses%n",
+				write_hits, write_misses));
+		report.append(String.format(
+				"  misses: %d compulsory, %d capacity, %d conflict%n",
+				compulsory_misses, capacity_misses, conflict_misses));
+		report.append(String.format(
+				"  %d evictions, %d dirty-eviction stalls, %d write-buffer-full stalls%n",
+				evictions, dirty_eviction_stalls, write_buffer_stalls));
+		report.append(String.format(
+				"  next level: %d words read (%d line fills), %d words written (%d write-backs)%n",
+				memory_words_read, line_fills, memory_words_written,
+				write_backs));
+		for (int region = 0; region < region_hits.length; region++)
+			if (region_hits[region] + region_misses[region] > 0)
+				report.append(String.format("  %d-%d: %d hits, %d misses%n",
+						region * region_size, (region + 1) * region_size - 1,
+						region_hits[region], region_misses[region]));
+		return report.toString();
+	}
+}
@@ -1,5 +1,6 @@
 package edu.gwu.seas.csci;
 
+import java.io.IOException;
 import java.text.ParseException;
 
 import javax.swing.JFrame;
@@ -27,16 +28,19 @@ public class Computer {
 	 * The entry point to the application
 	 * 
 	 * @param args
-	 *            Ignored.
+	 *            Optionally, the number of words of memory (see
+	 *            {@link Memory#initialize(int)}).
 	 */
 	public static void main(String[] args) {
 		Computer computer;
 		try {
+			if (args.length > 0)
+				Memory.initialize(Integer.parseInt(args[0]));
 			computer = new Computer();
-			computer.cpu.loadROM(new InstructionLoader());
+			computer.cpu.loadROM(ROMImage.getDefault());
 			computer.cpu.executeInstruction("continue");
 		} catch (NullPointerException | IllegalArgumentException
-				| ParseException e) {
+				| ParseException | IOException e) {
 			e.printStackTrace();
 		}
 	}
@@ -8,6 +8,7 @@ import javax.swing.JTextField;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.nio.file.Paths;
 import java.util.BitSet;
 import java.util.HashMap;
 
@@ -31,7 +32,8 @@ import java.awt.Color;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-public class Computer_GUI extends JFrame implements ActionListener {
+public class Computer_GUI extends JFrame implements ActionListener,
+		MachineListener {
 
 	/**
 	 * This class defines the UI used for the simulator Attributes include: -
@@ -39,6 +41,11 @@ public class Computer_GUI extends JFrame implements ActionListener {
 	 * input
 	 */
 	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Minimum time between register display refreshes while the CPU runs.
+	 */
+	private static final long REGISTER_REFRESH_MILLIS = 50;
 	static final Logger logger = LogManager.getLogger(Computer_GUI.class.getName());
 	private JPanel contentPane;
 	private JTextField textField;
@@ -53,7 +60,7 @@ public class Computer_GUI extends JFrame implements ActionListener {
 	private JPanel panel;
 	private JSpinner bit_value_model, memory_address;
 	private JButton reset;
-	private InstructionLoader fileloader = new InstructionLoader();
+	private InstructionLoader fileloader;
 	private CPU cpu;
 	private static HashMap<String, JRadioButton[]> Registers; // map of
 																// registers on
@@ -65,6 +72,8 @@ public class Computer_GUI extends JFrame implements ActionListener {
 	 */
 	public Computer_GUI(CPU cpu) {
 		this.cpu = cpu;
+		cpu.addMachineListener(this);
+		cpu.setRegisterPublishInterval(REGISTER_REFRESH_MILLIS);
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		contentPane = new JPanel();
 		setBounds(100, 100, 1049, 547);
@@ -218,7 +227,8 @@ public class Computer_GUI extends JFrame implements ActionListener {
 		JLabel lblAt = new JLabel("At -");
 		panel.add(lblAt, "cell 0 2,alignx center");
 
-		SpinnerModel model = new SpinnerNumberModel(0, 0, 2048, 1);
+		SpinnerModel model = new SpinnerNumberModel(0, 0,
+				cpu.getMemory().size() - 1, 1);
 		memory_address = new JSpinner(model);
 		memory_address.setSize(10, 50);
 		panel.add(memory_address, "cell 1 2,growx");
@@ -362,9 +372,20 @@ public class Computer_GUI extends JFrame implements ActionListener {
 					if (returnVal == JFileChooser.APPROVE_OPTION) {
 						String fully_qualified_file_name = chooser
 								.getSelectedFile().getAbsolutePath();
-						fileloader = new InstructionLoader(
-								fully_qualified_file_name, true);
-						fileloader.load();
+						AssemblyCache cache = AssemblyCache.getDefault();
+						if (cache.isEnabled()) {
+							int address = cpu
+									.peekMemory(InstructionLoader.BOOT_PROGRAM_LOADING_ADDR) == 0 ? InstructionLoader.BOOT_PROGRAM_LOADING_ADDR
+									: InstructionLoader.GENERAL_PROGRAM_LOADING_ADDR;
+							new ObjectLoader(cpu.getMachine()).load(cache
+									.assemble(Paths.get(fully_qualified_file_name),
+											address));
+						} else {
+							fileloader = new InstructionLoader(
+									cpu.getMachine(), fully_qualified_file_name,
+									true);
+							fileloader.load();
+						}
 					} else {
 						logger.debug("File failed to load or could not be found.");
 					}
@@ -388,15 +409,13 @@ public class Computer_GUI extends JFrame implements ActionListener {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				if ((String) register_list.getSelectedItem() == "Memory") {
-					Word word = Memory.getInstance().read(
-							(Integer) memory_address.getValue());
-					Computer_GUI.append_to_terminal(Utils
-							.WordToString(word, 18) + "\n");
+					Word word = Word.fromInt(cpu.peekMemory((Integer) memory_address
+							.getValue()));
+					append_to_terminal(Utils.WordToString(word, 18) + "\n");
 				} else {
 					Register reg = cpu.getReg((String) register_list
 							.getSelectedItem());
-					Computer_GUI.append_to_terminal(Utils.WordToString(reg, 18)
-							+ "\n");
+					append_to_terminal(Utils.WordToString(reg, 18) + "\n");
 				}
 			}
 		});
@@ -410,7 +429,7 @@ public class Computer_GUI extends JFrame implements ActionListener {
 							.getValue());
 					BitSet bitset = Utils.intToBitSet(bitset_value, 18);
 					Word word = Utils.registerToWord(bitset, 18);
-					Memory.getInstance().write(word, memory_address_value);
+					cpu.pokeMemory(word.toInt(), memory_address_value);
 				} else {
 					int int_value = clean_spinner((double) bit_value.getValue());
 					BitSet reg_val = Utils.intToBitSet(int_value, 18);
@@ -488,31 +507,59 @@ public class Computer_GUI extends JFrame implements ActionListener {
 		return (int) value;
 	}
 
-	// By giving a string value for register, and a value, registers can be
-	// monitored
-	public static void update_register(String register, BitSet value) {
-		try {
-			JRadioButton[] curr_reg = Registers.get(register);
-			for (int i = 0; i < curr_reg.length; i++) {
-				if (value.get(i)) {
-					curr_reg[i].setSelected(true);
-				} else {
-					curr_reg[i].setSelected(false);
-				}
-			}
-		} catch (Exception e) {
-
+	// Redraws the registers the CPU reports as written since the last
+	// notification.
+	@Override
+	public void registersChanged(long changedSlots, RegisterFile registers) {
+		for (int slot = 0; slot < CPUConstants.REGISTER_COUNT; slot++) {
+			if ((changedSlots & (1L << slot)) == 0)
+				continue;
+			JRadioButton[] curr_reg = Registers.get(RegisterFile
+					.getName(slot));
+			if (curr_reg == null)
+				continue;
+			int numBits = Math.min(curr_reg.length,
+					RegisterFile.getNumBits(slot));
+			for (int i = 0; i < numBits; i++)
+				curr_reg[i].setSelected(registers.isBitSet(slot, i));
 		}
 	}
 
-	public static void disable_btns() {
+	@Override
+	public void executionStarted() {
+		toggle_button("load", false);
+	}
+
+	@Override
+	public void stepCompleted() {
+		toggle_button("runinput", true);
+	}
+
+	@Override
+	public void inputRead(String input) {
+		append_to_terminal(input);
+	}
+
+	@Override
+	public void output(char character) {
+		append_to_terminal(String.valueOf(character));
+	}
+
+	@Override
+	public void halted() {
+		disable_btns();
+		toggle_button("load", true);
+		append_to_terminal("\n__________________________________________________\n");
+	}
+
+	private void disable_btns() {
 		start.setEnabled(false);
 		cont.setEnabled(false);
 		macrostep.setEnabled(false);
 		microstep.setEnabled(false);
 	}
 
-	public static void toggle_button(String Button, Boolean toggle) {
+	private void toggle_button(String Button, Boolean toggle) {
 		switch (Button) {
 		case "runinput":
 			runinput.setEnabled(toggle);
@@ -524,7 +571,7 @@ public class Computer_GUI extends JFrame implements ActionListener {
 		}
 	}
 
-	public static void append_to_terminal(String value) {
+	private void append_to_terminal(String value) {
 		terminal.append(value);
 	}
 
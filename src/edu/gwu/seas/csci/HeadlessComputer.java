@@ -0,0 +1,297 @@
+package edu.gwu.seas.csci;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.text.ParseException;
+
+/**
+ * Runs a single program without the {@link Computer_GUI}. The program file is
+ * loaded after the ROM with an {@link InstructionLoader}, or with an
+ * {@link ObjectLoader} if it is an object file written by the
+ * {@link Assembler}. Each line of input is handed to the IN device when the
+ * program waits for it (terminated with the same end-of-transmission
+ * character the GUI appends), characters written by OUT go to stdout, and
+ * execution stops at the program's HLT. The program
+ * runs in the CPU's "fast run" mode.
+ * <p>
+ * Usage: HeadlessComputer program [input file]. Input is read from stdin when
+ * no input file is given. The memory size can be set with -Dmemory.size (see
+ * {@link Memory}), and -Dmemory.controller=synchronous makes runs reproducible
+ * cycle for cycle (see {@link CPU.MemoryController}). Logging goes to stderr
+ * at WARN level unless log4j.configurationFile is set. The ROM is assembled
+ * once at startup, or mapped from the directory set with -Drom.directory (see
+ * {@link ROMImage}). With -Dassembler.cache=directory, the ROM and program
+ * sources are assembled once and kept there for later runs (see
+ * {@link AssemblyCache}).
+ * <p>
+ * Exit status: 0 when the program halts, 1 on a usage or loading error, 2 if
+ * the input runs out while the program is waiting on IN. With
+ * -Dcache.stats=true the statistics of every cache level and the average
+ * memory access time for the run are printed to stderr at the end, and with
+ * -Dtiming.stats=true the cycles per instruction of each instruction class
+ * (see {@link TimingModel}).
+ */
+public class HeadlessComputer {
+
+	/**
+	 * Terminates each line of input, as typed into the GUI terminal.
+	 */
+	private static final char END_OF_INPUT = (char) 4;
+
+	private final Machine machine;
+
+	private final CPU cpu;
+
+	/**
+	 * Creates a headless computer that prints OUT to stdout and loads the ROM
+	 * (the boot program and the fault and trap routines).
+	 */
+	public HeadlessComputer() {
+		this(System.out);
+	}
+
+	/**
+	 * Creates a headless computer on a new {@link Machine} and loads the ROM.
+	 * 
+	 * @param out
+	 *            Receives the characters written by OUT.
+	 */
+	public HeadlessComputer(PrintStream out) {
+		this(new Machine(), out);
+	}
+
+	/**
+	 * Creates a headless computer on the given machine and loads the ROM from
+	 * {@link ROMImage#getDefault()}.
+	 * 
+	 * @param machine
+	 *            The machine to run programs on, not used by anything else.
+	 * @param out
+	 *            Receives the characters written by OUT.
+	 * @throws IllegalArgumentException
+	 *             If the ROM cannot be read or assembled.
+	 */
+	public HeadlessComputer(Machine machine, PrintStream out)
+			throws IllegalArgumentException {
+		this.machine = machine;
+		cpu = machine.getCPU();
+		connect(out);
+		try {
+			cpu.loadROM(ROMImage.getDefault());
+		} catch (ParseException | IOException e) {
+			throw new IllegalArgumentException("Cannot load the ROM: " + e, e);
+		}
+	}
+
+	/**
+	 * Creates a headless computer on the given machine and restores it from
+	 * a snapshot instead of loading the ROM. A snapshot saved once the ROM was
+	 * loaded skips loading it; one saved after loading a program as well can
+	 * be run with {@link #resume(BufferedReader, String)}.
+	 * 
+	 * @param machine
+	 *            The machine to run programs on, not used by anything else.
+	 * @param out
+	 *            Receives the characters written by OUT.
+	 * @param snapshot
+	 *            A snapshot saved by {@link Machine#saveSnapshot} on a
+	 *            machine configured the same way, or null to use the machine
+	 *            as it is (a fork of a loaded machine, for example).
+	 * @throws IOException
+	 *             If the snapshot cannot be restored.
+	 */
+	public HeadlessComputer(Machine machine, PrintStream out,
+			InputStream snapshot) throws IOException {
+		this.machine = machine;
+		cpu = machine.getCPU();
+		connect(out);
+		if (snapshot != null)
+			machine.restoreSnapshot(snapshot);
+	}
+
+	/**
+	 * Creates a headless computer on a {@link Machine#fork() fork} of this
+	 * one's machine, to run the program loaded here from where it is.
+	 * 
+	 * @param out
+	 *            Receives the characters the child writes with OUT.
+	 * @return A headless computer ready for
+	 *         {@link #resume(BufferedReader, String)}.
+	 */
+	public HeadlessComputer fork(PrintStream out) {
+		try {
+			return new HeadlessComputer(machine.fork(), out, null);
+		} catch (IOException e) {
+			// Nothing is restored without a snapshot.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Sends OUT to a stream and makes HLT stop the machine.
+	 */
+	private void connect(final PrintStream out) {
+		cpu.setHaltRestartsBoot(false);
+		cpu.addMachineListener(new MachineAdapter() {
+			@Override
+			public void output(char character) {
+				out.print(character);
+			}
+		});
+	}
+
+	/**
+	 * @return The machine programs run on.
+	 */
+	public Machine getMachine() {
+		return machine;
+	}
+
+	/**
+	 * Loads a program at the general program loading address and runs it to
+	 * HLT.
+	 *
+	 * @param program
+	 *            Fully-qualified name of the program file.
+	 * @param input
+	 *            Lines to feed to the IN device.
+	 * @return true if the program halted, false if it was still waiting for
+	 *         input when the input ran out or it reached the cycle limit
+	 *         (see {@link CPU#setCycleLimit(long)}).
+	 * @throws ParseException
+	 *             If the program cannot be assembled.
+	 * @throws IOException
+	 *             If the program or the input cannot be read.
+	 */
+	public boolean run(String program, BufferedReader input)
+			throws ParseException, IOException {
+		return run(program, input, "fast run");
+	}
+
+	/**
+	 * Loads a program and runs it to HLT using the given execution mode. The
+	 * cache statistics, the average memory access time and the CPI of each
+	 * instruction class are reset after loading, so they cover the run alone.
+	 * 
+	 * @param program
+	 *            Fully-qualified name of the program file.
+	 * @param input
+	 *            Lines to feed to the IN device.
+	 * @param step_type
+	 *            "fast run" or "continue" (see {@link CPU#executeInstruction}).
+	 * @return true if the program halted, false if it was still waiting for
+	 *         input when the input ran out or it reached the cycle limit
+	 *         (see {@link CPU#setCycleLimit(long)}).
+	 * @throws ParseException
+	 *             If the program cannot be assembled.
+	 * @throws IOException
+	 *             If the program or the input cannot be read.
+	 */
+	public boolean run(String program, BufferedReader input, String step_type)
+			throws ParseException, IOException {
+		load(program);
+		return resume(input, step_type);
+	}
+
+	/**
+	 * Loads a program without running it, and resets the cache statistics,
+	 * the average memory access time and the CPI of each instruction class.
+	 * Source is loaded at the general program loading address, assembled
+	 * through the {@link AssemblyCache} if it is on; an object file (see
+	 * {@link Assembler}), recognized by its ".obj" extension, at the address
+	 * it was assembled for.
+	 * 
+	 * @param program
+	 *            Fully-qualified name of the program file.
+	 * @throws ParseException
+	 *             If the program cannot be assembled.
+	 * @throws IOException
+	 *             If an object file cannot be read.
+	 */
+	public void load(String program) throws ParseException, IOException {
+		int entry;
+		AssemblyCache cache = AssemblyCache.getDefault();
+		if (program.endsWith(ObjectFile.EXTENSION))
+			entry = new ObjectLoader(machine).load(ObjectFile.map(Paths
+					.get(program)));
+		else if (cache.isEnabled())
+			entry = new ObjectLoader(machine).load(cache.assemble(
+					Paths.get(program),
+					InstructionLoader.GENERAL_PROGRAM_LOADING_ADDR));
+		else {
+			new InstructionLoader(machine, program, true).load();
+			entry = InstructionLoader.GENERAL_PROGRAM_LOADING_ADDR;
+		}
+		cpu.resetCacheStatistics();
+		cpu.getTimingModel().reset();
+		cpu.initializeProgramCounter(entry);
+	}
+
+	/**
+	 * Runs the machine from where it is to HLT: a program just loaded, or a
+	 * machine restored from a snapshot or forked.
+	 * 
+	 * @param input
+	 *            Lines to feed to the IN device.
+	 * @param step_type
+	 *            "fast run" or "continue" (see {@link CPU#executeInstruction}).
+	 * @return true if the program halted, false if it was still waiting for
+	 *         input when the input ran out or it reached the cycle limit
+	 *         (see {@link CPU#setCycleLimit(long)}).
+	 * @throws IOException
+	 *             If the input cannot be read.
+	 */
+	public boolean resume(BufferedReader input, String step_type)
+			throws IOException {
+		if (!cpu.isWaitingForInput())
+			cpu.executeInstruction(step_type);
+
+		while (cpu.isWaitingForInput()) {
+			String line = input.readLine();
+			if (line == null)
+				return false;
+			cpu.input_buffer = line + END_OF_INPUT;
+			cpu.handleInterrupt(CPUConstants.INTERRUPT_IO);
+		}
+		return !cpu.isStoppedAtCycleLimit();
+	}
+
+	/**
+	 * @param args
+	 *            The program file, optionally followed by an input file.
+	 */
+	public static void main(String[] args) {
+		boolean printCacheStatistics = Boolean.getBoolean("cache.stats");
+		boolean printTiming = Boolean.getBoolean("timing.stats");
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: HeadlessComputer program [input file]");
+			System.exit(1);
+		}
+		if (System.getProperty("log4j.configurationFile") == null)
+			System.setProperty("log4j.configurationFile",
+					"log4j2-headless.xml");
+
+		int status;
+		try {
+			InputStream in = args.length == 2 ? new FileInputStream(args[1])
+					: System.in;
+			BufferedReader input = new BufferedReader(new InputStreamReader(in));
+			HeadlessComputer computer = new HeadlessComputer();
+			status = computer.run(args[0], input) ? 0 : 2;
+			if (printCacheStatistics)
+				System.err.print(computer.cpu.getCacheReport());
+			if (printTiming)
+				System.err.print(computer.cpu.getTimingModel());
+		} catch (ParseException | IOException | IllegalArgumentException e) {
+			System.err.println(e);
+			status = 1;
+		}
+		System.out.flush();
+		System.exit(status);
+	}
+}
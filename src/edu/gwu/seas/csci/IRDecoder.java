@@ -1,7 +1,5 @@
 package edu.gwu.seas.csci;
 
-import java.util.BitSet;
-
 /**
  * The IRDecoder class is responsible for parsing the contents of the 
  * IR into the special-purpose registers based on the opcode and the instruction 
@@ -20,6 +18,12 @@ public class IRDecoder {
 
 	private Context context = null;
 
+	/**
+	 * Decoded instructions indexed by the address they were fetched from.
+	 * Instructions can only be fetched from the addresses the PC can hold.
+	 */
+	private final DecodedInstruction[] decoded;
+
 	/**
 	 * Single constructor. Takes an instance to the working CPU object.
 	 * 
@@ -28,138 +32,183 @@ public class IRDecoder {
 	 */
 	public IRDecoder(CPU cpu) {
 		this.cpu = cpu;
+		decoded = new DecodedInstruction[Math.min(cpu.getMemory().size(),
+				1 << RegisterFile.getNumBits(CPU.REG_PC))];
 		context = Context.getInstance();
 	}
 
 	/**
 	 * Parses a given instruction into its opcode and arguments - accordingly,
-	 * these go in their special-purpose registers in the CPU object.
+	 * these go in their special-purpose registers in the CPU object. The
+	 * decoded fields are kept per address, so an instruction fetched again
+	 * from the same address (a loop body, for example) is only decoded once.
+	 * 
+	 * @param IR
+	 *            The contents of the Instruction Register.
+	 * @param address
+	 *            The address the instruction was fetched from.
+	 */
+	public void parseIR(final int IR, final int address) {
+		DecodedInstruction instruction;
+		if (address >= 0 && address < decoded.length) {
+			instruction = decoded[address];
+			// The word is compared as well, since memory can be changed
+			// without going through the CPU (the GUI, for example) and
+			// instructions typed into the GUI are decoded with a stale MAR.
+			if (instruction == null || instruction.word != IR) {
+				instruction = decode(IR);
+				decoded[address] = instruction;
+			}
+		} else
+			instruction = decode(IR);
+
+		instruction.apply(cpu);
+	}
+
+	/**
+	 * Forgets the decoded instruction at an address. Called by the CPU
+	 * whenever it writes to that address.
+	 * 
+	 * @param address
+	 *            The address written to.
+	 */
+	public void invalidate(int address) {
+		if (address >= 0 && address < decoded.length)
+			decoded[address] = null;
+	}
+
+	/**
+	 * Breaks up an instruction into its opcode and the fields of its
+	 * instruction format.
 	 * 
 	 * @param IR
-	 *            The BitSet representing the contents of the Instruction
-	 *            Register.
+	 *            The instruction.
+	 * @return The decoded instruction. Only the opcode is decoded for opcodes
+	 *         without an instruction class; the CPU raises a machine fault
+	 *         when it executes them.
 	 */
-	public void parseIR(final Register IR) {
+	private DecodedInstruction decode(final int IR) {
 		String instruction_string;
 		Context.InstructionClass instruction_class;
-		BitSet opcode;
+		int opcode;
 
 		// All instructions formats have the opcode in the first 6 bits
-		opcode = IR.get(InstructionBitFormats.OPCODE_START, InstructionBitFormats.OPCODE_END + 1);
-		cpu.setReg(CPU.OPCODE, opcode, InstructionBitFormats.OPCODE_SIZE);
+		opcode = Utils.field(IR, InstructionBitFormats.OPCODE_START, InstructionBitFormats.OPCODE_END);
 
 		// Get the instruction class for the current opcode
-		instruction_string = context.getOpCodeStrings().get(
-				Utils.convertToUnsignedByte(opcode, InstructionBitFormats.OPCODE_SIZE));
+		instruction_string = context.getOpCodeStrings().get((byte) opcode);
 		instruction_class = context.getOpcodeClasses().get(instruction_string);
-
+		if (instruction_class == null)
+			return new DecodedInstruction(IR, opcode);
 
 		/**
 		 * After determining the type of instruction format, break up the
 		 * instruction to the appropriate special-purpose registers.
 		 */
-		// TODO Put all of the "IR.get(...)" into a setter method for the
-		// different registers in the CPU.
 		switch (instruction_class) {
 		case HALT:
 			// Halt instruction has a unique instruction format
 			// IR.get(InstructionBitFormats.HALT_SUFFIX_START,
 			// InstructionBitFormats.HALT_SUFFIX_END+1);
-			break;
+			return new DecodedInstruction(IR, opcode);
 		case TRAP:
 			// Trap instruction has a unique instruction format
 			// IR.get(InstructionBitFormats.TRAP_CODE_START,
 			// InstructionBitFormats.TRAP_CODE_END+1);
-			break;
+			return new DecodedInstruction(IR, opcode);
 
 		case LD_STR:
 		case TRANS:
 		case ARITH:
-			cpu.setReg(CPU.IX, IR.get(
+			return new DecodedInstruction(IR, opcode,
+					CPU.REG_IX, Utils.field(IR,
 					InstructionBitFormats.LD_STR_IX_START,
-					InstructionBitFormats.LD_STR_IX_END + 1),
-					InstructionBitFormats.LD_STR_IX_SIZE);
+					InstructionBitFormats.LD_STR_IX_END),
 
-			cpu.setReg(CPU.R, IR.get(
+					CPU.REG_R, Utils.field(IR,
 					InstructionBitFormats.LD_STR_R_START,
-					InstructionBitFormats.LD_STR_R_END + 1),
-					InstructionBitFormats.LD_STR_R_SIZE);
+					InstructionBitFormats.LD_STR_R_END),
 
-			cpu.setReg(CPU.I, IR.get(
+					CPU.REG_I, Utils.field(IR,
 					InstructionBitFormats.LD_STR_I_START,
-					InstructionBitFormats.LD_STR_I_END + 1),
-					InstructionBitFormats.LD_STR_I_SIZE);
+					InstructionBitFormats.LD_STR_I_END),
 
-			cpu.setReg(CPU.ADDR, IR.get(
+					CPU.REG_ADDR, Utils.field(IR,
 					InstructionBitFormats.LD_STR_ADDR_START,
-					InstructionBitFormats.LD_STR_ADDR_END + 1),
-					InstructionBitFormats.LD_STR_ADDR_SIZE);
-			break;
+					InstructionBitFormats.LD_STR_ADDR_END));
 
 		case XY_ARITH_LOGIC:
-			cpu.setReg(CPU.RX, IR.get(
+			return new DecodedInstruction(IR, opcode,
+					CPU.REG_RX, Utils.field(IR,
 					InstructionBitFormats.XY_ARITH_RX_START,
-					InstructionBitFormats.XY_ARITH_RX_END+1),
-					InstructionBitFormats.XY_ARITH_RX_SIZE);
+					InstructionBitFormats.XY_ARITH_RX_END),
 			
-			cpu.setReg(CPU.RY, IR.get(
-					InstructionBitFormats.XY_ARITH_RY_START, 
-					InstructionBitFormats.XY_ARITH_RY_END+1),
-					InstructionBitFormats.XY_ARITH_RY_SIZE);
-			break;
+					CPU.REG_RY, Utils.field(IR,
+					InstructionBitFormats.XY_ARITH_RY_START,
+					InstructionBitFormats.XY_ARITH_RY_END));
 			
 		case SHIFT:
-			cpu.setReg(CPU.R, IR.get(
-					InstructionBitFormats.SHIFT_R_START, 
-					InstructionBitFormats.SHIFT_R_END+1),
-					InstructionBitFormats.SHIFT_R_SIZE);
+			return new DecodedInstruction(IR, opcode,
+					CPU.REG_R, Utils.field(IR,
+					InstructionBitFormats.SHIFT_R_START,
+					InstructionBitFormats.SHIFT_R_END),
 			
-			cpu.setReg(CPU.AL, IR.get(
-					InstructionBitFormats.SHIFT_AL_START, 
-					InstructionBitFormats.SHIFT_AL_END+1),
-					InstructionBitFormats.SHIFT_AL_SIZE);
+					CPU.REG_AL, Utils.field(IR,
+					InstructionBitFormats.SHIFT_AL_START,
+					InstructionBitFormats.SHIFT_AL_END),
 			
-			cpu.setReg(CPU.LR, IR.get(
-					InstructionBitFormats.SHIFT_LR_START, 
-					InstructionBitFormats.SHIFT_LR_END+1),
-					InstructionBitFormats.SHIFT_LR_SIZE);
+					CPU.REG_LR, Utils.field(IR,
+					InstructionBitFormats.SHIFT_LR_START,
+					InstructionBitFormats.SHIFT_LR_END),
 			
-			cpu.setReg(CPU.COUNT, IR.get(
-					InstructionBitFormats.SHIFT_COUNT_START, 
-					InstructionBitFormats.SHIFT_COUNT_END+1),
-					InstructionBitFormats.SHIFT_COUNT_SIZE);
-			break;
+					CPU.REG_COUNT, Utils.field(IR,
+					InstructionBitFormats.SHIFT_COUNT_START,
+					InstructionBitFormats.SHIFT_COUNT_END));
 		case IO:
-			cpu.setReg(CPU.R, IR.get(
+			return new DecodedInstruction(IR, opcode,
+					CPU.REG_R, Utils.field(IR,
 					InstructionBitFormats.IO_R_START,
-					InstructionBitFormats.IO_R_END+1),
-					InstructionBitFormats.IO_R_SIZE);
-			cpu.setReg(CPU.DEVID, IR.get(
+					InstructionBitFormats.IO_R_END),
+					CPU.REG_DEVID, Utils.field(IR,
 					InstructionBitFormats.IO_DEVID_START,
-					InstructionBitFormats.IO_DEVID_END+1),
-					InstructionBitFormats.IO_DEVID_SIZE);
-			break;
+					InstructionBitFormats.IO_DEVID_END));
 		default:
-			
-			/*
-			 * Illegal opcode has occurred
-			 * 
-			 * Registers PC and MSR are saved to memory. Next, the fault error routine.
-			 */
-			
-			Word pc = Utils.registerToWord(cpu.getReg(CPU.PC), 12);
-			cpu.writeToMemory(pc, 4);
-			Word msr = Utils.registerToWord(cpu.getReg(CPU.PC), 18);
-			cpu.writeToMemory(msr, 5);
-			
-			//Change PC to fault error routine
-			Word faultRoutine = cpu.readFromMemory(1);
-			cpu.setReg(CPU.PC, faultRoutine); //Is this ok...just truncate least important?
-			
-			//Execute fault error routine
-			cpu.executeInstruction("continue");
-			
-			break;
+			return new DecodedInstruction(IR, opcode);
+		}
+	}
+
+	/**
+	 * An instruction broken up into the values its fields put in the
+	 * special-purpose registers.
+	 */
+	static class DecodedInstruction {
+
+		/**
+		 * The instruction the fields were taken from.
+		 */
+		final int word;
+
+		final int opcode;
+
+		/**
+		 * Pairs of register slot and field value, in the order the fields are
+		 * written.
+		 */
+		private final int[] fields;
+
+		DecodedInstruction(int word, int opcode, int... fields) {
+			this.word = word;
+			this.opcode = opcode;
+			this.fields = fields;
+		}
+
+		/**
+		 * Writes the opcode and fields into their registers.
+		 */
+		void apply(CPU cpu) {
+			cpu.setRegister(CPU.REG_OPCODE, opcode);
+			for (int i = 0; i < fields.length; i += 2)
+				cpu.setRegister(fields[i], fields[i + 1]);
 		}
 	}
 }
@@ -4,6 +4,8 @@
 package edu.gwu.seas.csci;
 
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -11,13 +13,18 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Stack;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * Reads input and loads it into {@link Memory} via the CPU cache.
+ * Reads input and loads it into the {@link Memory} of a {@link Machine} via
+ * the CPU cache. The loader keeps the label table of what it loaded, and the
+ * machine keeps the loader that loaded last.
  * 
  * TODO: Document the InstructionFormat switching.
  * 
@@ -32,20 +39,40 @@ public class InstructionLoader implements Loader {
 	public static final byte BOOT_PROGRAM_LOADING_ADDR = 24;
 	public static final byte GENERAL_PROGRAM_LOADING_ADDR = 100;
 
+	/**
+	 * Where the paragraph program 2 searches is loaded.
+	 */
+	static final int PARAGRAPH_ADDR = 1000;
+
+	/**
+	 * The machine loaded into.
+	 */
+	private final Machine machine;
+
 	/**
 	 * Get a reference to the CPU for access to read and write methods.
 	 */
-	private CPU cpu = CPU.getInstance();
+	private final CPU cpu;
 
 	/**
 	 * Provide a reference to the Computer's context.
 	 */
-	private Context context = Context.getInstance();
+	private static final Context context = Context.getInstance();
 
 	/**
 	 * Used to write instructions into Word objects in memory.
 	 */
-	private InstructionWriter writer = new InstructionWriter();
+	private static final InstructionWriter writer = new InstructionWriter();
+
+	/**
+	 * Resolves labels against this loader's label table.
+	 */
+	private final LabelResolver labels = new LabelResolver() {
+		@Override
+		public byte resolveLabel(String label, short location) {
+			return InstructionLoader.this.resolveLabel(label, location);
+		}
+	};
 
 	/**
 	 * Contains the contents of ROM.
@@ -53,9 +80,22 @@ public class InstructionLoader implements Loader {
 	private BufferedReader reader = null;
 
 	/**
-	 * Keeps track of jump labels.
+	 * Keeps track of jump labels, in the order they were first seen.
 	 */
-	private static ArrayList<LabelEntry> labelTable;
+	private ArrayList<LabelEntry> labelTable = new ArrayList<LabelEntry>();
+
+	/**
+	 * The index of each label in the label table.
+	 */
+	private HashMap<String, Integer> labelIndexes = new HashMap<String, Integer>();
+
+	/**
+	 * The jump address of the instruction at each address, built from the
+	 * label table when it is first needed after loading, see
+	 * {@link #getJumpAddrFromReference(short)}. Forks of the machine share
+	 * the loader, so it is published whole.
+	 */
+	private volatile short[] jumpTargets;
 
 	/**
 	 * Used to target memory addresses for writing.
@@ -64,9 +104,22 @@ public class InstructionLoader implements Loader {
 
 	/**
 	 * InstructionLoader is constructed with the boot program as the default
-	 * target of the reader.
+	 * target of the reader, loading into the default machine.
 	 */
 	public InstructionLoader() {
+		this(Machine.getDefault());
+	}
+
+	/**
+	 * InstructionLoader is constructed with the boot program as the default
+	 * target of the reader.
+	 * 
+	 * @param machine
+	 *            The machine to load into.
+	 */
+	public InstructionLoader(Machine machine) {
+		this.machine = machine;
+		this.cpu = machine.getCPU();
 		InputStream in = getClass().getResourceAsStream("/boot.txt");
 		reader = new BufferedReader(new InputStreamReader(in));
 	}
@@ -93,6 +146,25 @@ public class InstructionLoader implements Loader {
 	 *            program jar file.
 	 */
 	public InstructionLoader(String file, boolean fully_qualified) {
+		this(Machine.getDefault(), file, fully_qualified);
+	}
+
+	/**
+	 * InstructionLoader is instantiated using a file that contains elements to
+	 * be written into the memory of the given machine. See
+	 * {@link #InstructionLoader(String, boolean)}.
+	 * 
+	 * @param machine
+	 *            The machine to load into.
+	 * @param file
+	 *            The file name (fully-qualified or not).
+	 * @param fully_qualified
+	 *            true if the file parameter is a fully-qualified file name.
+	 */
+	public InstructionLoader(Machine machine, String file,
+			boolean fully_qualified) {
+		this.machine = machine;
+		this.cpu = machine.getCPU();
 		InputStream in;
 		/*
 		 * This is a hack to get the paragraph for program 2 loaded into memory
@@ -100,22 +172,12 @@ public class InstructionLoader implements Loader {
 		 * 
 		 * TODO: Find a better way to load program data.
 		 */
-		if (file.contains("program2.txt")) {
-			System.out.println("Loading paragraph into memory");
-			InputStream in2 = getClass().getResourceAsStream("/paragraph.txt");
-			BufferedReader paragraphReader = new BufferedReader(
-					new InputStreamReader(in2));
-			int c = 0;
-			int memoryLoc = 1000;
-
+		if (loadsParagraph(file)) {
+			logger.info("Loading paragraph into memory");
 			try {
-				while ((c = paragraphReader.read()) != -1) {
-					Word word = Utils.registerToWord(Utils.intToBitSet(c, 18),
-							18);
-					cpu.writeToMemory(word, memoryLoc++);
-				}
-				Word word = Utils.registerToWord(Utils.intToBitSet(4, 18), 18);
-				cpu.writeToMemory(word, memoryLoc);
+				int memoryLoc = PARAGRAPH_ADDR;
+				for (int c : readParagraph())
+					cpu.writeToMemory(c, memoryLoc++);
 			} catch (IOException e) {
 
 			}
@@ -137,6 +199,48 @@ public class InstructionLoader implements Loader {
 		}
 	}
 
+	/**
+	 * @return true if the paragraph is loaded along with the given program
+	 *         file, which is the case for program 2.
+	 */
+	static boolean loadsParagraph(String file) {
+		return file.contains("program2.txt");
+	}
+
+	/**
+	 * @return The characters of the paragraph program 2 searches, followed by
+	 *         the end-of-transmission character that terminates it.
+	 * @throws IOException
+	 *             If the paragraph cannot be read.
+	 */
+	static int[] readParagraph() throws IOException {
+		InputStream in = InstructionLoader.class
+				.getResourceAsStream("/paragraph.txt");
+		if (in == null)
+			throw new IOException("paragraph.txt not found");
+		StringBuilder paragraph = new StringBuilder();
+		try (BufferedReader paragraphReader = new BufferedReader(
+				new InputStreamReader(in))) {
+			int c;
+			while ((c = paragraphReader.read()) != -1)
+				paragraph.append((char) c);
+		}
+		int[] words = new int[paragraph.length() + 1];
+		for (int i = 0; i < paragraph.length(); i++)
+			words[i] = paragraph.charAt(i);
+		words[paragraph.length()] = 4;
+		return words;
+	}
+
+	/**
+	 * Creates a loader holding only a label table, for a restored snapshot.
+	 */
+	private InstructionLoader(Machine machine, BufferedReader reader) {
+		this.machine = machine;
+		this.cpu = machine.getCPU();
+		this.reader = reader;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -145,6 +249,9 @@ public class InstructionLoader implements Loader {
 	@Override
 	public void load(BufferedReader reader) throws ParseException {
 		labelTable = new ArrayList<LabelEntry>();
+		labelIndexes = new HashMap<String, Integer>();
+		jumpTargets = null;
+		machine.setLoader(this);
 		try {
 			String temp = null;
 			while ((temp = reader.readLine()) != null) {
@@ -162,7 +269,7 @@ public class InstructionLoader implements Loader {
 					int labelIndex = 0;
 					logger.debug("Checking if the label is already in the label table.");
 					if ((labelIndex = searchLabelTable(label)) == -1) {
-						labelTable.add(new LabelEntry(label, memory_location));
+						addLabel(new LabelEntry(label, memory_location));
 						logger.debug("Found new label: " + label
 								+ " at address " + memory_location);
 					} else {
@@ -179,23 +286,21 @@ public class InstructionLoader implements Loader {
 							// resolved
 							while (!references.isEmpty()) {
 								short address = references.pop();
-								Word word = cpu.readFromMemory(address);// memory.read(address);
+								int word = cpu.readIntFromMemory(address);
 
 								// If the address if above 127, then we need to
 								// do indirection through address 8
 								if (entry.address >= 128) {
-									// Set jump indirection address
-									Utils.byteToBitSetDeepCopy(
-											JUMP_INDIRECTION_ADDR,
-											word,
-											InstructionBitFormats.LD_STR_ADDR_SIZE,
-											InstructionBitFormats.LD_STR_ADDR_END);
-									// Set indirection flag
-									Utils.byteToBitSetDeepCopy(
-											(byte) 1,
-											word,
-											InstructionBitFormats.LD_STR_I_SIZE,
-											InstructionBitFormats.LD_STR_I_END);
+									// Set jump indirection address and the
+									// indirection flag
+									word |= Utils.insertField(0,
+											InstructionBitFormats.LD_STR_ADDR_START,
+											InstructionBitFormats.LD_STR_ADDR_END,
+											JUMP_INDIRECTION_ADDR);
+									word |= Utils.insertField(0,
+											InstructionBitFormats.LD_STR_I_START,
+											InstructionBitFormats.LD_STR_I_END,
+											1);
 									logger.debug("Resolving forward reference at address: "
 											+ address
 											+ ", jump address = "
@@ -204,11 +309,10 @@ public class InstructionLoader implements Loader {
 								} else {
 									// Else, just update the address field in
 									// the instruction with a forward reference
-									Utils.byteToBitSetDeepCopy(
-											(byte) entry.address,
-											word,
-											InstructionBitFormats.LD_STR_ADDR_SIZE,
-											InstructionBitFormats.LD_STR_ADDR_END);
+									word |= Utils.insertField(0,
+											InstructionBitFormats.LD_STR_ADDR_START,
+											InstructionBitFormats.LD_STR_ADDR_END,
+											entry.address);
 									logger.debug("Resolving forward reference at address: "
 											+ address
 											+ ", jump address = "
@@ -234,6 +338,7 @@ public class InstructionLoader implements Loader {
 				if (word != null)
 					cpu.writeToMemory(word, memory_location++);
 			}
+			jumpTargets = buildJumpTargets();
 			logger.debug("Final instruction loaded at memory location "
 					+ memory_location + ".");
 			reader.close();
@@ -257,11 +362,29 @@ public class InstructionLoader implements Loader {
 	}
 
 	public Word instructionToWord(String instruction) {
+		jumpTargets = null;
+		return instructionToWord(instruction, memory_location, labels);
+	}
+
+	/**
+	 * Assembles one line of source into an instruction.
+	 * 
+	 * @param instruction
+	 *            The line, without label or comment.
+	 * @param location
+	 *            The address the instruction is assembled for.
+	 * @param labels
+	 *            Gives the address field of instructions that refer to a
+	 *            label.
+	 * @return The instruction, or null if the line is not a valid
+	 *         instruction.
+	 */
+	static Word instructionToWord(String instruction, short location,
+			LabelResolver labels) {
 		String temp = instruction;
 		String labelCheck;
 		byte opcode, general_register, index_register, address, indirection, register_x, register_y, count, lr, al, devid;
 		Word word = new Word();
-		int labelIndex = 0;
 
 		try {
 			logger.debug("Reading the opcode key string from the instruction string.");
@@ -294,37 +417,7 @@ public class InstructionLoader implements Loader {
 				labelCheck = instruction_elements[2];
 				logger.debug("Testing the address field of the instruction string for a label.");
 				if (Character.isAlphabetic(labelCheck.charAt(0))) {
-					logger.debug("Label found.  Checking the label table for the label.");
-					if ((labelIndex = searchLabelTable(labelCheck)) != -1) {
-						logger.debug("Label found on the table.  Testing the label address for indirection.");
-						if (labelTable.get(labelIndex).address >= 128) {
-							address = JUMP_INDIRECTION_ADDR;
-						} else {
-							address = (byte) labelTable.get(labelIndex).address;
-						}
-						logger.debug("Adding this instruction to the label's list of total references.");
-						labelTable.get(labelIndex).references
-								.add(memory_location);
-						logger.debug("Testing the instruction for a forward reference.");
-						if (address == 0) {
-							labelTable.get(labelIndex).forwardReferences
-									.push(memory_location);
-							logger.debug("Found another forward reference for label: "
-									+ labelCheck
-									+ " at address: "
-									+ memory_location);
-						} else {
-							logger.debug("Label: " + labelCheck
-									+ " translated to address " + address);
-						}
-					} else {
-						logger.debug("Label not found on label table.");
-						labelTable.add(new LabelEntry(labelCheck, (byte) 0,
-								memory_location));
-						logger.debug("Creating new label: " + labelCheck
-								+ " for forward reference at address: "
-								+ memory_location);
-					}
+					address = labels.resolveLabel(labelCheck, location);
 				} else {
 					address = Byte.parseByte(labelCheck);
 				}
@@ -344,37 +437,7 @@ public class InstructionLoader implements Loader {
 				labelCheck = instruction_elements[1];
 				logger.debug("Testing the address field of the instruction string for a label.");
 				if (Character.isAlphabetic(labelCheck.charAt(0))) {
-					logger.debug("Label found.  Checking the label table for the label.");
-					if ((labelIndex = searchLabelTable(labelCheck)) != -1) {
-						logger.debug("Label found on the table.  Testing the label address for indirection.");
-						if (labelTable.get(labelIndex).address >= 128) {
-							address = JUMP_INDIRECTION_ADDR;
-						} else {
-							address = (byte) labelTable.get(labelIndex).address;
-						}
-						logger.debug("Adding this instruction to the label's list of total references.");
-						labelTable.get(labelIndex).references
-								.add(memory_location);
-						logger.debug("Testing the instruction for a forward reference.");
-						if (address == 0) {
-							labelTable.get(labelIndex).forwardReferences
-									.push(memory_location);
-							logger.debug("Found another forward reference for label: "
-									+ labelCheck
-									+ " at address: "
-									+ memory_location);
-						} else {
-							logger.debug("Label: " + labelCheck
-									+ " translated to address " + address);
-						}
-					} else {
-						logger.debug("Label not found on label table.");
-						labelTable.add(new LabelEntry(labelCheck, (byte) 0,
-								memory_location));
-						logger.debug("Creating new label: " + labelCheck
-								+ " for forward reference at address: "
-								+ memory_location);
-					}
+					address = labels.resolveLabel(labelCheck, location);
 				} else {
 					address = Byte.parseByte(labelCheck);
 				}
@@ -472,6 +535,47 @@ public class InstructionLoader implements Loader {
 		}
 	}
 
+	/**
+	 * Looks a label up in the label table and records the instruction at
+	 * the given address as one of its references, adding the label for a
+	 * forward reference if it is not there yet.
+	 * 
+	 * @return The address field of the instruction: the address of the
+	 *         label, the jump indirection address for labels at 128 and
+	 *         above, or 0 until a forward reference is resolved.
+	 */
+	private byte resolveLabel(String labelCheck, short location) {
+		byte address = 0;
+		int labelIndex;
+		logger.debug("Label found.  Checking the label table for the label.");
+		if ((labelIndex = searchLabelTable(labelCheck)) != -1) {
+			logger.debug("Label found on the table.  Testing the label address for indirection.");
+			if (labelTable.get(labelIndex).address >= 128) {
+				address = JUMP_INDIRECTION_ADDR;
+			} else {
+				address = (byte) labelTable.get(labelIndex).address;
+			}
+			logger.debug("Adding this instruction to the label's list of total references.");
+			labelTable.get(labelIndex).references.add(location);
+			logger.debug("Testing the instruction for a forward reference.");
+			if (address == 0) {
+				labelTable.get(labelIndex).forwardReferences.push(location);
+				logger.debug("Found another forward reference for label: "
+						+ labelCheck + " at address: " + location);
+			} else {
+				logger.debug("Label: " + labelCheck
+						+ " translated to address " + address);
+			}
+		} else {
+			logger.debug("Label not found on label table.");
+			addLabel(new LabelEntry(labelCheck, (byte) 0, location));
+			logger.debug("Creating new label: " + labelCheck
+					+ " for forward reference at address: "
+					+ location);
+		}
+		return address;
+	}
+
 	/**
 	 * Searches the label table for the given string.
 	 * 
@@ -479,37 +583,132 @@ public class InstructionLoader implements Loader {
 	 * @return Index of the label within the table, or -1 if not found
 	 */
 	public int searchLabelTable(String searchString) {
-		for (int i = 0; i < labelTable.size(); i++)
-			if (labelTable.get(i).label.equals(searchString))
-				return i;
-		return -1;
+		Integer index = labelIndexes.get(searchString);
+		return index == null ? -1 : index;
 	}
 
 	/**
-	 * Returns the jump address based on an instruction's location in memory.
-	 * Essentially searches the references for each label, and returns the
-	 * address of the label which the passed address references.
+	 * Adds a label to the end of the label table.
+	 */
+	private void addLabel(LabelEntry entry) {
+		labelIndexes.put(entry.label, labelTable.size());
+		labelTable.add(entry);
+	}
+
+	/**
+	 * Returns the jump address based on an instruction's location in memory,
+	 * that is the address of the label which the instruction at the passed
+	 * address references. If several labels are referenced from the address,
+	 * the first in the label table wins.
 	 * 
 	 * Ex. An instruction at memory location 50 references "LABEL". The address
 	 * of "LABEL" will be returned.
 	 * 
+	 * The CPU calls this for every jump through the jump indirection address,
+	 * so it is a lookup in a table built once from the label table.
+	 * 
 	 * @param instructionAddress
 	 *            The address of the instruction.
-	 * @return The address of the label (i.e. the jump address)
+	 * @return The address of the label (i.e. the jump address), or 0 if the
+	 *         instruction references no label.
 	 */
-	public static short getJumpAddrFromReference(short instructionAddress) {
-		short jumpAddr = 0;
-
-		OuterLoop: for (int i = 0; i < labelTable.size(); i++) {
-			ArrayList<Short> references = labelTable.get(i).references;
-			for (int j = 0; j < references.size(); j++) {
-				if (references.get(j) == instructionAddress) {
-					jumpAddr = labelTable.get(i).address;
-					break OuterLoop;
-				}
-			}
+	public short getJumpAddrFromReference(short instructionAddress) {
+		short[] targets = jumpTargets;
+		if (targets == null) {
+			targets = buildJumpTargets();
+			jumpTargets = targets;
+		}
+		if (instructionAddress < 0 || instructionAddress >= targets.length)
+			return 0;
+		return targets[instructionAddress];
+	}
+
+	/**
+	 * Builds the table of {@link #getJumpAddrFromReference(short)} from the
+	 * label table.
+	 * 
+	 * @return The jump address of every referencing address, indexed by
+	 *         address.
+	 */
+	private short[] buildJumpTargets() {
+		int size = 0;
+		for (LabelEntry entry : labelTable)
+			for (Short reference : entry.references)
+				size = Math.max(size, reference + 1);
+		short[] targets = new short[size];
+		// Backwards, so that the first label referenced from an address wins
+		for (int i = labelTable.size() - 1; i >= 0; i--) {
+			LabelEntry entry = labelTable.get(i);
+			for (Short reference : entry.references)
+				if (reference >= 0)
+					targets[reference] = entry.address;
+		}
+		return targets;
+	}
+
+	/**
+	 * Writes the jump address of every label reference a loader found to a
+	 * snapshot (see {@link Snapshot}), as pairs of the referencing address
+	 * and the label address.
+	 * 
+	 * @param loader
+	 *            The loader that loaded last, or null.
+	 */
+	static void writeJumpTable(InstructionLoader loader, DataOutput out)
+			throws IOException {
+		Map<Short, Short> jumps = new LinkedHashMap<Short, Short>();
+		if (loader != null)
+			for (LabelEntry entry : loader.labelTable)
+				for (Short reference : entry.references)
+					if (!jumps.containsKey(reference))
+						jumps.put(reference, entry.address);
+		out.writeInt(jumps.size());
+		for (Map.Entry<Short, Short> jump : jumps.entrySet()) {
+			out.writeShort(jump.getKey());
+			out.writeShort(jump.getValue());
 		}
-		return jumpAddr;
+	}
+
+	/**
+	 * Reads the jump table of a snapshot into a loader that becomes the one
+	 * that loaded last on the machine. The label names are not kept.
+	 */
+	static void readJumpTable(Machine machine, DataInput in)
+			throws IOException {
+		InstructionLoader loader = new InstructionLoader(machine,
+				(BufferedReader) null);
+		int jumps = in.readInt();
+		for (int i = 0; i < jumps; i++) {
+			short reference = in.readShort();
+			LabelEntry entry = loader.new LabelEntry("", in.readShort());
+			entry.references.add(reference);
+			loader.labelTable.add(entry);
+		}
+		loader.jumpTargets = loader.buildJumpTargets();
+		machine.setLoader(loader);
+	}
+
+	/**
+	 * Creates the label table of an object file loaded by an
+	 * {@link ObjectLoader}, so that jumps through the jump indirection address
+	 * resolve, and makes it the one that loaded last on the machine.
+	 * 
+	 * @param base
+	 *            The address the object file was loaded at.
+	 */
+	static void setLabels(Machine machine, ObjectFile object, int base) {
+		InstructionLoader loader = new InstructionLoader(machine,
+				(BufferedReader) null);
+		for (int i = 0; i < object.getLabelCount(); i++) {
+			int offset = object.getLabelOffset(i);
+			loader.addLabel(loader.new LabelEntry(object.getLabel(i),
+					(short) (offset == -1 ? 0 : base + offset)));
+		}
+		for (int i = 0; i < object.getRelocationCount(); i++)
+			loader.labelTable.get(object.getRelocationLabel(i)).references
+					.add((short) (base + object.getRelocationOffset(i)));
+		loader.jumpTargets = loader.buildJumpTargets();
+		machine.setLoader(loader);
 	}
 
 	/**
@@ -522,8 +721,24 @@ public class InstructionLoader implements Loader {
 	 * @return true if the address is empty; false otherwise.
 	 */
 	public boolean isAddressEmpty(int address) {
-		Word word = Memory.getInstance().read(address);
-		return word.isEmpty();
+		return cpu.peekMemory(address) == 0;
+	}
+
+	/**
+	 * Gives the address field of an instruction that refers to a label, see
+	 * {@link InstructionLoader#instructionToWord(String, short, LabelResolver)}.
+	 */
+	interface LabelResolver {
+
+		/**
+		 * @param label
+		 *            The label referred to.
+		 * @param location
+		 *            The address of the instruction.
+		 * @return The address field of the instruction. The jump indirection
+		 *         address makes it an indirect instruction.
+		 */
+		byte resolveLabel(String label, short location);
 	}
 
 	/**
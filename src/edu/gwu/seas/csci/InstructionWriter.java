@@ -103,7 +103,7 @@ public class InstructionWriter {
 	 *            positions 0-5.
 	 */
 	private void setOpcode(Word word, byte opcode) {
-		Utils.byteToBitSetDeepCopy(opcode, word, (byte) 6, (byte) 5);
+		insert(word, opcode, InstructionBitFormats.OPCODE_SIZE, InstructionBitFormats.OPCODE_END);
 	}
 
 	/**
@@ -117,7 +117,7 @@ public class InstructionWriter {
 	 *            positions 8-9.
 	 */
 	private void setGeneralRegister(Word word, byte general_register) {
-		Utils.byteToBitSetDeepCopy(general_register, word, (byte) 2, (byte) 9);
+		insert(word, general_register, InstructionBitFormats.LD_STR_R_SIZE, InstructionBitFormats.LD_STR_R_END);
 	}
 
 	/**
@@ -131,7 +131,7 @@ public class InstructionWriter {
 	 *            positions 6-7.
 	 */
 	private void setIndexRegister(Word word, byte index_register) {
-		Utils.byteToBitSetDeepCopy(index_register, word, (byte) 2, (byte) 7);
+		insert(word, index_register, InstructionBitFormats.LD_STR_IX_SIZE, InstructionBitFormats.LD_STR_IX_END);
 	}
 
 	/**
@@ -144,7 +144,7 @@ public class InstructionWriter {
 	 *            The value of the indirection bit to set at position 10.
 	 */
 	private void setIndirection(Word word, byte indirection) {
-		Utils.byteToBitSetDeepCopy(indirection, word, (byte) 1, (byte) 10);
+		insert(word, indirection, InstructionBitFormats.LD_STR_I_SIZE, InstructionBitFormats.LD_STR_I_END);
 	}
 
 	/**
@@ -157,7 +157,9 @@ public class InstructionWriter {
 	 *            The value of the address to set at position 11-17.
 	 */
 	private void setAddress(Word word, byte address) {
-		Utils.byteToBitSetDeepCopy(address, word, (byte) 8, (byte) 17);
+		// 8 bits, one more than the field: bit 7 of the address lands on the
+		// indirection bit
+		insert(word, address, 8, InstructionBitFormats.LD_STR_ADDR_END);
 	}
 	
 	/**
@@ -169,7 +171,7 @@ public class InstructionWriter {
 	 * 			  The first register operand.
 	 */
 	private void setXRegister(Word word, byte register_x){
-		Utils.byteToBitSetDeepCopy(register_x, word, InstructionBitFormats.XY_ARITH_RX_SIZE, InstructionBitFormats.XY_ARITH_RX_END);
+		insert(word, register_x, InstructionBitFormats.XY_ARITH_RX_SIZE, InstructionBitFormats.XY_ARITH_RX_END);
 	}
 	
 	/**
@@ -181,7 +183,7 @@ public class InstructionWriter {
 	 * 			  The second register operand.
 	 */
 	private void setYRegister(Word word, byte register_y){
-		Utils.byteToBitSetDeepCopy(register_y, word, InstructionBitFormats.XY_ARITH_RY_SIZE, InstructionBitFormats.XY_ARITH_RY_END);
+		insert(word, register_y, InstructionBitFormats.XY_ARITH_RY_SIZE, InstructionBitFormats.XY_ARITH_RY_END);
 	}
 	
 	/**
@@ -192,7 +194,7 @@ public class InstructionWriter {
 	 * 			  Indicates left or right shift.
 	 */
 	private void setLR(Word word, byte lr){
-		Utils.byteToBitSetDeepCopy(lr, word, InstructionBitFormats.SHIFT_LR_SIZE, InstructionBitFormats.SHIFT_LR_END);
+		insert(word, lr, InstructionBitFormats.SHIFT_LR_SIZE, InstructionBitFormats.SHIFT_LR_END);
 	}
 	
 	/**
@@ -203,7 +205,7 @@ public class InstructionWriter {
 	 * 			  Indicates arithmetic or logical shift.
 	 */
 	private void setAL(Word word, byte al){
-		Utils.byteToBitSetDeepCopy(al, word, InstructionBitFormats.SHIFT_AL_SIZE, InstructionBitFormats.SHIFT_AL_END);
+		insert(word, al, InstructionBitFormats.SHIFT_AL_SIZE, InstructionBitFormats.SHIFT_AL_END);
 	}
 	
 	/**
@@ -212,7 +214,7 @@ public class InstructionWriter {
 	 * @param count
 	 */
 	private void setCount(Word word, byte count){
-		Utils.byteToBitSetDeepCopy(count, word, InstructionBitFormats.SHIFT_COUNT_SIZE, InstructionBitFormats.SHIFT_COUNT_END);
+		insert(word, count, InstructionBitFormats.SHIFT_COUNT_SIZE, InstructionBitFormats.SHIFT_COUNT_END);
 	}
 	
 	/*
@@ -221,6 +223,23 @@ public class InstructionWriter {
 	 * @param devid
 	 */
 	private void setDevid(Word word, byte devid) {
-		Utils.byteToBitSetDeepCopy(devid, word, InstructionBitFormats.IO_DEVID_SIZE, InstructionBitFormats.IO_DEVID_END);
+		insert(word, devid, InstructionBitFormats.IO_DEVID_SIZE, InstructionBitFormats.IO_DEVID_END);
+	}
+
+	/**
+	 * Sets the bits of a field of a word from the low bits of a value, without
+	 * clearing any bits of the word that are already set.
+	 * 
+	 * @param word
+	 *            The word into which the value is inserted.
+	 * @param value
+	 *            The value, truncated to the size of the field.
+	 * @param size
+	 *            The number of bits in the field.
+	 * @param end
+	 *            The last bit of the field (see {@link InstructionBitFormats}).
+	 */
+	private static void insert(Word word, int value, int size, int end) {
+		word.setBits(Utils.insertField(0, end - size + 1, end, value));
 	}
 }
@@ -0,0 +1,246 @@
+package edu.gwu.seas.csci;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A complete simulated computer: its {@link Memory}, and a {@link CPU} with
+ * its caches, write buffer, memory controller, timing model and I/O devices.
+ * The machine also keeps the label table of the program loaded last, which
+ * the CPU needs to resolve jumps through the jump indirection address.
+ * <p>
+ * Machines share no state, so any number of them can run at once, each on
+ * its own thread. A machine must only be run by one thread at a time. In the
+ * threaded memory controller mode each machine has a memory controller
+ * thread, which {@link #shutdown()} stops.
+ * <p>
+ * The state of a machine can be saved to a snapshot and restored into another
+ * machine, see {@link #saveSnapshot(OutputStream)}, or a machine can be
+ * forked into a child that carries on from the same state, see
+ * {@link #fork()}.
+ * <p>
+ * The {@link Computer} GUI runs the default machine, which is created on
+ * first use and is what {@link CPU#getInstance()} and
+ * {@link Memory#getInstance()} return.
+ */
+public class Machine {
+
+	/**
+	 * The machine run by the GUI, created on first use.
+	 */
+	private static volatile Machine default_machine;
+
+	private final Memory memory;
+
+	private final CPU cpu;
+
+	/**
+	 * The loader that loaded a program last, which holds its label table.
+	 */
+	private volatile InstructionLoader loader;
+
+	/**
+	 * Creates a machine with the number of words of memory set in the
+	 * "memory.size" system property, 2048 by default. The caches, write
+	 * buffer, memory controller and timing model are also configured from
+	 * the system properties.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the configuration is not valid.
+	 */
+	public Machine() throws IllegalArgumentException {
+		this(Integer.getInteger(Memory.SIZE_PROPERTY, Memory.DEFAULT_SIZE));
+	}
+
+	/**
+	 * Creates a machine with the given number of words of memory.
+	 *
+	 * @param memory_size
+	 *            Number of words, a multiple of the cache line size between
+	 *            {@link Memory#DEFAULT_SIZE} and {@link Memory#MAX_SIZE}.
+	 * @throws IllegalArgumentException
+	 *             If the size or the configuration is not valid.
+	 */
+	public Machine(int memory_size) throws IllegalArgumentException {
+		this(new Memory(memory_size));
+	}
+
+	private Machine(Memory memory) {
+		this.memory = memory;
+		cpu = new CPU(this);
+	}
+
+	/**
+	 * Creates the default machine with the given number of words of memory,
+	 * if it does not exist yet.
+	 *
+	 * @throws IllegalStateException
+	 *             If the default machine already has a different size.
+	 */
+	static synchronized void initializeDefault(int memory_size)
+			throws IllegalArgumentException, IllegalStateException {
+		if (default_machine == null) {
+			default_machine = new Machine(memory_size);
+			return;
+		}
+		if (default_machine.memory.size() != memory_size)
+			throw new IllegalStateException("Memory already has "
+					+ default_machine.memory.size() + " words");
+	}
+
+	/**
+	 * @return The machine the GUI runs, created with the system properties on
+	 *         first use.
+	 */
+	public static Machine getDefault() {
+		Machine machine = default_machine;
+		if (machine == null) {
+			synchronized (Machine.class) {
+				if (default_machine == null)
+					default_machine = new Machine();
+				machine = default_machine;
+			}
+		}
+		return machine;
+	}
+
+	/**
+	 * @return The machine's CPU.
+	 */
+	public CPU getCPU() {
+		return cpu;
+	}
+
+	/**
+	 * @return The machine's main memory.
+	 */
+	public Memory getMemory() {
+		return memory;
+	}
+
+	/**
+	 * Records the loader of the program being loaded, whose label table
+	 * replaces that of the program before.
+	 */
+	void setLoader(InstructionLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * @return The loader that loaded a program last, or null.
+	 */
+	InstructionLoader getLoader() {
+		return loader;
+	}
+
+	/**
+	 * Finds the label referenced by an instruction of the program loaded last.
+	 * See {@link InstructionLoader#getJumpAddrFromReference(short)}.
+	 *
+	 * @param instructionAddress
+	 *            The address of the instruction.
+	 * @return The address of the label, or 0 if nothing has been loaded.
+	 */
+	short getJumpAddrFromReference(short instructionAddress) {
+		InstructionLoader loader = this.loader;
+		return loader == null ? 0 : loader
+				.getJumpAddrFromReference(instructionAddress);
+	}
+
+	/**
+	 * Saves the state of the machine in the compact binary format described
+	 * in {@link Snapshot}: memory, the CPU registers, its execution state and
+	 * pending input, the cycle and instruction counters, the contents of every
+	 * cache and the jump table of the program loaded last. The write buffer
+	 * is drained first, so the snapshot does not hold it. Cache statistics,
+	 * the CPI of each instruction class and the machine listeners are not
+	 * saved.
+	 * <p>
+	 * Must be called by the thread running the machine, between
+	 * instructions, for example once the ROM is loaded or while the machine
+	 * is waiting for input.
+	 * 
+	 * @param out
+	 *            Receives the snapshot. Not closed.
+	 * @throws IOException
+	 *             If the snapshot cannot be written.
+	 */
+	public void saveSnapshot(OutputStream out) throws IOException {
+		cpu.drainWriteBuffer();
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+				out));
+		Snapshot.write(this, data);
+		data.flush();
+	}
+
+	/**
+	 * Replaces the state of the machine with a snapshot saved by
+	 * {@link #saveSnapshot(OutputStream)} on a machine with the same memory
+	 * size and caches, so that it carries on from where that machine was.
+	 * This is much faster than loading the ROM and a program. Cache
+	 * statistics and the CPI of each instruction class start again from 0.
+	 * Must be called by the thread running the machine, while it is not
+	 * running.
+	 * 
+	 * @param in
+	 *            Holds the snapshot. Not closed, and may be read past the
+	 *            end of the snapshot.
+	 * @throws IOException
+	 *             If the snapshot cannot be read, or was taken of a machine
+	 *             with a different memory size or caches. The state of the
+	 *             machine is then undefined.
+	 */
+	public void restoreSnapshot(InputStream in) throws IOException {
+		cpu.drainWriteBuffer();
+		Snapshot.read(this, new DataInputStream(new BufferedInputStream(in)));
+	}
+
+	/**
+	 * Creates a child machine in the same state as this one, for example to
+	 * run a loaded program against many inputs without loading it again. The
+	 * child shares the pages of this machine's memory until either writes to
+	 * them (see {@link Memory}), and gets a copy of everything else saved in
+	 * a snapshot; the jump table of the program loaded last is shared. The
+	 * child has no listeners, and its cache statistics and the CPI of each
+	 * instruction class start from 0.
+	 * <p>
+	 * Must be called by the thread running this machine, between
+	 * instructions. The child is independent of this machine and can be run
+	 * on any thread, at the same time as this machine and its other children.
+	 * 
+	 * @return The child machine.
+	 * @throws IllegalStateException
+	 *             If the cache system properties have changed since this
+	 *             machine was created.
+	 */
+	public Machine fork() throws IllegalStateException {
+		cpu.drainWriteBuffer();
+		Machine child = new Machine(memory.fork());
+		try {
+			ByteArrayOutputStream state = new ByteArrayOutputStream();
+			cpu.writeState(new DataOutputStream(state));
+			child.cpu.readState(new DataInputStream(new ByteArrayInputStream(
+					state.toByteArray())));
+		} catch (IOException e) {
+			child.shutdown();
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+		child.loader = loader;
+		return child;
+	}
+
+	/**
+	 * Stops the memory controller once it has written everything in the write
+	 * buffer. The machine must not be run afterwards.
+	 */
+	public void shutdown() {
+		cpu.stopMemoryController();
+	}
+}
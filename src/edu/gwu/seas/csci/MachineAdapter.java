@@ -0,0 +1,32 @@
+package edu.gwu.seas.csci;
+
+/**
+ * A {@link MachineListener} that ignores every event. Extend it and override
+ * the events of interest.
+ */
+public class MachineAdapter implements MachineListener {
+
+	@Override
+	public void registersChanged(long changedSlots, RegisterFile registers) {
+	}
+
+	@Override
+	public void executionStarted() {
+	}
+
+	@Override
+	public void stepCompleted() {
+	}
+
+	@Override
+	public void inputRead(String input) {
+	}
+
+	@Override
+	public void output(char character) {
+	}
+
+	@Override
+	public void halted() {
+	}
+}
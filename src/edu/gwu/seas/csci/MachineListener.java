@@ -0,0 +1,59 @@
+package edu.gwu.seas.csci;
+
+/**
+ * Receives events from the {@link CPU} as it executes. Listeners are
+ * registered with {@link CPU#addMachineListener(MachineListener)} and are
+ * called on the thread running the CPU, so they should return quickly; extend
+ * {@link MachineAdapter} to handle only some of the events.
+ * <p>
+ * Register writes are not reported one at a time. The CPU records which
+ * registers were written and reports them together once per instruction (or
+ * less often, see {@link CPU#setRegisterPublishInterval(long)}), and always
+ * when execution stops.
+ */
+public interface MachineListener {
+
+	/**
+	 * Reports the registers written since the last call.
+	 * 
+	 * @param changedSlots
+	 *            Bit n is set if the register in slot n (one of the REG_
+	 *            constants in {@link CPUConstants}) was written.
+	 * @param registers
+	 *            The CPU's registers. Only valid for the duration of the call
+	 *            and must not be modified.
+	 */
+	void registersChanged(long changedSlots, RegisterFile registers);
+
+	/**
+	 * Called when the CPU starts a continue, micro step or macro step.
+	 */
+	void executionStarted();
+
+	/**
+	 * Called when a micro or macro step completes an instruction.
+	 */
+	void stepCompleted();
+
+	/**
+	 * Called when an IN instruction starts consuming a line of input.
+	 * 
+	 * @param input
+	 *            The contents of the input buffer.
+	 */
+	void inputRead(String input);
+
+	/**
+	 * Called when an OUT instruction writes a character to the console
+	 * printer.
+	 * 
+	 * @param character
+	 *            The character written.
+	 */
+	void output(char character);
+
+	/**
+	 * Called when a HLT instruction stops execution.
+	 */
+	void halted();
+}
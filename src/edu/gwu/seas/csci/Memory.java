@@ -3,79 +3,372 @@
  */
 package edu.gwu.seas.csci;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
 
-import edu.gwu.seas.csci.CPU.L1CacheLine;
+import edu.gwu.seas.csci.CPU.CacheLine;
 
 /**
- * Provides the memory for the {@link Computer} class. Leverages the Singleton
- * pattern to initialize and maintain exactly one set of system memory per
- * computer.
+ * Provides the main memory of a {@link Machine}; each machine has its own.
+ * Each 18-bit word is stored as a masked int in an array per page, so reads
+ * and writes do not allocate; {@link Word} conversions are only done at the
+ * edges (the GUI and the instruction loader).
+ * <p>
+ * A forked machine shares the pages of its parent's memory (see
+ * {@link #fork()}). A shared page is never written: whichever of the two
+ * memories writes to it first copies it, so forking costs one reference per
+ * page. Pages are 256 words unless set with the "memory.page.size" system
+ * property, a power of two.
+ * <p>
+ * The number of words is chosen when memory is created. For the default
+ * machine run by the {@link Computer} GUI that is either by calling
+ * {@link #initialize(int)} before the first {@link #getInstance()} or by
+ * setting the "memory.size" system property. Addresses above the 12-bit PC
+ * range hold data only and are reached through the index registers (EA =
+ * c(Xi) + ADDR is 18 bits wide). The fault routine and trap table sit at the
+ * top of the PC-addressable part of memory, see
+ * {@link #getFaultRoutineAddress()} and {@link #getTrapTableAddress()}.
+ * <p>
+ * Memory is the last {@link MemoryLevel} of the cache hierarchy. Reading a
+ * block into a cache takes the number of cycles set with the "memory.latency"
+ * system property, 0 by default.
  * 
  * @author Alex Remily
  */
-public class Memory {
+public class Memory implements MemoryLevel {
 
 	/**
-	 * An array to hold words in memory.
+	 * Mask applied to every value written to memory.
 	 */
-	private static Word[] memory = new Word[2048];
+	public static final int WORD_MASK = (1 << CPUConstants.DEFAULT_BIT_SIZE) - 1;
 
 	/**
-	 * Convenience property specifies the number of memory locations in DRAM.
+	 * The size of memory when none is configured, and the smallest size
+	 * allowed.
 	 */
-	public final static int length = memory.length;
+	public static final int DEFAULT_SIZE = 2048;
 
-	static {
-		for (int i = 0; i < length; i++)
-			memory[i] = new Word();
+	/**
+	 * The largest size allowed: every address an 18-bit effective address can
+	 * reach.
+	 */
+	public static final int MAX_SIZE = 1 << CPUConstants.DEFAULT_BIT_SIZE;
+
+	/**
+	 * System property read by {@link Machine#Machine()} for the number of
+	 * words of memory.
+	 */
+	public static final String SIZE_PROPERTY = "memory.size";
+
+	/**
+	 * System property holding the cycles a block read takes.
+	 */
+	public static final String LATENCY_PROPERTY = "memory.latency";
+
+	/**
+	 * System property holding the number of words in each page.
+	 */
+	public static final String PAGE_SIZE_PROPERTY = "memory.page.size";
+
+	public static final int DEFAULT_PAGE_SIZE = 256;
+
+	/**
+	 * Number of words an instruction can be fetched from (the PC is 12 bits).
+	 */
+	private static final int PC_ADDRESSABLE_WORDS = 1 << 12;
+
+	/**
+	 * The number of words of memory.
+	 */
+	private final int size;
+
+	/**
+	 * log2 of the page size.
+	 */
+	private final int page_bits;
+
+	private final int page_mask;
+
+	/**
+	 * The words of memory, page by page. The last page may extend past the
+	 * end of memory.
+	 */
+	private final int[][] pages;
+
+	/**
+	 * Set for the pages shared with a fork, which must be copied before they
+	 * are written.
+	 */
+	private final boolean[] shared;
+
+	/**
+	 * The cycles a block read takes.
+	 */
+	private final int latency;
+
+	/**
+	 * Creates a memory of zeros.
+	 * 
+	 * @param size
+	 *            Number of words, a multiple of the cache line size between
+	 *            {@link #DEFAULT_SIZE} and {@link #MAX_SIZE}.
+	 * @throws IllegalArgumentException
+	 *             If the size is out of range.
+	 */
+	Memory(int size) throws IllegalArgumentException {
+		if (size < DEFAULT_SIZE || size > MAX_SIZE
+				|| size % CacheLine.WORDS_PER_LINE != 0)
+			throw new IllegalArgumentException("Invalid memory size: " + size);
+		int page_size = Integer.getInteger(PAGE_SIZE_PROPERTY,
+				DEFAULT_PAGE_SIZE);
+		if (page_size < 1 || page_size > MAX_SIZE
+				|| Integer.bitCount(page_size) != 1)
+			throw new IllegalArgumentException(
+					"The memory page size must be a power of two, not "
+							+ page_size + ".");
+		latency = Integer.getInteger(LATENCY_PROPERTY, 0);
+		if (latency < 0)
+			throw new IllegalArgumentException(
+					"The memory latency cannot be negative, not " + latency
+							+ ".");
+		this.size = size;
+		page_bits = Integer.numberOfTrailingZeros(page_size);
+		page_mask = page_size - 1;
+		pages = new int[(size + page_mask) >>> page_bits][page_size];
+		shared = new boolean[pages.length];
+	}
+
+	/**
+	 * Creates a memory sharing every page with another.
+	 */
+	private Memory(Memory parent) {
+		size = parent.size;
+		page_bits = parent.page_bits;
+		page_mask = parent.page_mask;
+		pages = parent.pages.clone();
+		shared = new boolean[pages.length];
+		Arrays.fill(shared, true);
+		latency = parent.latency;
+	}
+
+	/**
+	 * Creates a copy of this memory for a forked machine. The two share their
+	 * pages until either writes to one. Must not be called while anything
+	 * else is writing to this memory.
+	 * 
+	 * @return A memory with the same size, page size, latency and contents.
+	 */
+	Memory fork() {
+		Arrays.fill(shared, true);
+		return new Memory(this);
 	}
 
 	/**
-	 * Static and final reference to memory instance ensures there is only one
-	 * memory object.
+	 * Gets a page to write to, copying it first if it is shared.
 	 */
-	private static final Memory INSTANCE = new Memory();
+	private int[] writablePage(int page) {
+		if (shared[page]) {
+			pages[page] = pages[page].clone();
+			shared[page] = false;
+		}
+		return pages[page];
+	}
 
 	/**
-	 * Private constructor forces access via the getInstance() method and starts
-	 * the memory controller thread, which manages the reads and writes between
-	 * the L1 cache, write buffer, and DRAM.
+	 * Creates the default machine with the given number of words of memory.
+	 * Must be called before anything else touches the default machine (the
+	 * CPU, a loader or the GUI); calling it again with the same size has no
+	 * effect.
+	 * 
+	 * @param size
+	 *            Number of words, a multiple of the cache line size between
+	 *            {@link #DEFAULT_SIZE} and {@link #MAX_SIZE}.
+	 * @throws IllegalArgumentException
+	 *             If the size is out of range.
+	 * @throws IllegalStateException
+	 *             If the default machine was already created with a different
+	 *             size.
 	 */
-	private Memory() {
+	public static void initialize(int size) throws IllegalArgumentException,
+			IllegalStateException {
+		Machine.initializeDefault(size);
 	}
 
 	/**
-	 * @return The {@link Computer} memory.
+	 * @return The memory of the default {@link Machine}.
 	 */
 	public static Memory getInstance() {
-		return INSTANCE;
+		return Machine.getDefault().getMemory();
+	}
+
+	/**
+	 * @return The number of words of memory.
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of words in each page.
+	 */
+	public int getPageSize() {
+		return page_mask + 1;
+	}
+
+	/**
+	 * @return The address of the trap table, the last 16 words of the
+	 *         PC-addressable part of memory. Written to address 0 at boot.
+	 */
+	public int getTrapTableAddress() {
+		return Math.min(size, PC_ADDRESSABLE_WORDS) - 16;
+	}
+
+	/**
+	 * @return The address of the machine fault routine, which is followed by
+	 *         the trap routines and the trap table in the last 64 words of the
+	 *         PC-addressable part of memory. Written to address 1 at boot.
+	 */
+	public int getFaultRoutineAddress() {
+		return Math.min(size, PC_ADDRESSABLE_WORDS) - 64;
 	}
 
 	/**
+	 * Copies the block containing the given address into the caller's buffer.
+	 * Blocks are aligned to their length, which must be a power of two.
+	 * 
+	 * @param address
+	 *            Any address within the block.
+	 * @param block
+	 *            The buffer to fill, normally the words of a cache line.
+	 */
+	public void getMemoryBlock(int address, int[] block) {
+		int tag = address & -block.length;
+		for (int i = 0; i < block.length;) {
+			int offset = (tag + i) & page_mask;
+			int length = Math.min(block.length - i, page_mask + 1 - offset);
+			System.arraycopy(pages[(tag + i) >>> page_bits], offset, block, i,
+					length);
+			i += length;
+		}
+	}
+
+	/**
+	 * Copies the caller's buffer into the block containing the given address.
+	 * Blocks are aligned to their length, which must be a power of two.
+	 * 
 	 * @param address
-	 * @return
+	 *            Any address within the block.
+	 * @param block
+	 *            The words to store, normally the words of a cache line.
+	 */
+	public void putMemoryBlock(int address, int[] block) {
+		int tag = address & -block.length;
+		for (int i = 0; i < block.length;) {
+			int offset = (tag + i) & page_mask;
+			int length = Math.min(block.length - i, page_mask + 1 - offset);
+			System.arraycopy(block, i, writablePage((tag + i) >>> page_bits),
+					offset, length);
+			i += length;
+		}
+	}
+
+	/**
+	 * Fills a cache line from memory.
+	 */
+	@Override
+	public int readBlock(int address, int[] block) {
+		getMemoryBlock(address, block);
+		return latency;
+	}
+
+	/**
+	 * Writes a cache line back to memory.
+	 */
+	@Override
+	public void writeBlock(int address, int[] block) {
+		putMemoryBlock(address, block);
+	}
+
+	@Override
+	public void writeWord(int word, int address) {
+		write(word, address);
+	}
+
+	@Override
+	public int peek(int address) {
+		return read(address);
+	}
+
+	@Override
+	public void poke(int word, int address) {
+		write(word, address);
+	}
+
+	/**
+	 * Does nothing: memory is the last level.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Writes the size and contents of memory to a snapshot (see
+	 * {@link Snapshot}).
 	 */
-	public Word[] getMemoryBlock(int address) {
-		int tag = (address / 8) * 8;
-		Word[] words = Arrays.copyOfRange(memory, tag, tag
-				+ L1CacheLine.WORDS_PER_LINE);
-		return words;
+	void writeState(DataOutput out) throws IOException {
+		int[] words = new int[size];
+		for (int page = 0; page < pages.length; page++)
+			System.arraycopy(pages[page], 0, words, page << page_bits,
+					Math.min(page_mask + 1, size - (page << page_bits)));
+		out.writeInt(size);
+		Snapshot.writeWords(out, words, 0, size);
 	}
 
 	/**
-	 * TODO: Update the JavaDocs Retrieves the {@link Word} at the specified
-	 * memory address.
+	 * Reads the contents of memory from a snapshot.
+	 *
+	 * @throws IOException
+	 *             If the snapshot has a different number of words.
+	 */
+	void readState(DataInput in) throws IOException {
+		Snapshot.expect("words of memory", size, in.readInt());
+		int[] words = new int[size];
+		Snapshot.readWords(in, words, 0, size);
+		for (int page = 0; page < pages.length; page++)
+			System.arraycopy(words, page << page_bits, writablePage(page), 0,
+					Math.min(page_mask + 1, size - (page << page_bits)));
+	}
+
+	/**
+	 * Retrieves the word at the specified memory address.
 	 * 
 	 * @param address
 	 *            The memory address of the contents to retrieve.
-	 * @return The contents of the specified memory address.
+	 * @return The unsigned 18-bit contents of the specified memory address.
+	 */
+	public int read(int address) throws IndexOutOfBoundsException {
+		if (address < 0 || address >= size)
+			throw new IndexOutOfBoundsException();
+		return pages[address >>> page_bits][address & page_mask];
+	}
+
+	/**
+	 * Puts an 18-bit value in the specified address. Bits above the word size
+	 * are discarded.
+	 * 
+	 * @param value
+	 *            The contents to place in memory.
+	 * @param address
+	 *            The memory address to place the contents.
 	 */
-	public Word read(int address) throws IndexOutOfBoundsException {
-		if (address > length)
+	public void write(int value, int address) throws IndexOutOfBoundsException {
+		if (address < 0 || address >= size)
 			throw new IndexOutOfBoundsException();
-		Word[] words = getMemoryBlock(address);
-		return words[address%8];
+		writablePage(address >>> page_bits)[address & page_mask] = value
+				& WORD_MASK;
 	}
 
 	/**
@@ -87,9 +380,7 @@ public class Memory {
 	 *            The memory address to place the contents.
 	 */
 	public void write(Word word, int address) throws IndexOutOfBoundsException {
-		if (address > length)
-			throw new IndexOutOfBoundsException();
-		memory[address] = word;
+		write(word.toInt(), address);
 	}
 
 	/*
@@ -100,8 +391,8 @@ public class Memory {
 	@Override
 	public String toString() {
 		StringBuffer output = new StringBuffer();
-		for (int i = 0; i < memory.length; i++)
-			output.append(i + ": " + memory[i].toString());
+		for (int i = 0; i < size; i++)
+			output.append(i + ": " + Word.fromInt(read(i)).toString());
 		return "Memory [" + output + "]";
 	}
 }
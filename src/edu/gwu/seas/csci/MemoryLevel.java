@@ -0,0 +1,66 @@
+package edu.gwu.seas.csci;
+
+/**
+ * A level of the memory hierarchy that a cache fills its lines from and
+ * writes them back to: another cache or main memory. Blocks are aligned to
+ * their length, which must be a power of two no longer than the lines of the
+ * level.
+ */
+interface MemoryLevel {
+
+	/**
+	 * Copies the block containing an address into the caller's buffer.
+	 * 
+	 * @param address
+	 *            Any address within the block.
+	 * @param block
+	 *            The buffer to fill, normally the words of a cache line.
+	 * @return The cycles the read took, including any levels below.
+	 */
+	int readBlock(int address, int[] block);
+
+	/**
+	 * Copies the caller's buffer into the block containing an address.
+	 * 
+	 * @param address
+	 *            Any address within the block.
+	 * @param block
+	 *            The words to store, normally a modified cache line.
+	 */
+	void writeBlock(int address, int[] block);
+
+	/**
+	 * Writes a single word, as sent by a write-through cache.
+	 * 
+	 * @param word
+	 *            The unsigned 18-bit word.
+	 * @param address
+	 *            The address to write.
+	 */
+	void writeWord(int word, int address);
+
+	/**
+	 * @return The number of words addressable through this level.
+	 */
+	int size();
+
+	/**
+	 * Reads an address without counting an access or changing any state.
+	 * 
+	 * @return The unsigned 18-bit contents of the address at this level, or
+	 *         the levels below it.
+	 */
+	int peek(int address);
+
+	/**
+	 * Writes an address at this level and every level below it, without
+	 * counting an access.
+	 */
+	void poke(int word, int address);
+
+	/**
+	 * Writes every modified block to the level below. Main memory has nothing
+	 * to flush.
+	 */
+	void flush();
+}
@@ -0,0 +1,393 @@
+package edu.gwu.seas.csci;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A program assembled by the {@link Assembler}, ready to be copied into memory
+ * by an {@link ObjectLoader} without parsing any source.
+ * <p>
+ * The image is relocatable. Instructions that refer to a label are stored
+ * with an address field of 0, and a relocation entry names the instruction
+ * and the label. When the image is loaded, the address of the label is put in
+ * the address field, or, for labels at 128 and above, the jump indirection
+ * address and the indirection bit, as {@link InstructionLoader} does. An
+ * object file also holds the label table, the entry point, and absolute data
+ * segments loaded at fixed addresses whatever the load address.
+ * <p>
+ * An object file is written with {@link DataOutput}, so every number is
+ * big-endian, and is laid out as:
+ * <ol>
+ * <li>The magic number "SOBJ" and the format version, a short.</li>
+ * <li>The address the program was assembled for and its entry point, as an
+ * offset into the image.</li>
+ * <li>The image: its length in words, then its words packed 18 bits at a
+ * time, as in a {@link Snapshot}.</li>
+ * <li>The labels: their count, then the name and the offset of each, -1 for a
+ * label that is referred to but never defined.</li>
+ * <li>The relocations: their count, then the offset of each instruction
+ * referring to a label and the index of the label.</li>
+ * <li>The data segments: their count, then the address, length and packed
+ * words of each.</li>
+ * </ol>
+ */
+public final class ObjectFile {
+
+	/**
+	 * The extension of object files.
+	 */
+	public static final String EXTENSION = ".obj";
+
+	/**
+	 * "SOBJ" in ASCII.
+	 */
+	static final int MAGIC = 0x534F424A;
+
+	static final short VERSION = 1;
+
+	private final int origin;
+
+	private final int entry;
+
+	private final int[] words;
+
+	private final String[] labels;
+
+	/**
+	 * The offset of each label in the image, or -1 if it is not defined.
+	 */
+	private final int[] label_offsets;
+
+	private final int[] relocation_offsets;
+
+	/**
+	 * The index of the label each relocation refers to.
+	 */
+	private final int[] relocation_labels;
+
+	private final int[] segment_addresses;
+
+	private final int[][] segments;
+
+	ObjectFile(int origin, int entry, int[] words, String[] labels,
+			int[] label_offsets, int[] relocation_offsets,
+			int[] relocation_labels, int[] segment_addresses, int[][] segments) {
+		this.origin = origin;
+		this.entry = entry;
+		this.words = words;
+		this.labels = labels;
+		this.label_offsets = label_offsets;
+		this.relocation_offsets = relocation_offsets;
+		this.relocation_labels = relocation_labels;
+		this.segment_addresses = segment_addresses;
+		this.segments = segments;
+	}
+
+	/**
+	 * @return The address the program was assembled for, where
+	 *         {@link ObjectLoader#load(ObjectFile)} loads it.
+	 */
+	public int getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * @return The offset in the image of the first instruction to run.
+	 */
+	public int getEntry() {
+		return entry;
+	}
+
+	/**
+	 * @return The number of words in the image.
+	 */
+	public int size() {
+		return words.length;
+	}
+
+	/**
+	 * @return The number of labels, defined or not.
+	 */
+	int getLabelCount() {
+		return labels.length;
+	}
+
+	String getLabel(int label) {
+		return labels[label];
+	}
+
+	/**
+	 * @return The offset of a label in the image, or -1 if it is referred to
+	 *         but not defined.
+	 */
+	int getLabelOffset(int label) {
+		return label_offsets[label];
+	}
+
+	int getRelocationCount() {
+		return relocation_offsets.length;
+	}
+
+	/**
+	 * @return The offset of the instruction a relocation patches.
+	 */
+	int getRelocationOffset(int relocation) {
+		return relocation_offsets[relocation];
+	}
+
+	/**
+	 * @return The index of the label a relocation refers to.
+	 */
+	int getRelocationLabel(int relocation) {
+		return relocation_labels[relocation];
+	}
+
+	int getSegmentCount() {
+		return segments.length;
+	}
+
+	int getSegmentAddress(int segment) {
+		return segment_addresses[segment];
+	}
+
+	int[] getSegment(int segment) {
+		return segments[segment];
+	}
+
+	/**
+	 * Relocates the image for a load address.
+	 *
+	 * @param base
+	 *            The address the image is loaded at.
+	 * @return The words of the image as they are loaded at that address.
+	 */
+	int[] relocate(int base) {
+		int[] relocated = words.clone();
+		for (int i = 0; i < relocation_offsets.length; i++) {
+			int offset = label_offsets[relocation_labels[i]];
+			if (offset == -1)
+				continue;
+			int target = base + offset;
+			int word = relocated[relocation_offsets[i]];
+			if (target >= 128) {
+				word |= Utils.insertField(0,
+						InstructionBitFormats.LD_STR_ADDR_START,
+						InstructionBitFormats.LD_STR_ADDR_END,
+						InstructionLoader.JUMP_INDIRECTION_ADDR);
+				word |= Utils.insertField(0,
+						InstructionBitFormats.LD_STR_I_START,
+						InstructionBitFormats.LD_STR_I_END, 1);
+			} else
+				word |= Utils.insertField(0,
+						InstructionBitFormats.LD_STR_ADDR_START,
+						InstructionBitFormats.LD_STR_ADDR_END, target);
+			relocated[relocation_offsets[i]] = word;
+		}
+		return relocated;
+	}
+
+	/**
+	 * Writes the object file.
+	 *
+	 * @param out
+	 *            Receives the object file. Not closed.
+	 * @throws IOException
+	 *             If it cannot be written.
+	 */
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(
+				out));
+		writeTo(data);
+		data.flush();
+	}
+
+	/**
+	 * Writes the object file to a file, replacing it.
+	 *
+	 * @throws IOException
+	 *             If it cannot be written.
+	 */
+	public void write(Path file) throws IOException {
+		try (OutputStream out = Files.newOutputStream(file)) {
+			write(out);
+		}
+	}
+
+	private void writeTo(DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(origin);
+		out.writeInt(entry);
+		out.writeInt(words.length);
+		Snapshot.writeWords(out, words, 0, words.length);
+		out.writeInt(labels.length);
+		for (int i = 0; i < labels.length; i++) {
+			out.writeUTF(labels[i]);
+			out.writeInt(label_offsets[i]);
+		}
+		out.writeInt(relocation_offsets.length);
+		for (int i = 0; i < relocation_offsets.length; i++) {
+			out.writeInt(relocation_offsets[i]);
+			out.writeInt(relocation_labels[i]);
+		}
+		out.writeInt(segments.length);
+		for (int i = 0; i < segments.length; i++) {
+			out.writeInt(segment_addresses[i]);
+			out.writeInt(segments[i].length);
+			Snapshot.writeWords(out, segments[i], 0, segments[i].length);
+		}
+	}
+
+	/**
+	 * Reads an object file written by {@link #write(OutputStream)}.
+	 *
+	 * @param in
+	 *            Holds the object file. Not closed.
+	 * @return The object file.
+	 * @throws IOException
+	 *             If it cannot be read or is not a valid object file.
+	 */
+	public static ObjectFile read(InputStream in) throws IOException {
+		return readFrom(new DataInputStream(new BufferedInputStream(in)));
+	}
+
+	/**
+	 * Reads an object file from a file.
+	 *
+	 * @throws IOException
+	 *             If it cannot be read or is not a valid object file.
+	 */
+	public static ObjectFile read(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)) {
+			return read(in);
+		}
+	}
+
+	/**
+	 * Reads an object file through a read-only mapping of it, without copying
+	 * it through a stream buffer. This is how object files are loaded for
+	 * runs; see {@link HeadlessComputer} and {@link ROMImage}.
+	 *
+	 * @throws IOException
+	 *             If it cannot be read or is not a valid object file.
+	 */
+	public static ObjectFile map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Not an object file.");
+			return readFrom(new DataInputStream(new BufferInputStream(
+					channel.map(FileChannel.MapMode.READ_ONLY, 0,
+							channel.size()))));
+		}
+	}
+
+	/**
+	 * Reads a mapped file.
+	 */
+	private static class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (length == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+	}
+
+	private static ObjectFile readFrom(DataInput in) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not an object file.");
+		short version = in.readShort();
+		if (version != VERSION)
+			throw new IOException("Unsupported object file version "
+					+ version + ".");
+		int origin = in.readInt();
+		int entry = in.readInt();
+		int[] words = readWords(in);
+		if (origin < 0 || origin + words.length > Memory.MAX_SIZE
+				|| entry < 0 || entry > words.length)
+			throw new IOException("Invalid object file.");
+
+		int label_count = readCount(in);
+		String[] labels = new String[label_count];
+		int[] label_offsets = new int[label_count];
+		for (int i = 0; i < label_count; i++) {
+			labels[i] = in.readUTF();
+			label_offsets[i] = in.readInt();
+			if (label_offsets[i] < -1 || label_offsets[i] >= Memory.MAX_SIZE)
+				throw new IOException("Invalid label " + labels[i] + ".");
+		}
+
+		int relocation_count = readCount(in);
+		int[] relocation_offsets = new int[relocation_count];
+		int[] relocation_labels = new int[relocation_count];
+		for (int i = 0; i < relocation_count; i++) {
+			relocation_offsets[i] = in.readInt();
+			relocation_labels[i] = in.readInt();
+			if (relocation_offsets[i] < 0
+					|| relocation_offsets[i] >= words.length
+					|| relocation_labels[i] < 0
+					|| relocation_labels[i] >= label_count)
+				throw new IOException("Invalid relocation.");
+		}
+
+		int segment_count = readCount(in);
+		int[] segment_addresses = new int[segment_count];
+		int[][] segments = new int[segment_count][];
+		for (int i = 0; i < segment_count; i++) {
+			segment_addresses[i] = in.readInt();
+			segments[i] = readWords(in);
+			if (segment_addresses[i] < 0
+					|| segment_addresses[i] + segments[i].length > Memory.MAX_SIZE)
+				throw new IOException("Invalid data segment.");
+		}
+		return new ObjectFile(origin, entry, words, labels, label_offsets,
+				relocation_offsets, relocation_labels, segment_addresses,
+				segments);
+	}
+
+	/**
+	 * Reads a count, which can be no more than the words of the largest
+	 * memory.
+	 */
+	private static int readCount(DataInput in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > Memory.MAX_SIZE)
+			throw new IOException("Invalid object file.");
+		return count;
+	}
+
+	private static int[] readWords(DataInput in) throws IOException {
+		int[] words = new int[readCount(in)];
+		Snapshot.readWords(in, words, 0, words.length);
+		return words;
+	}
+}
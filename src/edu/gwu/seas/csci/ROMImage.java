@@ -0,0 +1,174 @@
+package edu.gwu.seas.csci;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+
+/**
+ * The assembled ROM: the boot program and the fault and trap routines, as
+ * {@link ObjectFile}s that {@link CPU#loadROM(ROMImage)} copies into memory
+ * without parsing their source.
+ * <p>
+ * The images can be assembled ahead of time into a directory with this
+ * class's main method, and mapped from there (see
+ * {@link ObjectFile#map(Path)}) by naming the directory with the
+ * "rom.directory" system property. Otherwise the sources on the classpath,
+ * boot.txt and fault_instructions.txt, are assembled, or taken from the
+ * {@link AssemblyCache} if it is on. Either way it is done once per process,
+ * by {@link #getDefault()}, and the images are shared by every machine: they
+ * are never written, only copied from.
+ * <p>
+ * Usage: ROMImage directory. Writes boot.obj and fault_instructions.obj to
+ * the directory.
+ * <p>
+ * Exit status: 0 when the ROM is assembled, 1 otherwise.
+ */
+public final class ROMImage {
+
+	/**
+	 * System property naming the directory to map the pre-assembled ROM from.
+	 */
+	public static final String DIRECTORY_PROPERTY = "rom.directory";
+
+	public static final String BOOT_FILENAME = "boot.obj";
+
+	public static final String FAULT_FILENAME = "fault_instructions.obj";
+
+	/**
+	 * The ROM of every machine, made on first use.
+	 */
+	private static volatile ROMImage default_image;
+
+	private final ObjectFile boot;
+
+	/**
+	 * The fault and trap routines, relocated to the fault routine address of
+	 * the memory they are loaded into.
+	 */
+	private final ObjectFile fault;
+
+	/**
+	 * @param boot
+	 *            The boot program, loaded at the boot program loading
+	 *            address.
+	 * @param fault
+	 *            The fault and trap routines, loaded at the fault routine
+	 *            address.
+	 */
+	public ROMImage(ObjectFile boot, ObjectFile fault) {
+		this.boot = boot;
+		this.fault = fault;
+	}
+
+	/**
+	 * @return The ROM mapped from the "rom.directory" system property, or
+	 *         assembled from the classpath if it is not set.
+	 * @throws ParseException
+	 *             If the ROM source cannot be assembled.
+	 * @throws IOException
+	 *             If the ROM cannot be read.
+	 */
+	public static ROMImage getDefault() throws ParseException, IOException {
+		ROMImage image = default_image;
+		if (image == null) {
+			synchronized (ROMImage.class) {
+				if (default_image == null) {
+					String directory = System.getProperty(DIRECTORY_PROPERTY);
+					default_image = directory == null ? assemble()
+							: map(Paths.get(directory));
+				}
+				image = default_image;
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Assembles the ROM source on the classpath, through the
+	 * {@link AssemblyCache#getDefault() assembler cache}.
+	 *
+	 * @throws ParseException
+	 *             If it cannot be assembled.
+	 * @throws IOException
+	 *             If it cannot be found.
+	 */
+	public static ROMImage assemble() throws ParseException, IOException {
+		return new ROMImage(assemble("boot.txt",
+				InstructionLoader.BOOT_PROGRAM_LOADING_ADDR), assemble(
+				CPUConstants.FAULT_INSTR_FILENAME, 0));
+	}
+
+	private static ObjectFile assemble(String resource, int origin)
+			throws ParseException, IOException {
+		InputStream in = ROMImage.class.getResourceAsStream("/" + resource);
+		if (in == null)
+			throw new IOException(resource + " not found");
+		ByteArrayOutputStream source = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[4096];
+			int length;
+			while ((length = in.read(buffer)) != -1)
+				source.write(buffer, 0, length);
+		} finally {
+			in.close();
+		}
+		return AssemblyCache.getDefault().assemble(source.toByteArray(),
+				origin, false);
+	}
+
+	/**
+	 * Maps a ROM written by {@link #write(Path)}.
+	 *
+	 * @param directory
+	 *            Holds boot.obj and fault_instructions.obj.
+	 * @throws IOException
+	 *             If either cannot be read or is not a valid object file.
+	 */
+	public static ROMImage map(Path directory) throws IOException {
+		return new ROMImage(ObjectFile.map(directory.resolve(BOOT_FILENAME)),
+				ObjectFile.map(directory.resolve(FAULT_FILENAME)));
+	}
+
+	/**
+	 * Writes the ROM to a directory, replacing boot.obj and
+	 * fault_instructions.obj.
+	 *
+	 * @throws IOException
+	 *             If they cannot be written.
+	 */
+	public void write(Path directory) throws IOException {
+		boot.write(directory.resolve(BOOT_FILENAME));
+		fault.write(directory.resolve(FAULT_FILENAME));
+	}
+
+	ObjectFile getBoot() {
+		return boot;
+	}
+
+	ObjectFile getFault() {
+		return fault;
+	}
+
+	/**
+	 * @param args
+	 *            The directory to write the ROM to.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: ROMImage directory");
+			System.exit(1);
+		}
+		try {
+			Path directory = Paths.get(args[0]);
+			Files.createDirectories(directory);
+			assemble().write(directory);
+		} catch (ParseException | IOException e) {
+			System.err.println(e);
+			System.exit(1);
+		}
+	}
+}
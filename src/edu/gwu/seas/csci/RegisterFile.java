@@ -0,0 +1,224 @@
+package edu.gwu.seas.csci;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the contents of every CPU register as a primitive int, indexed by the
+ * REG_ slot constants in {@link CPUConstants}. Each slot is masked to the width
+ * of the register it represents (for example, PC is 12 bits and CC is 4 bits),
+ * so the stored value is always the unsigned contents of the register.
+ * <p>
+ * The bit numbering used by the rest of the simulator (bit 0 is the most
+ * significant bit) is preserved by {@link #isBitSet(int, int)} and
+ * {@link #toRegister(int)}, which allows the String-keyed register accessors
+ * on the CPU to be layered on top of this class.
+ */
+public class RegisterFile implements CPUConstants {
+
+	/**
+	 * Register names, indexed by slot.
+	 */
+	private static final String[] NAMES = new String[REGISTER_COUNT];
+
+	/**
+	 * Register widths in bits, indexed by slot.
+	 */
+	private static final int[] SIZES = new int[REGISTER_COUNT];
+
+	/**
+	 * Register masks, indexed by slot.
+	 */
+	private static final int[] MASKS = new int[REGISTER_COUNT];
+
+	/**
+	 * Maps a register name to its slot.
+	 */
+	private static final Map<String, Integer> SLOTS = new HashMap<String, Integer>();
+
+	static {
+		// 4 General Purpose Registers(GPRs)
+		define(REG_R0, R0, DEFAULT_BIT_SIZE);
+		define(REG_R1, R1, DEFAULT_BIT_SIZE);
+		define(REG_R2, R2, DEFAULT_BIT_SIZE);
+		define(REG_R3, R3, DEFAULT_BIT_SIZE);
+
+		// 3 Index Registers
+		define(REG_X1, X1, DEFAULT_BIT_SIZE);
+		define(REG_X2, X2, DEFAULT_BIT_SIZE);
+		define(REG_X3, X3, DEFAULT_BIT_SIZE);
+
+		// Special registers
+		define(REG_PC, PC, 12);
+		define(REG_IR, IR, DEFAULT_BIT_SIZE);
+		define(REG_CC, CC, 4);
+		define(REG_MAR, MAR, DEFAULT_BIT_SIZE);
+		define(REG_MDR, MDR, DEFAULT_BIT_SIZE);
+		define(REG_MSR, MSR, DEFAULT_BIT_SIZE);
+		define(REG_MFR, MFR, 4);
+
+		// Assuming EA should be as large as the MAR register
+		define(REG_EA, EA, DEFAULT_BIT_SIZE);
+
+		// ALU Registers
+		define(REG_OP1, OP1, DEFAULT_BIT_SIZE);
+		define(REG_OP2, OP2, DEFAULT_BIT_SIZE);
+		define(REG_OP3, OP3, DEFAULT_BIT_SIZE);
+		define(REG_OP4, OP4, DEFAULT_BIT_SIZE);
+		define(REG_RESULT, RESULT, DEFAULT_BIT_SIZE);
+		define(REG_RESULT2, RESULT2, DEFAULT_BIT_SIZE);
+
+		// Registers for Load and Store instructions
+		define(REG_OPCODE, OPCODE, InstructionBitFormats.OPCODE_SIZE);
+		define(REG_IX, IX, InstructionBitFormats.LD_STR_IX_SIZE);
+		define(REG_R, R, InstructionBitFormats.LD_STR_R_SIZE);
+		define(REG_I, I, InstructionBitFormats.LD_STR_I_SIZE);
+		define(REG_ADDR, ADDR, InstructionBitFormats.LD_STR_ADDR_SIZE);
+
+		// Registers for register-register instructions
+		define(REG_RX, RX, InstructionBitFormats.XY_ARITH_RX_SIZE);
+		define(REG_RY, RY, InstructionBitFormats.XY_ARITH_RY_SIZE);
+
+		// Registers for shift instructions
+		define(REG_AL, AL, InstructionBitFormats.SHIFT_AL_SIZE);
+		define(REG_LR, LR, InstructionBitFormats.SHIFT_LR_SIZE);
+		define(REG_COUNT, COUNT, InstructionBitFormats.SHIFT_COUNT_SIZE);
+
+		// Registers for IO instructions
+		define(REG_DEVID, DEVID, InstructionBitFormats.IO_DEVID_SIZE);
+
+		// Registers for TRAP instructions
+		define(REG_TRAPCODE, TRAPCODE, InstructionBitFormats.TRAP_CODE_SIZE);
+	}
+
+	/**
+	 * The register contents, indexed by slot.
+	 */
+	private final int[] values = new int[REGISTER_COUNT];
+
+	private static void define(int slot, String name, int numBits) {
+		NAMES[slot] = name;
+		SIZES[slot] = numBits;
+		MASKS[slot] = (1 << numBits) - 1;
+		SLOTS.put(name, slot);
+	}
+
+	/**
+	 * @param name
+	 *            The register name, e.g. "MAR".
+	 * @return The slot of the named register, or -1 if there is no such
+	 *         register.
+	 */
+	public static int slotOf(String name) {
+		Integer slot = SLOTS.get(name);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * @return The name of the register held in the given slot.
+	 */
+	public static String getName(int slot) {
+		return NAMES[slot];
+	}
+
+	/**
+	 * @return The number of bits held in the given slot.
+	 */
+	public static int getNumBits(int slot) {
+		return SIZES[slot];
+	}
+
+	/**
+	 * @return The unsigned contents of the given slot.
+	 */
+	public int get(int slot) {
+		return values[slot];
+	}
+
+	/**
+	 * @return The contents of the given slot, sign extended from the width of
+	 *         the register (the same interpretation as Utils.convertToInt).
+	 */
+	public int getSigned(int slot) {
+		return Utils.signExtend(values[slot], SIZES[slot]);
+	}
+
+	/**
+	 * Sets a slot, truncating the value to the width of the register.
+	 * 
+	 * @param slot
+	 *            The register slot.
+	 * @param value
+	 *            The new contents of the register.
+	 */
+	public void set(int slot, int value) {
+		values[slot] = value & MASKS[slot];
+	}
+
+	/**
+	 * Sets a slot from a BitSet holding sourceBits bits, using the same
+	 * right-aligned copy as Utils.bitsetDeepCopy.
+	 * 
+	 * @param slot
+	 *            The register slot.
+	 * @param source
+	 *            The BitSet to copy from.
+	 * @param sourceBits
+	 *            Number of bits in the BitSet.
+	 */
+	public void set(int slot, BitSet source, int sourceBits) {
+		int value = 0;
+		for (int i = 0; i < sourceBits; i++)
+			value = (value << 1) | (source.get(i) ? 1 : 0);
+		set(slot, value);
+	}
+
+	/**
+	 * Tests a single bit of a slot, where bit 0 is the most significant bit of
+	 * the register (the same numbering as the Register BitSets).
+	 * 
+	 * @param slot
+	 *            The register slot.
+	 * @param bit
+	 *            The bit to test.
+	 * @return true if the bit is set.
+	 */
+	public boolean isBitSet(int slot, int bit) {
+		return ((values[slot] >>> (SIZES[slot] - 1 - bit)) & 1) != 0;
+	}
+
+	/**
+	 * Clears every register.
+	 */
+	public void clear() {
+		for (int slot = 0; slot < REGISTER_COUNT; slot++)
+			values[slot] = 0;
+	}
+
+	/**
+	 * Copies the contents of a slot into a new Register.
+	 * 
+	 * @param slot
+	 *            The register slot.
+	 * @return A Register holding a snapshot of the slot.
+	 */
+	public Register toRegister(int slot) {
+		int numBits = SIZES[slot];
+		Register register = new Register(numBits);
+		for (int i = 0; i < numBits; i++)
+			if (isBitSet(slot, i))
+				register.set(i);
+		return register;
+	}
+
+	/**
+	 * @return The binary representation of a slot, most significant bit first.
+	 */
+	public String toBinaryString(int slot) {
+		StringBuilder result = new StringBuilder(SIZES[slot]);
+		for (int i = 0; i < SIZES[slot]; i++)
+			result.append(isBitSet(slot, i) ? '1' : '0');
+		return result.toString();
+	}
+}
@@ -0,0 +1,336 @@
+package edu.gwu.seas.csci;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Chooses which way of a cache set to evict when a new line is brought into a
+ * full set. A policy keeps its own state for every set of the cache it was
+ * created for; the cache tells it when a way is accessed (a read or write hit)
+ * and when a way is filled with a new line.
+ * <p>
+ * The cache may not be able to evict every way (a line with writes still in
+ * the write buffer must stay cached), so {@link #victim(int, int)} is given a
+ * bitmask of the ways it may choose from. Caches using a policy are limited to
+ * 32 ways.
+ */
+public abstract class ReplacementPolicy {
+
+	/**
+	 * Enumerates the available replacement policies.
+	 */
+	public enum Type {
+		/**
+		 * Least recently used.
+		 */
+		LRU,
+		/**
+		 * Tree pseudo-LRU. Requires a power-of-two number of ways.
+		 */
+		PLRU,
+		/**
+		 * First in, first out: evicts the way filled longest ago.
+		 */
+		FIFO,
+		/**
+		 * Evicts a way chosen by a pseudo-random generator, seeded with the
+		 * cache.policy.seed system property so that runs are repeatable.
+		 */
+		RANDOM;
+
+		/**
+		 * Creates a policy of this type for a cache.
+		 *
+		 * @param sets
+		 *            The number of sets in the cache.
+		 * @param ways
+		 *            The number of ways in each set.
+		 * @return A new policy with no history.
+		 */
+		public ReplacementPolicy create(int sets, int ways) {
+			switch (this) {
+			case LRU:
+				return new LeastRecentlyUsed(sets, ways);
+			case PLRU:
+				return new PseudoLeastRecentlyUsed(sets, ways);
+			case FIFO:
+				return new FirstInFirstOut(sets, ways);
+			default:
+				return new RandomReplacement(sets, ways);
+			}
+		}
+	}
+
+	/**
+	 * System property holding the seed of the random policy's generator.
+	 */
+	public static final String SEED_PROPERTY = "cache.policy.seed";
+
+	public static final long DEFAULT_SEED = 0;
+
+	protected final int ways;
+
+	protected ReplacementPolicy(int sets, int ways) {
+		if (ways < 1 || ways > 32)
+			throw new IllegalArgumentException(
+					"A cache set must have between 1 and 32 ways, not " + ways
+							+ ".");
+		this.ways = ways;
+	}
+
+	/**
+	 * Records a hit on a way.
+	 *
+	 * @param set
+	 *            The set that was accessed.
+	 * @param way
+	 *            The way within the set.
+	 */
+	abstract void accessed(int set, int way);
+
+	/**
+	 * Records a new line being placed in a way.
+	 *
+	 * @param set
+	 *            The set that was filled.
+	 * @param way
+	 *            The way within the set.
+	 */
+	abstract void filled(int set, int way);
+
+	/**
+	 * Chooses the way to evict from a full set.
+	 *
+	 * @param set
+	 *            The set that needs room.
+	 * @param candidates
+	 *            Bitmask of the ways that may be evicted (bit n for way n).
+	 *            Never 0.
+	 * @return One of the candidate ways.
+	 */
+	abstract int victim(int set, int candidates);
+
+	/**
+	 * Writes the history of every set to a snapshot (see {@link Snapshot}).
+	 * Writes nothing for policies without history.
+	 */
+	void writeState(DataOutput out) throws IOException {
+	}
+
+	/**
+	 * Reads the history of every set from a snapshot taken of a cache with
+	 * the same policy and geometry.
+	 */
+	void readState(DataInput in) throws IOException {
+	}
+
+	/**
+	 * Orders the ways of each set by a stamp and evicts the candidate with the
+	 * oldest stamp.
+	 */
+	private static abstract class StampedPolicy extends ReplacementPolicy {
+
+		private final long[] stamps;
+
+		private long clock = 0;
+
+		StampedPolicy(int sets, int ways) {
+			super(sets, ways);
+			stamps = new long[sets * ways];
+		}
+
+		void stamp(int set, int way) {
+			stamps[set * ways + way] = ++clock;
+		}
+
+		@Override
+		void writeState(DataOutput out) throws IOException {
+			out.writeLong(clock);
+			for (long stamp : stamps)
+				out.writeLong(stamp);
+		}
+
+		@Override
+		void readState(DataInput in) throws IOException {
+			clock = in.readLong();
+			for (int i = 0; i < stamps.length; i++)
+				stamps[i] = in.readLong();
+		}
+
+		@Override
+		int victim(int set, int candidates) {
+			int base = set * ways;
+			int victim = -1;
+			for (int way = 0; way < ways; way++)
+				if ((candidates & (1 << way)) != 0
+						&& (victim == -1 || stamps[base + way] < stamps[base
+								+ victim]))
+					victim = way;
+			return victim;
+		}
+	}
+
+	private static class LeastRecentlyUsed extends StampedPolicy {
+
+		LeastRecentlyUsed(int sets, int ways) {
+			super(sets, ways);
+		}
+
+		@Override
+		void accessed(int set, int way) {
+			stamp(set, way);
+		}
+
+		@Override
+		void filled(int set, int way) {
+			stamp(set, way);
+		}
+	}
+
+	private static class FirstInFirstOut extends StampedPolicy {
+
+		FirstInFirstOut(int sets, int ways) {
+			super(sets, ways);
+		}
+
+		@Override
+		void accessed(int set, int way) {
+		}
+
+		@Override
+		void filled(int set, int way) {
+			stamp(set, way);
+		}
+	}
+
+	/**
+	 * Keeps a binary tree of ways-1 bits per set. Each bit points towards the
+	 * half of its subtree that was used less recently; an access flips the
+	 * bits on its path to point away from it.
+	 */
+	private static class PseudoLeastRecentlyUsed extends ReplacementPolicy {
+
+		private final boolean[] tree;
+
+		PseudoLeastRecentlyUsed(int sets, int ways) {
+			super(sets, ways);
+			if (Integer.bitCount(ways) != 1)
+				throw new IllegalArgumentException(
+						"Pseudo-LRU needs a power-of-two number of ways, not "
+								+ ways + ".");
+			tree = new boolean[sets * ways];
+		}
+
+		@Override
+		void accessed(int set, int way) {
+			int base = set * ways;
+			int node = 1, low = 0, high = ways;
+			while (high - low > 1) {
+				int middle = (low + high) >>> 1;
+				boolean right = way >= middle;
+				// Point at the other half.
+				tree[base + node] = !right;
+				node = 2 * node + (right ? 1 : 0);
+				if (right)
+					low = middle;
+				else
+					high = middle;
+			}
+		}
+
+		@Override
+		void filled(int set, int way) {
+			accessed(set, way);
+		}
+
+		@Override
+		void writeState(DataOutput out) throws IOException {
+			for (boolean bit : tree)
+				out.writeBoolean(bit);
+		}
+
+		@Override
+		void readState(DataInput in) throws IOException {
+			for (int i = 0; i < tree.length; i++)
+				tree[i] = in.readBoolean();
+		}
+
+		@Override
+		int victim(int set, int candidates) {
+			int base = set * ways;
+			int node = 1, low = 0, high = ways;
+			while (high - low > 1) {
+				int middle = (low + high) >>> 1;
+				boolean right = tree[base + node];
+				// Follow the tree unless that half has nothing to evict.
+				if (right ? !hasCandidate(candidates, middle, high)
+						: !hasCandidate(candidates, low, middle))
+					right = !right;
+				node = 2 * node + (right ? 1 : 0);
+				if (right)
+					low = middle;
+				else
+					high = middle;
+			}
+			return low;
+		}
+
+		private static boolean hasCandidate(int candidates, int low, int high) {
+			int mask = (high == 32 ? -1 : (1 << high) - 1) & ~((1 << low) - 1);
+			return (candidates & mask) != 0;
+		}
+	}
+
+	/**
+	 * Draws the victim from a 48-bit linear congruential generator, the one
+	 * {@link java.util.Random} uses, kept here so that its state can be saved
+	 * in a snapshot: a restored or forked machine evicts the same lines as
+	 * the original.
+	 */
+	private static class RandomReplacement extends ReplacementPolicy {
+
+		private static final long MULTIPLIER = 0x5DEECE66DL;
+
+		private static final long ADDEND = 0xBL;
+
+		private static final long MASK = (1L << 48) - 1;
+
+		private long seed;
+
+		RandomReplacement(int sets, int ways) {
+			super(sets, ways);
+			seed = (Long.getLong(SEED_PROPERTY, DEFAULT_SEED) ^ MULTIPLIER)
+					& MASK;
+		}
+
+		@Override
+		void accessed(int set, int way) {
+		}
+
+		@Override
+		void filled(int set, int way) {
+		}
+
+		@Override
+		void writeState(DataOutput out) throws IOException {
+			out.writeLong(seed);
+		}
+
+		@Override
+		void readState(DataInput in) throws IOException {
+			seed = in.readLong() & MASK;
+		}
+
+		@Override
+		int victim(int set, int candidates) {
+			seed = (seed * MULTIPLIER + ADDEND) & MASK;
+			// Scale the top 31 bits to the number of candidates.
+			int pick = (int) ((Integer.bitCount(candidates) * (seed >>> 17))
+					>>> 31);
+			for (int way = 0;; way++)
+				if ((candidates & (1 << way)) != 0 && pick-- == 0)
+					return way;
+		}
+	}
+}
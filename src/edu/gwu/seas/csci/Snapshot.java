@@ -0,0 +1,122 @@
+package edu.gwu.seas.csci;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The binary format of a {@link Machine} snapshot, see
+ * {@link Machine#saveSnapshot(java.io.OutputStream)}. A snapshot is written
+ * with {@link DataOutput}, so every number is big-endian, and is laid out as:
+ * <ol>
+ * <li>The magic number "SNAP" and the format version, a short.</li>
+ * <li>Main memory: its size in words, then its words packed.</li>
+ * <li>The CPU: its registers packed, its execution state, the pending input,
+ * the cycle and instruction counters, then the state of each cache, top level
+ * first.</li>
+ * <li>The jump table of the program loaded last.</li>
+ * </ol>
+ * Words are packed 18 bits at a time, most significant bit first, so 4 words
+ * take 9 bytes; the last byte of a run of words is padded with zeros.
+ */
+final class Snapshot {
+
+	/**
+	 * "SNAP" in ASCII.
+	 */
+	static final int MAGIC = 0x534E4150;
+
+	static final short VERSION = 2;
+
+	private static final int WORD_BITS = CPUConstants.DEFAULT_BIT_SIZE;
+
+	private Snapshot() {
+	}
+
+	/**
+	 * Writes a machine as a snapshot.
+	 */
+	static void write(Machine machine, DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		machine.getMemory().writeState(out);
+		machine.getCPU().writeState(out);
+		InstructionLoader.writeJumpTable(machine.getLoader(), out);
+	}
+
+	/**
+	 * Replaces the state of a machine with that of a snapshot.
+	 *
+	 * @throws IOException
+	 *             If the snapshot cannot be read, or was taken of a machine
+	 *             with a different memory size or cache geometry. The machine
+	 *             is left in an undefined state.
+	 */
+	static void read(Machine machine, DataInput in) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a machine snapshot.");
+		short version = in.readShort();
+		if (version != VERSION)
+			throw new IOException("Unsupported snapshot version " + version
+					+ ".");
+		machine.getMemory().readState(in);
+		machine.getCPU().readState(in);
+		InstructionLoader.readJumpTable(machine, in);
+	}
+
+	/**
+	 * Checks a dimension read from a snapshot against the machine's.
+	 *
+	 * @throws IOException
+	 *             If they differ.
+	 */
+	static void expect(String what, int expected, int actual)
+			throws IOException {
+		if (expected != actual)
+			throw new IOException("The snapshot has " + actual + " " + what
+					+ ", the machine " + expected + ".");
+	}
+
+	/**
+	 * Writes words packed 18 bits at a time.
+	 *
+	 * @param words
+	 *            Holds the words, each at most 18 bits.
+	 * @param offset
+	 *            The first word to write.
+	 * @param length
+	 *            The number of words to write.
+	 */
+	static void writeWords(DataOutput out, int[] words, int offset, int length)
+			throws IOException {
+		long bits = 0;
+		int count = 0;
+		for (int i = offset; i < offset + length; i++) {
+			bits = (bits << WORD_BITS) | words[i];
+			count += WORD_BITS;
+			while (count >= 8) {
+				count -= 8;
+				out.write((int) (bits >>> count));
+			}
+		}
+		if (count > 0)
+			out.write((int) (bits << (8 - count)));
+	}
+
+	/**
+	 * Reads words written by {@link #writeWords(DataOutput, int[], int, int)}.
+	 */
+	static void readWords(DataInput in, int[] words, int offset, int length)
+			throws IOException {
+		long bits = 0;
+		int count = 0;
+		for (int i = offset; i < offset + length; i++) {
+			while (count < WORD_BITS) {
+				bits = (bits << 8) | in.readUnsignedByte();
+				count += 8;
+			}
+			count -= WORD_BITS;
+			words[i] = (int) (bits >>> count) & Memory.WORD_MASK;
+		}
+	}
+}
@@ -0,0 +1,527 @@
+package edu.gwu.seas.csci;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Runs every program in a directory, each on its own {@link Machine} through a
+ * {@link HeadlessComputer}, in parallel on a {@link ForkJoinPool}, and prints a
+ * summary report of the runs: how each ended, the characters it wrote with
+ * OUT, its cycles, instructions and wall time, its final registers and a
+ * checksum of its final memory.
+ * <p>
+ * Usage: TestFarm directory [glob]. The programs are the files in the
+ * directory matching the glob, "*.txt" by default, run in "fast run" mode. The
+ * lines of input for program.txt are read from program.in in the same
+ * directory, if there is one, and otherwise the program gets no input. Object
+ * files written by the {@link Assembler} are run with the glob "*.obj". The
+ * number of worker threads is the number of processors unless set with
+ * -Dfarm.threads. The machines are configured by the same system properties
+ * as HeadlessComputer (memory size, caches, memory controller and timing), and
+ * -Dmemory.controller=synchronous makes the cycle counts reproducible. With
+ * -Dassembler.cache=directory, source programs and the ROM are assembled on
+ * the first run only (see {@link AssemblyCache}).
+ * <p>
+ * A program that has not halted after 100,000,000 cycles, or the number set
+ * with -Dfarm.max.cycles, is stopped and reported as timed out, so one that
+ * loops forever does not keep the report from being printed.
+ * <p>
+ * Exit status: 0 when every program halted, 1 on a usage error, 2 otherwise.
+ */
+public class TestFarm {
+
+	public static final String THREADS_PROPERTY = "farm.threads";
+
+	/**
+	 * System property holding the most cycles a run may take.
+	 */
+	public static final String MAX_CYCLES_PROPERTY = "farm.max.cycles";
+
+	public static final long DEFAULT_MAX_CYCLES = 100000000L;
+
+	public static final String DEFAULT_GLOB = "*.txt";
+
+	/**
+	 * The extension of input fixtures, which replaces that of the program.
+	 */
+	public static final String INPUT_EXTENSION = ".in";
+
+	/**
+	 * The registers in the report, by name and register slot.
+	 */
+	private static final String[] REGISTER_NAMES = { CPUConstants.R0,
+			CPUConstants.R1, CPUConstants.R2, CPUConstants.R3, CPUConstants.X1,
+			CPUConstants.X2, CPUConstants.X3, CPUConstants.PC, CPUConstants.CC,
+			CPUConstants.MFR };
+
+	private static final int[] REGISTER_SLOTS = { CPUConstants.REG_R0,
+			CPUConstants.REG_R1, CPUConstants.REG_R2, CPUConstants.REG_R3,
+			CPUConstants.REG_X1, CPUConstants.REG_X2, CPUConstants.REG_X3,
+			CPUConstants.REG_PC, CPUConstants.REG_CC, CPUConstants.REG_MFR };
+
+	/**
+	 * How a run ended.
+	 */
+	public enum Status {
+		/**
+		 * The program reached HLT.
+		 */
+		HALTED,
+		/**
+		 * The program was waiting on IN when its input ran out.
+		 */
+		WAITING_FOR_INPUT,
+		/**
+		 * The program was stopped after the most cycles a run may take.
+		 */
+		TIMED_OUT,
+		/**
+		 * The program or its input could not be loaded, or the machine could
+		 * not be created.
+		 */
+		FAILED
+	}
+
+	/**
+	 * The outcome of running one program.
+	 */
+	public static class Run {
+
+		private final String name;
+
+		private Status status = Status.FAILED;
+
+		private String error;
+
+		private String output = "";
+
+		private long cycles;
+
+		private long instructions;
+
+		private long nanos;
+
+		private int[] registers;
+
+		private int[] memory;
+
+		Run(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return The file name of the program.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return Why the run failed, or null if it did not.
+		 */
+		public String getError() {
+			return error;
+		}
+
+		/**
+		 * @return The characters the program wrote with OUT.
+		 */
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * @return The cycles taken to load and run the program.
+		 */
+		public long getCycles() {
+			return cycles;
+		}
+
+		/**
+		 * @return The instructions completed, including those of the fault
+		 *         and trap routines.
+		 */
+		public long getInstructions() {
+			return instructions;
+		}
+
+		/**
+		 * @return The wall time taken to load and run the program.
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return The final contents of R0-R3, X1-X3, PC, CC and MFR, or null
+		 *         if the run failed.
+		 */
+		public int[] getRegisters() {
+			return registers;
+		}
+
+		/**
+		 * @return The final contents of every word of memory, including
+		 *         writes still in the caches, or null if the run failed.
+		 */
+		public int[] getMemory() {
+			return memory;
+		}
+
+		/**
+		 * @return The CRC-32 of the final memory, as big-endian 32-bit words,
+		 *         or 0 if the run failed.
+		 */
+		public long getMemoryChecksum() {
+			if (memory == null)
+				return 0;
+			CRC32 crc = new CRC32();
+			for (int word : memory) {
+				crc.update(word >>> 24);
+				crc.update(word >>> 16);
+				crc.update(word >>> 8);
+				crc.update(word);
+			}
+			return crc.getValue();
+		}
+
+		/**
+		 * @return A few lines describing the run, as in the summary report.
+		 */
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append(String.format(
+					"%s: %s, %d instructions, %d cycles, %.2f ms%n", name,
+					status, instructions, cycles, nanos / 1e6));
+			if (error != null)
+				report.append("  error: ").append(error)
+						.append(System.lineSeparator());
+			if (registers != null) {
+				report.append(" ");
+				for (int i = 0; i < registers.length; i++)
+					report.append(' ').append(REGISTER_NAMES[i]).append('=')
+							.append(registers[i]);
+				report.append(System.lineSeparator());
+				report.append(String.format(
+						"  memory: %d words, CRC-32 %08x%n", memory.length,
+						getMemoryChecksum()));
+			}
+			if (!output.isEmpty())
+				report.append("  output: ").append(escape(output))
+						.append(System.lineSeparator());
+			return report.toString();
+		}
+	}
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * The most cycles a run may take.
+	 */
+	private final long max_cycles;
+
+	/**
+	 * A snapshot of a machine with the ROM loaded, made on first use.
+	 */
+	private byte[] rom_snapshot;
+
+	/**
+	 * Creates a test farm with the number of worker threads set in the
+	 * farm.threads system property, or one per processor, and the cycle limit
+	 * set in farm.max.cycles.
+	 */
+	public TestFarm() {
+		this(Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime()
+				.availableProcessors()));
+	}
+
+	/**
+	 * Creates a test farm with the cycle limit set in the farm.max.cycles
+	 * system property.
+	 * 
+	 * @param threads
+	 *            The number of programs to run at once.
+	 * @throws IllegalArgumentException
+	 *             If threads or the cycle limit is not positive.
+	 */
+	public TestFarm(int threads) throws IllegalArgumentException {
+		this(threads, Long.getLong(MAX_CYCLES_PROPERTY, DEFAULT_MAX_CYCLES));
+	}
+
+	/**
+	 * @param threads
+	 *            The number of programs to run at once.
+	 * @param max_cycles
+	 *            The most cycles a run may take to load and run its program
+	 *            before it is stopped.
+	 * @throws IllegalArgumentException
+	 *             If threads or max_cycles is not positive.
+	 */
+	public TestFarm(int threads, long max_cycles)
+			throws IllegalArgumentException {
+		if (threads < 1)
+			throw new IllegalArgumentException(
+					"The test farm needs at least 1 thread, not " + threads
+							+ ".");
+		if (max_cycles < 1)
+			throw new IllegalArgumentException(
+					"The test farm cycle limit must be positive, not "
+							+ max_cycles + ".");
+		pool = new ForkJoinPool(threads);
+		this.max_cycles = max_cycles;
+	}
+
+	/**
+	 * @return The number of programs run at once.
+	 */
+	public int getThreads() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Finds the programs in a directory, sorted by name.
+	 *
+	 * @param directory
+	 *            The directory to search.
+	 * @param glob
+	 *            Matches the file names of the programs.
+	 * @return The programs, without their input fixtures.
+	 * @throws IOException
+	 *             If the directory cannot be read.
+	 */
+	public static List<Path> findPrograms(Path directory, String glob)
+			throws IOException {
+		List<Path> programs = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				glob)) {
+			for (Path file : files)
+				if (Files.isRegularFile(file)
+						&& !file.toString().endsWith(INPUT_EXTENSION))
+					programs.add(file);
+		}
+		Collections.sort(programs);
+		return programs;
+	}
+
+	/**
+	 * @return The input fixture of a program: the file with the same name
+	 *         and the extension ".in".
+	 */
+	public static Path inputFor(Path program) {
+		String name = program.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		return program.resolveSibling(name + INPUT_EXTENSION);
+	}
+
+	/**
+	 * Runs programs in parallel, each on a new machine.
+	 *
+	 * @param programs
+	 *            The program files.
+	 * @return The runs, in the order of the programs.
+	 */
+	public List<Run> runAll(List<Path> programs) {
+		List<Callable<Run>> tasks = new ArrayList<Callable<Run>>();
+		for (final Path program : programs)
+			tasks.add(new Callable<Run>() {
+				@Override
+				public Run call() {
+					return run(program);
+				}
+			});
+
+		List<Run> runs = new ArrayList<Run>();
+		for (Future<Run> future : pool.invokeAll(tasks)) {
+			try {
+				runs.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				// run catches everything a run can throw.
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * @return A snapshot of a machine with the ROM loaded, which each run
+	 *         restores instead of loading the ROM again.
+	 */
+	private synchronized byte[] getROMSnapshot() throws IOException {
+		if (rom_snapshot == null) {
+			Machine machine = new Machine();
+			try {
+				new HeadlessComputer(machine, new PrintStream(
+						new ByteArrayOutputStream()));
+				ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+				machine.saveSnapshot(snapshot);
+				rom_snapshot = snapshot.toByteArray();
+			} finally {
+				machine.shutdown();
+			}
+		}
+		return rom_snapshot;
+	}
+
+	/**
+	 * Loads a program on a new machine restored from a snapshot of the ROM,
+	 * and runs it to HLT with its input fixture, or until it has taken the
+	 * most cycles a run may take. Never throws: failures are recorded in the
+	 * run.
+	 *
+	 * @param program
+	 *            The program file.
+	 * @return The outcome of the run.
+	 */
+	public Run run(Path program) {
+		Run run = new Run(program.getFileName().toString());
+		Machine machine = null;
+		try {
+			Path input_file = inputFor(program);
+			Reader input = Files.isRegularFile(input_file) ? new FileReader(
+					input_file.toFile()) : new StringReader("");
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			machine = new Machine();
+			HeadlessComputer computer = new HeadlessComputer(machine,
+					new PrintStream(output, true, "UTF-8"),
+					new ByteArrayInputStream(getROMSnapshot()));
+			CPU cpu = machine.getCPU();
+
+			long start_cycles = cpu.getCycleCount();
+			cpu.setCycleLimit(start_cycles + max_cycles);
+			long start_instructions = cpu.getInstructionCount();
+			long start = System.nanoTime();
+			boolean halted;
+			try (BufferedReader reader = new BufferedReader(input)) {
+				halted = computer.run(program.toAbsolutePath().toString(),
+						reader);
+			}
+			run.nanos = System.nanoTime() - start;
+			run.cycles = cpu.getCycleCount() - start_cycles;
+			run.instructions = cpu.getInstructionCount() - start_instructions;
+			if (halted)
+				run.status = Status.HALTED;
+			else if (cpu.isStoppedAtCycleLimit())
+				run.status = Status.TIMED_OUT;
+			else
+				run.status = Status.WAITING_FOR_INPUT;
+			run.output = output.toString("UTF-8");
+
+			run.registers = new int[REGISTER_SLOTS.length];
+			for (int i = 0; i < REGISTER_SLOTS.length; i++)
+				run.registers[i] = cpu.getRegister(REGISTER_SLOTS[i]);
+			run.memory = new int[machine.getMemory().size()];
+			for (int address = 0; address < run.memory.length; address++)
+				run.memory[address] = cpu.peekMemory(address);
+		} catch (ParseException | IOException | RuntimeException e) {
+			run.status = Status.FAILED;
+			run.error = e.toString();
+		} finally {
+			if (machine != null)
+				machine.shutdown();
+		}
+		return run;
+	}
+
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Makes the output of a program fit on one line of the report.
+	 */
+	private static String escape(String output) {
+		StringBuilder escaped = new StringBuilder("\"");
+		for (char c : output.toCharArray()) {
+			if (c == '\n')
+				escaped.append("\\n");
+			else if (c == '"' || c == '\\')
+				escaped.append('\\').append(c);
+			else if (c < ' ')
+				escaped.append(String.format("\\x%02x", (int) c));
+			else
+				escaped.append(c);
+		}
+		return escaped.append('"').toString();
+	}
+
+	/**
+	 * @param args
+	 *            The directory of programs, optionally followed by a glob
+	 *            matching their file names.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: TestFarm directory [glob]");
+			System.exit(1);
+		}
+		if (System.getProperty("log4j.configurationFile") == null)
+			System.setProperty("log4j.configurationFile",
+					"log4j2-headless.xml");
+
+		List<Path> programs;
+		TestFarm farm;
+		try {
+			programs = findPrograms(Paths.get(args[0]),
+					args.length == 2 ? args[1] : DEFAULT_GLOB);
+			farm = new TestFarm();
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println(e);
+			System.exit(1);
+			return;
+		}
+
+		long start = System.nanoTime();
+		List<Run> runs = farm.runAll(programs);
+		long elapsed = System.nanoTime() - start;
+		farm.shutdown();
+
+		int[] counts = new int[Status.values().length];
+		long run_nanos = 0;
+		for (Run run : runs) {
+			System.out.print(run);
+			counts[run.getStatus().ordinal()]++;
+			run_nanos += run.getNanos();
+		}
+		System.out.printf(
+				"%d programs: %d halted, %d waiting for input, %d timed out, %d failed%n",
+				runs.size(), counts[Status.HALTED.ordinal()],
+				counts[Status.WAITING_FOR_INPUT.ordinal()],
+				counts[Status.TIMED_OUT.ordinal()],
+				counts[Status.FAILED.ordinal()]);
+		System.out.printf("%.2f ms wall time for %.2f ms of runs on %d threads%n",
+				elapsed / 1e6, run_nanos / 1e6, farm.getThreads());
+		System.exit(counts[Status.HALTED.ordinal()] == runs.size() ? 0 : 2);
+	}
+}
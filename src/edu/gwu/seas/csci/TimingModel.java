@@ -0,0 +1,232 @@
+package edu.gwu.seas.csci;
+
+import java.util.Map;
+
+import edu.gwu.seas.csci.Context.InstructionClass;
+
+/**
+ * Counts the cycles a {@link CPU} spends and charges them to the instructions
+ * it runs. Every micro step takes a cycle; on top of that the CPU charges the
+ * latency of each memory access (see {@link CPU.Cache}), and this model adds
+ * configurable costs for the things the micro steps do not show: stalls on
+ * the write buffer, multiply and divide in the ALU, and I/O. The extra costs
+ * are set in cycles with the timing.stall, timing.multiply, timing.divide and
+ * timing.io system properties, and are all 0 unless set.
+ * <p>
+ * When an instruction completes, the cycles since the previous one completed
+ * are charged to its {@link InstructionClass}, which gives the cycles per
+ * instruction (CPI) of each class of instruction.
+ */
+public class TimingModel {
+
+	public static final String STALL_PROPERTY = "timing.stall";
+
+	public static final String MULTIPLY_PROPERTY = "timing.multiply";
+
+	public static final String DIVIDE_PROPERTY = "timing.divide";
+
+	public static final String IO_PROPERTY = "timing.io";
+
+	/**
+	 * The number of opcodes an instruction can hold.
+	 */
+	private static final int OPCODES = 1 << InstructionBitFormats.OPCODE_SIZE;
+
+	private static final InstructionClass[] CLASSES = InstructionClass
+			.values();
+
+	/**
+	 * The class of each opcode, or null for opcodes the assembler does not
+	 * know.
+	 */
+	private final InstructionClass[] opcode_classes = new InstructionClass[OPCODES];
+
+	/**
+	 * The extra cycles each opcode takes when it completes.
+	 */
+	private final int[] opcode_latencies = new int[OPCODES];
+
+	/**
+	 * The cycles a stall on the write buffer takes.
+	 */
+	private final int stall_latency;
+
+	/**
+	 * Cycles since the CPU was created.
+	 */
+	private long cycles;
+
+	/**
+	 * The value of cycles when the last instruction completed.
+	 */
+	private long instruction_start;
+
+	/**
+	 * The value of cycles at the last reset.
+	 */
+	private long reset_start;
+
+	private final long[] class_instructions = new long[CLASSES.length];
+
+	private final long[] class_cycles = new long[CLASSES.length];
+
+	/**
+	 * Creates a timing model with the costs set in the system properties.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If a cost is negative.
+	 */
+	public TimingModel() {
+		Context context = Context.getInstance();
+		Map<String, InstructionClass> classes = context.getOpcodeClasses();
+		for (Map.Entry<Byte, String> opcode : context.getOpCodeStrings()
+				.entrySet())
+			opcode_classes[opcode.getKey()] = classes.get(opcode.getValue());
+
+		stall_latency = latency(STALL_PROPERTY);
+		opcode_latencies[OpCodesList.MLT] = latency(MULTIPLY_PROPERTY);
+		opcode_latencies[OpCodesList.DVD] = latency(DIVIDE_PROPERTY);
+		int io = latency(IO_PROPERTY);
+		opcode_latencies[OpCodesList.IN] = io;
+		opcode_latencies[OpCodesList.OUT] = io;
+	}
+
+	private static int latency(String property) {
+		int latency = Integer.getInteger(property, 0);
+		if (latency < 0)
+			throw new IllegalArgumentException(property
+					+ " cannot be negative, not " + latency + ".");
+		return latency;
+	}
+
+	/**
+	 * Adds cycles to the counter. Negative when the CPU takes back the cycles
+	 * of an instruction it will restart.
+	 */
+	void advance(long cycles) {
+		this.cycles += cycles;
+	}
+
+	/**
+	 * @return The cycles a stall on the write buffer takes.
+	 */
+	int getStallLatency() {
+		return stall_latency;
+	}
+
+	/**
+	 * Charges the extra cost of an instruction that has just completed, then
+	 * charges the cycles it took to its class.
+	 *
+	 * @param opcode
+	 *            The opcode of the instruction.
+	 */
+	void retire(int opcode) {
+		cycles += opcode_latencies[opcode];
+		InstructionClass instruction_class = opcode_classes[opcode];
+		if (instruction_class != null) {
+			class_instructions[instruction_class.ordinal()]++;
+			class_cycles[instruction_class.ordinal()] += cycles
+					- instruction_start;
+		}
+		instruction_start = cycles;
+	}
+
+	/**
+	 * Sets the cycle counter, when a snapshot is restored, and clears the
+	 * per-class counts.
+	 */
+	void restore(long cycles) {
+		this.cycles = cycles;
+		reset();
+	}
+
+	/**
+	 * Clears the per-class counts and starts counting the cycles of a run, so
+	 * both cover what runs next. The cycle counter keeps counting from where
+	 * it was; see {@link #getRunCycles()}.
+	 */
+	public void reset() {
+		for (int i = 0; i < CLASSES.length; i++) {
+			class_instructions[i] = 0;
+			class_cycles[i] = 0;
+		}
+		instruction_start = cycles;
+		reset_start = cycles;
+	}
+
+	/**
+	 * @return The cycles since the CPU was created.
+	 */
+	public long getCycles() {
+		return cycles;
+	}
+
+	/**
+	 * @return The cycles since the last reset, which leave out the boot and
+	 *         the loading of the program the per-class counts leave out.
+	 */
+	public long getRunCycles() {
+		return cycles - reset_start;
+	}
+
+	/**
+	 * @return The instructions of a class completed since the last reset.
+	 */
+	public long getInstructions(InstructionClass instruction_class) {
+		return class_instructions[instruction_class.ordinal()];
+	}
+
+	/**
+	 * @return The cycles charged to a class since the last reset.
+	 */
+	public long getCycles(InstructionClass instruction_class) {
+		return class_cycles[instruction_class.ordinal()];
+	}
+
+	/**
+	 * @return The average cycles per instruction of a class, or 0 if none
+	 *         were run.
+	 */
+	public double getCyclesPerInstruction(InstructionClass instruction_class) {
+		long instructions = getInstructions(instruction_class);
+		return instructions == 0 ? 0 : (double) getCycles(instruction_class)
+				/ instructions;
+	}
+
+	/**
+	 * @return The average cycles per instruction over every class, or 0 if no
+	 *         instructions were run.
+	 */
+	public double getCyclesPerInstruction() {
+		long instructions = 0, cycles = 0;
+		for (int i = 0; i < CLASSES.length; i++) {
+			instructions += class_instructions[i];
+			cycles += class_cycles[i];
+		}
+		return instructions == 0 ? 0 : (double) cycles / instructions;
+	}
+
+	/**
+	 * @return A multi-line report of the cycles and CPI since the last reset,
+	 *         overall and of every class that was run.
+	 */
+	@Override
+	public String toString() {
+		long instructions = 0;
+		for (int i = 0; i < CLASSES.length; i++)
+			instructions += class_instructions[i];
+		StringBuilder report = new StringBuilder();
+		report.append(String.format(
+				"Timing: %d instructions, %d cycles, CPI %.2f%n", instructions,
+				getRunCycles(), getCyclesPerInstruction()));
+		for (InstructionClass instruction_class : CLASSES)
+			if (getInstructions(instruction_class) > 0)
+				report.append(String.format(
+						"  %s: %d instructions, %d cycles, CPI %.2f%n",
+						instruction_class, getInstructions(instruction_class),
+						getCycles(instruction_class),
+						getCyclesPerInstruction(instruction_class)));
+		return report.toString();
+	}
+}
@@ -10,6 +10,11 @@ import org.apache.logging.log4j.Logger;
  * to convert back and forth a BitSet and its numeric equivalent. It also
  * includes deep copy methods to copy the contents of one Register or BitSet to
  * another.
+ * <p>
+ * The simulator itself holds words and registers as ints, and works on them
+ * with the int bit-field methods ({@link #field}, {@link #insertField},
+ * {@link #signExtend} and {@link #wrap}), which allocate nothing. The BitSet
+ * methods remain for the GUI.
  * 
  * @author Nick Capurso, Alex Remily
  */
@@ -32,11 +37,7 @@ public class Utils {
 	 * @return The numeric value represented by the BitSet.
 	 */
 	public static byte convertToUnsignedByte(final BitSet set, final int numBits) {
-		byte value = 0;
-
-		for (int i = numBits - 1; i >= 0; i--)
-			value += set.get(i) ? (byte) (1 << (numBits - 1 - i)) : 0;
-		return value;
+		return (byte) toUnsigned(set, numBits);
 	}
 
 	/**
@@ -53,28 +54,91 @@ public class Utils {
 	 * @return The numeric value represented by the BitSet.
 	 */
 	public static int convertToInt(final BitSet set, final int numBits) {
+		return signExtend(toUnsigned(set, numBits), numBits);
+	}
+
+	/**
+	 * Reads the first numBits bits of a BitSet as an unsigned value, bit 0
+	 * being the most significant.
+	 */
+	private static int toUnsigned(final BitSet set, final int numBits) {
 		int value = 0;
+		for (int i = 0; i < numBits; i++)
+			value = (value << 1) | (set.get(i) ? 1 : 0);
+		return value;
+	}
 
-		// Check if converting a BitSet which contains a negative value (MSB
-		// set)
-		if (set.get(0)) {
-			BitSet temp = new BitSet(numBits);
+	/**
+	 * @param bits
+	 *            A number of bits, 0 to 32.
+	 * @return An int with the given number of low bits set.
+	 */
+	public static int mask(int bits) {
+		return bits >= 32 ? -1 : (1 << bits) - 1;
+	}
 
-			// Make a copy of the input set
-			bitsetDeepCopy(set, numBits, temp, numBits);
+	/**
+	 * Interprets the low bits of a value as a two's complement number.
+	 * 
+	 * @param value
+	 *            Holds the number in its low bits; the others are ignored.
+	 * @param bits
+	 *            The width of the number, 1 to 32.
+	 * @return The number, sign extended from the given width.
+	 */
+	public static int signExtend(int value, int bits) {
+		int shift = 32 - bits;
+		return (value << shift) >> shift;
+	}
 
-			// Return 2's complement conversion (flip all the bits and add 1)
-			temp.flip(0, numBits);
-			return 0 - (convertToInt(temp, numBits) + 1);
-		}
+	/**
+	 * Wraps a value to an 18-bit word, keeping the low 18 bits of its two's
+	 * complement representation, the way memory and the registers store it.
+	 * 
+	 * @param value
+	 *            Any int.
+	 * @return The unsigned 18-bit word.
+	 */
+	public static int wrap(int value) {
+		return value & Memory.WORD_MASK;
+	}
 
-		// Positive conversion, check each bit and shift to get the appropriate
-		// power of 2
-		// for the bit position
-		for (int i = numBits - 1; i >= 0; i--)
-			value += set.get(i) ? (1 << (numBits - 1 - i)) : 0;
+	/**
+	 * Extracts a field from an 18-bit word, where start and end are the bit
+	 * positions given in InstructionBitFormats (bit 0 is the most significant
+	 * bit).
+	 * 
+	 * @param word
+	 *            The word.
+	 * @param start
+	 *            The first bit of the field.
+	 * @param end
+	 *            The last bit of the field.
+	 * @return The unsigned value of the field.
+	 */
+	public static int field(int word, int start, int end) {
+		return (word >>> (CPUConstants.DEFAULT_BIT_SIZE - 1 - end))
+				& mask(end - start + 1);
+	}
 
-		return value;
+	/**
+	 * Replaces a field of an 18-bit word, numbered as in
+	 * {@link #field(int, int, int)}.
+	 * 
+	 * @param word
+	 *            The word.
+	 * @param start
+	 *            The first bit of the field.
+	 * @param end
+	 *            The last bit of the field.
+	 * @param value
+	 *            The new value of the field, truncated to its width.
+	 * @return The word with the field replaced.
+	 */
+	public static int insertField(int word, int start, int end, int value) {
+		int shift = CPUConstants.DEFAULT_BIT_SIZE - 1 - end;
+		int field_mask = mask(end - start + 1) << shift;
+		return (word & ~field_mask) | ((value << shift) & field_mask);
 	}
 
 	/**
@@ -180,25 +244,10 @@ public class Utils {
 	 */
 	public static BitSet intToBitSet(int value, int setSize) {
 		BitSet set = new BitSet(setSize);
-		// Check if value is negative (if so, BitSet needs to contain the 2's
-		// complement)
-		if (value < 0) {
-			int absoluteVal = 0 - value;
-
-			// Instead of flipping bits and adding one, first subtract one then
-			// flip bits (makes it easier to code)
-			BitSet temp = intToBitSet(absoluteVal - 1, setSize);
-
-			// Flip all the bits
-			temp.flip(0, setSize);
-			return temp;
-		}
-
-		// If positive, essentially set the BitSet bit-by-bit
-		for (int i = setSize - 1; i >= 0; i--) {
-			set.set(i, (value & 1) == 1 ? true : false);
-			value >>>= 1;
-		}
+		// Bits above the 32 of the value repeat its sign, as in 2's complement
+		for (int i = 0; i < setSize; i++)
+			if (((value >> Math.min(i, 31)) & 1) != 0)
+				set.set(setSize - 1 - i);
 		return set;
 	}
 
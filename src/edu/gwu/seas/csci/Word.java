@@ -25,6 +25,43 @@ public class Word extends BitSet {
 		super(18);
 	}
 
+	/**
+	 * Creates an 18 bit word holding the low 18 bits of the given value, with
+	 * bit 0 as the most significant bit.
+	 * 
+	 * @param value
+	 *            The value to hold.
+	 * @return The new word.
+	 */
+	public static Word fromInt(int value) {
+		Word word = new Word();
+		word.setBits(value);
+		return word;
+	}
+
+	/**
+	 * Sets the bits of this word that are set in the low 18 bits of a value,
+	 * bit 0 being the most significant, and leaves the others as they are.
+	 * 
+	 * @param value
+	 *            The bits to set.
+	 */
+	public void setBits(int value) {
+		for (int i = 0; i < 18; i++)
+			if (((value >>> (17 - i)) & 1) != 0)
+				set(i);
+	}
+
+	/**
+	 * @return The unsigned value of this word.
+	 */
+	public int toInt() {
+		int value = 0;
+		for (int i = 0; i < 18; i++)
+			value = (value << 1) | (get(i) ? 1 : 0);
+		return value;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -0,0 +1,85 @@
+package edu.gwu.seas.csci;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that "fast run" mode spends the same cycles as "continue" mode, and
+ * stalls on the write buffer at the same points, with a synchronous memory
+ * controller and a write buffer small enough to fill.
+ */
+public class FastRunTest {
+
+	/**
+	 * Stores back to back, so the write buffer is full unless the memory
+	 * controller is clocked between them.
+	 */
+	private static final String[] STORES = { "LDA 0,0,5", "STR 0,0,8",
+			"STR 0,0,8", "STR 0,0,9", "LDR 1,0,8", "AMR 1,0,9", "STR 1,0,10",
+			"STR 1,0,10", "HLT" };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File program;
+
+	@Before
+	public void setUp() throws Exception {
+		System.setProperty(CPU.MemoryController.MODE_PROPERTY, "synchronous");
+		System.setProperty(CPU.WriteBuffer.DEPTH_PROPERTY, "1");
+		System.setProperty(TimingModel.STALL_PROPERTY, "5");
+		program = folder.newFile("stores.txt");
+		Files.write(program.toPath(), Arrays.asList(STORES),
+				StandardCharsets.UTF_8);
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty(CPU.MemoryController.MODE_PROPERTY);
+		System.clearProperty(CPU.WriteBuffer.DEPTH_PROPERTY);
+		System.clearProperty(TimingModel.STALL_PROPERTY);
+	}
+
+	/**
+	 * Runs the program to HLT on a new machine.
+	 *
+	 * @return The cycles of the run and the write buffer stalls.
+	 */
+	private long[] run(String step_type) throws Exception {
+		HeadlessComputer computer = new HeadlessComputer(new PrintStream(
+				new ByteArrayOutputStream()));
+		CPU cpu = computer.getMachine().getCPU();
+		try {
+			long start = cpu.getCycleCount();
+			assertTrue(computer.run(program.getPath(), new BufferedReader(
+					new StringReader("")), step_type));
+			return new long[] { cpu.getCycleCount() - start,
+					cpu.getCacheStatistics().getWriteBufferStalls() };
+		} finally {
+			computer.getMachine().shutdown();
+		}
+	}
+
+	@Test
+	public void storesTakeTheSameCyclesAndStalls() throws Exception {
+		long[] micro_steps = run("continue");
+		long[] fast = run("fast run");
+		assertEquals("cycles", micro_steps[0], fast[0]);
+		assertEquals("write buffer stalls", micro_steps[1], fast[1]);
+	}
+}
@@ -0,0 +1,54 @@
+package edu.gwu.seas.csci;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that the {@link TestFarm} cycle limit stops programs that never halt.
+ */
+public class TestFarmTest {
+
+	/**
+	 * TRAP 3, which stays on its first micro step without adding cycles.
+	 */
+	private static final int TRAP_3 = 0300003;
+
+	private static final long MAX_CYCLES = 10000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TestFarm farm;
+
+	@Before
+	public void setUp() {
+		System.setProperty(CPU.MemoryController.MODE_PROPERTY, "synchronous");
+		farm = new TestFarm(1, MAX_CYCLES);
+	}
+
+	@After
+	public void tearDown() {
+		farm.shutdown();
+		System.clearProperty(CPU.MemoryController.MODE_PROPERTY);
+	}
+
+	@Test(timeout = 60000)
+	public void trapTimesOut() throws Exception {
+		Path program = folder.getRoot().toPath()
+				.resolve("trap" + ObjectFile.EXTENSION);
+		new ObjectFile(InstructionLoader.GENERAL_PROGRAM_LOADING_ADDR, 0,
+				new int[] { TRAP_3, 0 }, new String[0], new int[0],
+				new int[0], new int[0], new int[0], new int[0][]).write(program);
+
+		TestFarm.Run run = farm.run(program);
+		assertEquals(run.getError(), TestFarm.Status.TIMED_OUT,
+				run.getStatus());
+	}
+}